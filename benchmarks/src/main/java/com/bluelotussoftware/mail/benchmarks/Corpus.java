@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Sample spam messages used by the benchmarks. The samples are loaded from the
+ * <code>corpus</code> resources, except for the <code>large</code> sample which
+ * is generated from the <code>small</code> sample with a binary attachment so
+ * that a multi-megabyte file does not need to be checked in.
+ * <ul>
+ * <li><code>small</code> a short plain text message,</li>
+ * <li><code>multipart</code> a multipart/alternative message with encoded
+ * headers, and a DKIM signature,</li>
+ * <li><code>hops</code> a message which has passed through 31 relays,
+ * and</li>
+ * <li><code>large</code> a message with a 2 MB base64 encoded attachment.</li>
+ * </ul>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public final class Corpus {
+
+    /**
+     * The size of the attachment in the <code>large</code> sample.
+     */
+    public static final int LARGE_ATTACHMENT_SIZE = 2 * 1024 * 1024;
+
+    private Corpus() {
+    }
+
+    /**
+     * Loads a sample message.
+     *
+     * @param name The name of the sample.
+     * @return the raw message.
+     */
+    public static byte[] load(final String name) {
+        if ("large".equals(name)) {
+            return large();
+        }
+        try (InputStream is = Corpus.class.getResourceAsStream("/corpus/" + name + ".eml")) {
+            if (is == null) {
+                throw new IllegalArgumentException("No such sample: " + name);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] large() {
+        String small = new String(load("small"), StandardCharsets.US_ASCII);
+        int body = small.indexOf("\n\n");
+        String headers = small.substring(0, body).replace(
+                "Content-Type: text/plain; charset=us-ascii\nContent-Transfer-Encoding: 7bit",
+                "Content-Type: multipart/mixed; boundary=\"=_mixed_0017\"");
+        byte[] attachment = new byte[LARGE_ATTACHMENT_SIZE];
+        new Random(5965).nextBytes(attachment);
+        StringBuilder sb = new StringBuilder(LARGE_ATTACHMENT_SIZE * 4 / 3 + 4096);
+        sb.append(headers).append("\n\n")
+                .append("--=_mixed_0017\n")
+                .append("Content-Type: text/plain; charset=us-ascii\n\n")
+                .append(small.substring(body + 2)).append('\n')
+                .append("--=_mixed_0017\n")
+                .append("Content-Type: application/octet-stream; name=\"invoice.zip\"\n")
+                .append("Content-Disposition: attachment; filename=\"invoice.zip\"\n")
+                .append("Content-Transfer-Encoding: base64\n\n")
+                .append(Base64.getMimeEncoder().encodeToString(attachment).replace("\r\n", "\n"))
+                .append("\n--=_mixed_0017--\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} which discards the data written to it, and counts
+ * the bytes so that serialization is not eliminated as dead code.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class CountingOutputStream extends OutputStream {
+
+    private long count;
+
+    @Override
+    public void write(final int b) {
+        count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        count += len;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import com.bluelotussoftware.mail.ARFMessage;
+import com.bluelotussoftware.mail.ByteArrayMessageSource;
+import com.bluelotussoftware.mail.ParsedMessage;
+import com.bluelotussoftware.mail.SMTPSender;
+import com.bluelotussoftware.mail.SMTPSink;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reporting a message end to end, i.e. parsing it, generating the
+ * report, and sending it over a pooled SMTP connection to an
+ * {@link SMTPSink} on the loopback address, and sending a report which has
+ * already been generated. The sink verifies each report it receives, and may
+ * delay its reply to simulate a slower receiver. The teardown checks that
+ * every report was accepted as a valid ARF report.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class EndToEndBenchmark {
+
+    @Param({"small", "hops", "large"})
+    public String sample;
+
+    @Param({"0", "1"})
+    public long latency;
+
+    private SMTPSink sink;
+    private SMTPSender smtp;
+    private byte[] raw;
+    private byte[] report;
+
+    @Setup(Level.Trial)
+    public void setup() throws MessagingException, IOException {
+        sink = new SMTPSink().start();
+        sink.setLatency(latency, TimeUnit.MILLISECONDS);
+        sink.setVerify(true);
+        smtp = new SMTPSender("", "", "127.0.0.1", sink.getPort());
+        smtp.setPoolSize(4);
+        raw = Corpus.load(sample);
+        MimeMessage mm = generate();
+        mm.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mm.writeTo(out);
+        report = out.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        smtp.close();
+        sink.close();
+        if (sink.getInvalid() > 0 || sink.getAccepted() != sink.getReceived()) {
+            throw new IllegalStateException("The sink did not accept every report: " + sink
+                    + ", last invalid " + sink.getLastInvalid());
+        }
+    }
+
+    @Benchmark
+    public void report() throws MessagingException, IOException {
+        smtp.deliver(generate());
+    }
+
+    @Benchmark
+    public void send() throws MessagingException {
+        smtp.deliver(new MimeMessage(smtp.getSession(), new ByteArrayInputStream(report)));
+    }
+
+    private MimeMessage generate() throws MessagingException, IOException {
+        ParsedMessage message = ParsedMessage.parse(smtp.getSession(), new ByteArrayMessageSource(sample, raw));
+        return new ARFMessage(smtp.getSession(), message, "abuse@spammer.example.com").generateARF();
+    }
+
+}
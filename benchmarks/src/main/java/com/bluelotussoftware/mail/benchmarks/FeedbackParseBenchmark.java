@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import com.bluelotussoftware.mail.ARFMessage;
+import com.bluelotussoftware.mail.ByteArrayMessageSource;
+import com.bluelotussoftware.mail.ParsedMessage;
+import com.bluelotussoftware.mail.ReturnedContent;
+import com.bluelotussoftware.mail.arf.AbuseFormatReport;
+import com.bluelotussoftware.mail.arf.FeedbackReport;
+import com.bluelotussoftware.mail.arf.FeedbackReportParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading inbound ARF reports with the {@link FeedbackReportParser},
+ * and with JavaMail, i.e. parsing a {@link MimeMessage}, and reading the
+ * {@link AbuseFormatReport}, and the original headers from its parts. The
+ * reports are generated from the corpus samples, returning either the full
+ * original message, or only its headers. The setup checks that both read the
+ * same fields.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedbackParseBenchmark {
+
+    @Param({"small", "multipart", "hops", "large"})
+    public String sample;
+
+    @Param({"FULL", "HEADERS"})
+    public ReturnedContent returned;
+
+    private Session session;
+    private FeedbackReportParser parser;
+    private FeedbackReportParser lenient;
+    private byte[] report;
+
+    @Setup
+    public void setup() throws MessagingException, IOException {
+        session = Session.getInstance(new Properties());
+        parser = new FeedbackReportParser();
+        lenient = new FeedbackReportParser(true);
+        ParsedMessage message = ParsedMessage.parse(session, new ByteArrayMessageSource(sample, Corpus.load(sample)));
+        ARFMessage arfm = new ARFMessage(session, message, "abuse@spammer.example.com");
+        arfm.setReturnedContent(returned);
+        MimeMessage mm = arfm.generateARF();
+        mm.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mm.writeTo(out);
+        report = out.toByteArray();
+
+        FeedbackReport parsed = parser.parse(report);
+        MimeMessage jm = new MimeMessage(session, new ByteArrayInputStream(report));
+        AbuseFormatReport afr = abuseFormatReport(jm);
+        if (parsed.getFeedbackType() != afr.getFeedbackType() || !parsed.getSourceIP().equals(afr.getSourceIP())
+                || !parsed.getOriginalMessageId().equals(originalMessageId(jm))) {
+            throw new IllegalStateException("The " + returned + " report of the " + sample
+                    + " sample is read differently by the parser, and JavaMail.");
+        }
+    }
+
+    @Benchmark
+    public void parser(final Blackhole bh) throws MessagingException {
+        FeedbackReport r = parser.parse(report);
+        bh.consume(r.getSourceIP());
+        bh.consume(r.getOriginalMessageId());
+    }
+
+    @Benchmark
+    public void lenient(final Blackhole bh) throws MessagingException {
+        FeedbackReport r = lenient.parse(report);
+        bh.consume(r.getSourceIP());
+        bh.consume(r.getOriginalMessageId());
+    }
+
+    @Benchmark
+    public void javaMail(final Blackhole bh) throws MessagingException, IOException {
+        MimeMessage jm = new MimeMessage(session, new ByteArrayInputStream(report));
+        bh.consume(abuseFormatReport(jm).getSourceIP());
+        bh.consume(originalMessageId(jm));
+    }
+
+    private static AbuseFormatReport abuseFormatReport(final MimeMessage report)
+            throws MessagingException, IOException {
+        return (AbuseFormatReport) ((Multipart) report.getContent()).getBodyPart(1).getContent();
+    }
+
+    private static String originalMessageId(final MimeMessage report) throws MessagingException, IOException {
+        BodyPart original = ((Multipart) report.getContent()).getBodyPart(2);
+        if (original.isMimeType("message/rfc822")) {
+            return ((MimeMessage) original.getContent()).getMessageID();
+        }
+        return new InternetHeaders(original.getInputStream()).getHeader("Message-ID", null);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import com.bluelotussoftware.mail.ARFMessage;
+import com.bluelotussoftware.mail.ByteArrayMessageSource;
+import com.bluelotussoftware.mail.ParsedMessage;
+import com.bluelotussoftware.mail.ReturnedContent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the report for a message which has already been parsed
+ * with {@link ARFMessage#generateARF()}, both from the pre-encoded template,
+ * and with the JavaMail object graph. Before the benchmark is run the setup
+ * checks that both produce the same report for each returned content mode.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenerateBenchmark {
+
+    @Param({"small", "multipart", "hops", "large"})
+    public String sample;
+
+    @Param({"true", "false"})
+    public boolean templated;
+
+    private Session session;
+    private ParsedMessage message;
+
+    @Setup
+    public void setup() throws MessagingException, IOException {
+        session = Session.getInstance(new Properties());
+        message = ParsedMessage.parse(session, new ByteArrayMessageSource(sample, Corpus.load(sample)));
+        for (ReturnedContent returnedContent : ReturnedContent.values()) {
+            verifyTemplate(returnedContent);
+        }
+    }
+
+    @Benchmark
+    public MimeMessage generateARF() throws MessagingException {
+        ARFMessage arfm = new ARFMessage(session, message, "abuse@spammer.example.com");
+        arfm.setTemplated(templated);
+        return arfm.generateARF();
+    }
+
+    /**
+     * Checks that the report rendered from the template is the same as the
+     * report built by JavaMail, once the unique boundary, and
+     * <code>Message-ID:</code> are discounted.
+     */
+    private void verifyTemplate(final ReturnedContent returnedContent) throws MessagingException, IOException {
+        String[] reports = new String[2];
+        String[] boundaries = new String[2];
+        for (int i = 0; i < reports.length; i++) {
+            ARFMessage arfm = new ARFMessage(session, message, "abuse@spammer.example.com");
+            arfm.setReturnedContent(returnedContent);
+            arfm.setMaxBodyLength(1024);
+            arfm.setTemplated(i == 0);
+            MimeMessage report = arfm.generateARF();
+            report.saveChanges();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            report.writeTo(out, new String[]{"Message-ID"});
+            reports[i] = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+            boundaries[i] = new ContentType(report.getContentType()).getParameter("boundary");
+        }
+        if (!reports[0].replace(boundaries[0], boundaries[1]).equals(reports[1])) {
+            throw new IllegalStateException("The " + returnedContent + " report of the " + sample
+                    + " sample rendered from the template differs from the report built by JavaMail.");
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import com.bluelotussoftware.mail.ByteArrayMessageSource;
+import com.bluelotussoftware.mail.HeaderIndex;
+import com.bluelotussoftware.mail.ParsedMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing a raw message, and deriving the fields required for the
+ * report from it, and reading the headers used by the report from a
+ * {@link HeaderIndex}, and by scanning {@link InternetHeaders}.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"small", "multipart", "hops", "large"})
+    public String sample;
+
+    /**
+     * The headers read while a report is generated.
+     */
+    private static final String[] LOOKUPS = {"Received", "Date", "From", "Sender", "To", "Cc", "Bcc",
+        "Newsgroups", "Subject", "Message-ID", "Return-Path", "Delivered-To", "Authentication-Results",
+        "Content-Type", "MIME-Version"};
+
+    private Session session;
+    private ByteArrayMessageSource source;
+    private byte[] raw;
+
+    @Setup
+    public void setup() {
+        session = Session.getInstance(new Properties());
+        raw = Corpus.load(sample);
+        source = new ByteArrayMessageSource(sample, raw);
+    }
+
+    @Benchmark
+    public void parse(final Blackhole bh) throws MessagingException, IOException {
+        ParsedMessage message = ParsedMessage.parse(session, source);
+        bh.consume(message.getSourceIP());
+        bh.consume(message.getArrivalDate());
+        bh.consume(message.getSenderDomain());
+        bh.consume(message.getForwardedSubject());
+    }
+
+    @Benchmark
+    public void indexed(final Blackhole bh) throws MessagingException {
+        lookup(new HeaderIndex(new ByteArrayInputStream(raw)), bh);
+    }
+
+    @Benchmark
+    public void scanned(final Blackhole bh) throws MessagingException {
+        lookup(new InternetHeaders(new ByteArrayInputStream(raw)), bh);
+    }
+
+    private static void lookup(final InternetHeaders headers, final Blackhole bh) {
+        for (String name : LOOKUPS) {
+            bh.consume(headers.getHeader(name));
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import com.bluelotussoftware.mail.arf.SourceIPExtractor;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.Header;
+import javax.mail.internet.InternetHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the regular expression based source IP address lookup which was
+ * previously used by {@code Utils.getSourceIPAddress} with
+ * {@link SourceIPExtractor}.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SourceIPBenchmark {
+
+    /**
+     * The number of <code>Received:</code> headers in the message.
+     */
+    @Param({"1", "4", "16"})
+    public int hops;
+
+    private InternetHeaders headers;
+    private SourceIPExtractor extractor;
+    private SourceIPExtractor trustedExtractor;
+
+    @Setup
+    public void setup() {
+        headers = new InternetHeaders();
+        for (int i = 0; i < hops; i++) {
+            headers.addHeader("Received", "from relay" + i + ".example.net (relay" + i + ".example.net [10.0."
+                    + i + ".25]) by mx" + i + ".example.org (Postfix) with ESMTPS id 4F2A1" + i
+                    + " for <victim@example.org>; Thu, 8 Mar 2005 14:00:00 -0500");
+        }
+        headers.addHeader("Received", "from spammer.example.com (unknown [IPv6:2001:db8::25]) by mx.example.org "
+                + "with SMTP id 3E9; Thu, 8 Mar 2005 13:59:00 -0500");
+        headers.addHeader("Date", "Thu, 8 Mar 2005 13:58:00 -0500");
+        headers.addHeader("From", "Spammer <spam@spammer.example.com>");
+        headers.addHeader("To", "victim@example.org");
+        headers.addHeader("Subject", "Buy now");
+        extractor = new SourceIPExtractor();
+        trustedExtractor = new SourceIPExtractor(Arrays.asList("10.0.0.0/16"));
+    }
+
+    /**
+     * The implementation previously used by {@code Utils.getSourceIPAddress}.
+     */
+    @SuppressWarnings("unchecked")
+    private static String regex(final InternetHeaders internetHeaders) {
+        Enumeration<Header> headers = (Enumeration<Header>) internetHeaders.getAllHeaders();
+        Pattern IP_ADDRESS_PATTERN = Pattern.compile("\\[(.*?)\\]");
+        String sourceIP = null;
+        while (headers.hasMoreElements()) {
+            Header h = (Header) headers.nextElement();
+            if ("Received".equals(h.getName())) {
+                Matcher m = IP_ADDRESS_PATTERN.matcher(h.getValue());
+                while (m.find()) {
+                    sourceIP = m.group(1);
+                }
+            }
+        }
+        return sourceIP;
+    }
+
+    @Benchmark
+    public String regex() {
+        return regex(headers);
+    }
+
+    @Benchmark
+    public String extractor() {
+        return extractor.extract(headers);
+    }
+
+    @Benchmark
+    public String extractorTrustedRelays() {
+        return trustedExtractor.extract(headers);
+    }
+
+}
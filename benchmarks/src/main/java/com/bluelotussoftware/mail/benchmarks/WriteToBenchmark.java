@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.benchmarks;
+
+import com.bluelotussoftware.mail.ARFMessage;
+import com.bluelotussoftware.mail.ByteArrayMessageSource;
+import com.bluelotussoftware.mail.ParsedMessage;
+import com.bluelotussoftware.mail.arf.AbuseFormatReport;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serializing the machine readable part with
+ * {@link AbuseFormatReport#writeTo(java.io.OutputStream)}, and the complete
+ * report with {@link MimeMessage#writeTo(java.io.OutputStream)}, rendered
+ * either from the template, or by JavaMail.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteToBenchmark {
+
+    @Param({"small", "multipart", "hops", "large"})
+    public String sample;
+
+    @Param({"true", "false"})
+    public boolean templated;
+
+    private final CountingOutputStream out = new CountingOutputStream();
+    private AbuseFormatReport abuseFormatReport;
+    private MimeMessage report;
+
+    @Setup
+    public void setup() throws MessagingException, IOException {
+        Session session = Session.getInstance(new Properties());
+        ParsedMessage message = ParsedMessage.parse(session,
+                new ByteArrayMessageSource(sample, Corpus.load(sample)));
+        abuseFormatReport = AbuseFormatReport.builder().message(message).build();
+        ARFMessage arfm = new ARFMessage(session, message, "abuse@spammer.example.com");
+        arfm.setTemplated(templated);
+        report = arfm.generateARF();
+        report.saveChanges();
+    }
+
+    @Benchmark
+    public long abuseFormatReport() throws IOException {
+        out.reset();
+        abuseFormatReport.writeTo(out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long report() throws IOException, MessagingException {
+        out.reset();
+        report.writeTo(out);
+        return out.getCount();
+    }
+
+}
@@ -15,21 +15,24 @@
  */
 package com.bluelotussoftware.mail;
 
+import com.bluelotussoftware.mail.arf.SourceIPExtractor;
 import com.bluelotussoftware.mail.arf.Utils;
-import static com.bluelotussoftware.mail.arf.Utils.getSourceIPAddress;
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import javax.mail.Address;
-import javax.mail.Header;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 import javax.mail.MessagingException;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -37,6 +40,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.MissingOptionException;
 import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
@@ -60,9 +64,15 @@ public class ARF {
         String smtpServer = "localhost";
         int port = 25;
         boolean debug = false;
-        MimeMessage originalMessage = null;
         String fileName = null;
         String abuseEmailAddress = null;
+        String batch = null;
+        String listen = null;
+        boolean stream = false;
+        boolean mmap = false;
+        ReturnedContent returned = ReturnedContent.FULL;
+        long maxBodyLength = ARFMessage.DEFAULT_MAX_BODY_LENGTH;
+        long aggregate = 0;
 
         ARF m = new ARF();
 
@@ -99,74 +109,425 @@ public class ARF {
                 abuseEmailAddress = cmd.getOptionValue('a');
             }
 
-            SMTPSender smtp = new SMTPSender(username, password, smtpServer, port, debug);
+            if (cmd.hasOption('b')) {
+                batch = cmd.getOptionValue('b');
+            }
 
-            try (InputStream is = new BufferedInputStream(new FileInputStream(fileName))) {
+            if (cmd.hasOption('l')) {
+                listen = cmd.getOptionValue('l');
+            }
 
-                originalMessage = new MimeMessage(smtp.getSession(), is);
+            if (cmd.hasOption("stream")) {
+                stream = true;
+            }
 
-                if (debug) {
-                    Enumeration e = originalMessage.getAllHeaderLines();
-                    System.out.println("<------------ Original Message -------------->");
-                    while (e.hasMoreElements()) {
-                        String header = (String) e.nextElement();
-                        System.out.println(header);
-                    }
-                    System.out.println("<-------------------------------------------->");
+            if (cmd.hasOption("mmap")) {
+                mmap = true;
+            }
+
+            if (cmd.hasOption("returned")) {
+                String value = cmd.getOptionValue("returned");
+                if ("full".equalsIgnoreCase(value)) {
+                    returned = ReturnedContent.FULL;
+                } else if ("headers".equalsIgnoreCase(value)) {
+                    returned = ReturnedContent.HEADERS;
+                } else {
+                    returned = ReturnedContent.TRUNCATED;
+                    maxBodyLength = parseLength(value);
                 }
+            }
+
+            if (cmd.hasOption("aggregate")) {
+                aggregate = Long.parseLong(cmd.getOptionValue("aggregate"));
+            }
 
-            } catch (IOException e) {
-                e.printStackTrace(System.err);
-                System.exit(1);
+            if (cmd.hasOption("load")
+                    && (cmd.hasOption("spool") || cmd.hasOption("rate") || cmd.hasOption("domainConnections"))) {
+                // The latencies would include the time reports wait in the spool, or for their domain.
+                throw new ParseException("--load can not be used with --spool, --rate, or --domainConnections.");
             }
 
-            try (InputStream is = new BufferedInputStream(new FileInputStream(fileName))) {
+            CachingAbuseContactResolver resolver = null;
+            if (cmd.hasOption("contacts") || cmd.hasOption("publicSuffixList")) {
+                PublicSuffixList suffixes = cmd.hasOption("publicSuffixList")
+                        ? new PublicSuffixList(Paths.get(cmd.getOptionValue("publicSuffixList")))
+                        : new PublicSuffixList();
+                Path contacts = cmd.hasOption("contacts") ? Paths.get(cmd.getOptionValue("contacts")) : null;
+                resolver = new CachingAbuseContactResolver(new MappedAbuseContactResolver(suffixes, contacts),
+                        CachingAbuseContactResolver.DEFAULT_MAX_ENTRIES, 1, TimeUnit.HOURS);
+            }
+
+            ReportedMessageIndex reportedIndex = null;
+            if (cmd.hasOption("dedup")) {
+                reportedIndex = new ReportedMessageIndex(Paths.get(cmd.getOptionValue("dedup")));
+            }
+
+            if (cmd.hasOption('t')) {
+                Utils.setSourceIPExtractor(new SourceIPExtractor(Arrays.asList(cmd.getOptionValue('t').split(","))));
+            }
+
+            PipelineMetrics metrics = PipelineMetrics.getDefault();
+            try {
+                metrics.register();
+            } catch (JMException e) {
+                System.err.println("Unable to register metrics with JMX: " + e);
+            }
+            final Path metricsFile = cmd.hasOption("metrics") ? Paths.get(cmd.getOptionValue("metrics")) : null;
+            ScheduledExecutorService metricsWriter = null;
+            if (metricsFile != null) {
+                // Keep the file current for long running batches, and servers.
+                metricsWriter = Executors.newSingleThreadScheduledExecutor(
+                        WorkerThreads.newThreadFactory("arf-metrics"));
+                metricsWriter.scheduleWithFixedDelay(() -> writeMetrics(metricsFile), 15, 15, TimeUnit.SECONDS);
+            }
+
+            SMTPSender smtp = new SMTPSender(username, password, smtpServer, port, debug);
 
-                InternetHeaders messageHeaders = new InternetHeaders(is);
+            if (cmd.hasOption('c')) {
+                smtp.setPoolSize(Integer.parseInt(cmd.getOptionValue('c')));
+            }
 
-                Enumeration e = messageHeaders.getAllHeaders();
-                Map<String, Header> headerMap = new HashMap<>();
+            if (cmd.hasOption('m')) {
+                smtp.setMaxMessagesPerConnection(Integer.parseInt(cmd.getOptionValue('m')));
+            }
 
-                while (e.hasMoreElements()) {
-                    Header h = (Header) e.nextElement();
-                    headerMap.put(h.getName(), h);
-                    // System.out.println(h.getName()); 
+            if (cmd.hasOption("rate") || cmd.hasOption("domainConnections")) {
+                int connections = cmd.hasOption("domainConnections")
+                        ? Integer.parseInt(cmd.getOptionValue("domainConnections")) : 1;
+                double rate = 0;
+                Map<String, Double> rates = new LinkedHashMap<>();
+                if (cmd.hasOption("rate")) {
+                    for (String limit : cmd.getOptionValue("rate").split(",")) {
+                        int eq = limit.indexOf('=');
+                        if (eq < 0) {
+                            rate = Double.parseDouble(limit.trim());
+                        } else {
+                            rates.put(limit.substring(0, eq).trim(), Double.parseDouble(limit.substring(eq + 1).trim()));
+                        }
+                    }
                 }
+                DestinationScheduler scheduler = smtp.setDestinationLimit(rate, (int) Math.ceil(rate), connections);
+                for (Map.Entry<String, Double> e : rates.entrySet()) {
+                    scheduler.setLimit(e.getKey(), e.getValue(), (int) Math.ceil(e.getValue()), connections);
+                }
+            }
 
-                System.out.println(String.format("Final IP Address: %s", getSourceIPAddress(messageHeaders)));
-                System.out.println(MessageFormat.format("Date: {0}", headerMap.get("Date").getValue()));
+            if (cmd.hasOption("spool")) {
+                smtp.setSpool(Paths.get(cmd.getOptionValue("spool")));
+            }
+
+            final CountDownLatch finished = new CountDownLatch(1);
+            if (cmd.hasOption("load")) {
+                LoadGenerator load = new LoadGenerator(smtp);
+                load.setRate(Double.parseDouble(cmd.getOptionValue("load")));
+                load.setConcurrency(cmd.hasOption('c') ? Integer.parseInt(cmd.getOptionValue('c')) : 1);
+                if (cmd.hasOption("duration")) {
+                    load.setDuration(Long.parseLong(cmd.getOptionValue("duration")), TimeUnit.SECONDS);
+                }
+                load.setReturnedContent(returned, maxBodyLength);
+                if (fileName != null) {
+                    load.addSample(new FileMessageSource(Paths.get(fileName)), abuseEmailAddress);
+                } else if (batch != null) {
+                    try (BatchSource source = new BatchSource(batch, mmap)) {
+                        while (source.hasNext()) {
+                            load.addSample(source.next(), abuseEmailAddress);
+                        }
+                    }
+                } else {
+                    throw new MissingOptionException("The samples for --load must be given with -f, or -b.");
+                }
+                System.out.println(String.format("Replaying %d sample reports", load.getSamples()));
+                try {
+                    load.run(System.out);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (batch != null || listen != null) {
+                BatchSummary summary = new BatchSummary();
+                int connections = cmd.hasOption('c') ? Integer.parseInt(cmd.getOptionValue('c')) : 1;
+                int workers = cmd.hasOption('w') ? Integer.parseInt(cmd.getOptionValue('w'))
+                        : Runtime.getRuntime().availableProcessors();
+                final boolean printStackTrace = debug;
+                try (ReportPipeline pipeline = new ReportPipeline(smtp, abuseEmailAddress, workers, workers,
+                        connections, ReportPipeline.DEFAULT_QUEUE_CAPACITY)) {
+                    pipeline.setStreamOriginal(stream);
+                    pipeline.setAbuseContactResolver(resolver);
+                    pipeline.setReportedIndex(reportedIndex);
+                    pipeline.setReturnedContent(returned, maxBodyLength);
+                    if (aggregate > 0) {
+                        pipeline.setAggregator(new IncidentAggregator(aggregate, TimeUnit.SECONDS));
+                    }
+                    if (batch != null) {
+                        try (BatchSource source = new BatchSource(batch, mmap)) {
+                            while (source.hasNext()) {
+                                pipeline.submit(source.next())
+                                        .thenAccept(result -> record(summary, result, printStackTrace));
+                            }
+                        }
+                    } else {
+                        listen(pipeline, listen, summary, printStackTrace, finished);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                summary.finish();
+                summary.print(System.out);
+            } else {
+                try {
+                    MessageSource source = mmap ? new MappedMessageSource(Paths.get(fileName))
+                            : new FileMessageSource(Paths.get(fileName));
+                    report(smtp, source, abuseEmailAddress, debug, true, stream,
+                            returned, maxBodyLength, resolver, reportedIndex);
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                    System.exit(1);
+                }
+            }
 
-                if (abuseEmailAddress == null) {
-                    Address[] from = originalMessage.getFrom();
-                    String sender = from == null ? null : ((InternetAddress) from[0]).getAddress().split("@")[1];
-                    abuseEmailAddress = "abuse@" + sender;
-                    System.out.println(MessageFormat.format("Abuse email address: {0}", abuseEmailAddress));
+            OutboundSpool spool = smtp.getSpool();
+            if (spool != null) {
+                try {
+                    // Attempt every report which is due before stopping.
+                    spool.awaitDue(60, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                System.out.println(String.format("Spool: %d delivered, %d deferred, %d dead-lettered, %d queued",
+                        spool.getDelivered(), spool.getDeferred(), spool.getDeadLettered(), spool.getQueued()));
+            }
 
-                System.out.println("From: " + originalMessage.getFrom()[0].toString());
-                System.out.println("To: " + originalMessage.getAllRecipients()[0].toString());
+            if (resolver != null) {
+                System.out.println(String.format("Abuse contacts: %d hits, %d misses, %d evictions",
+                        resolver.getHits(), resolver.getMisses(), resolver.getEvictions()));
+            }
 
-                ARFMessage arfm = new ARFMessage(smtp.getSession(),
-                        originalMessage.getAllRecipients()[0].toString(),
-                        abuseEmailAddress,
-                        Utils.getForwardedSubject(messageHeaders),
-                        Utils.getSourceIPAddress(messageHeaders),
-                        headerMap.get("Date").getValue(), originalMessage);
-                MimeMessage mm = arfm.generateARF();
-                mm.writeTo(System.out);
+            if (reportedIndex != null) {
+                System.out.println(String.format("Reported index: %d messages", reportedIndex.size()));
+                reportedIndex.close();
+            }
 
-                System.out.println("Mail Success: " + smtp.send(mm));
+            DestinationScheduler scheduler = smtp.getScheduler();
+            smtp.close();
+            if (scheduler != null) {
+                System.out.println(String.format("Destinations: %d sent in %d batches",
+                        scheduler.getSent(), scheduler.getBatches()));
+            }
+            if (metricsWriter != null) {
+                metricsWriter.shutdownNow();
+                writeMetrics(metricsFile);
             }
+            finished.countDown();
 
-        } catch (MissingOptionException e) {
+        } catch (ParseException e) {
             System.err.println(e.getMessage());
             m.printHelp();
-        } catch (ParseException ex) {
-            ex.printStackTrace(System.err);
         }
 
     }
 
+    /**
+     * Parses the number of bytes of the body returned by
+     * <code>--returned</code>.
+     */
+    private static long parseLength(final String value) throws ParseException {
+        long length;
+        try {
+            length = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            length = -1;
+        }
+        if (length < 0) {
+            throw new ParseException("--returned must be full, headers, or a number of bytes: " + value);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the metrics to a file in the Prometheus text format.
+     */
+    private static void writeMetrics(final Path file) {
+        try {
+            PipelineMetrics.getDefault().writePrometheus(file);
+        } catch (IOException e) {
+            System.err.println("Unable to write metrics: " + e);
+        }
+    }
+
+    /**
+     * Records the result of a report in the summary.
+     */
+    private static void record(final BatchSummary summary, final DeliveryResult result,
+            final boolean printStackTrace) {
+        if (result.isDuplicate() && result.isSuccess()) {
+            summary.duplicate();
+        } else if (result.isAggregated() && result.isSuccess()) {
+            summary.aggregated();
+        } else if (result.isSuccess()) {
+            summary.success();
+        } else {
+            summary.failure(result.getName(), result.getCause().toString());
+            if (printStackTrace) {
+                result.getCause().printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Reports every message received by an {@link SMTPListener} until the
+     * process is stopped.
+     *
+     * @param pipeline The pipeline used to report the messages.
+     * @param address The address to listen on as <code>[host:]port</code>. The
+     * default host is the loopback address.
+     * @param summary The summary of the reports.
+     * @param printStackTrace Print the stack trace of failed reports.
+     * @param finished Counted down once the reports have been sent, and the
+     * summary printed. The process is not stopped until then.
+     * @throws IOException if the address can not be bound.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void listen(final ReportPipeline pipeline, final String address, final BatchSummary summary,
+            final boolean printStackTrace, final CountDownLatch finished) throws IOException, InterruptedException {
+        int colon = address.lastIndexOf(':');
+        InetSocketAddress socketAddress = colon < 0
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+                : new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        final SMTPListener listener = new SMTPListener(socketAddress, (from, recipients, message)
+                -> pipeline.submit(message).thenAccept(result -> record(summary, result, printStackTrace)));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            listener.close();
+            try {
+                // Allow the reports which were accepted to be sent.
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        listener.start();
+        System.out.println("Listening for SMTP, and LMTP on " + listener.getAddress());
+        listener.join();
+    }
+
+    /**
+     * Generates and sends an ARF report for a single message.
+     *
+     * @param smtp The sender used to deliver the report.
+     * @param source The raw message being reported.
+     * @param abuseEmailAddress The address to send the report to, or
+     * {@code null} to derive it from the sender of the message.
+     * @param debug Print the headers of the original message.
+     * @param verbose Print the details, and content of the report.
+     * @param stream Stream the original message from its source into the
+     * report.
+     * @param returned How much of the original message is returned in the
+     * report.
+     * @param maxBodyLength The number of bytes of the body returned when the
+     * original message is truncated.
+     * @param resolver The resolver used to find the abuse contact, or
+     * {@code null}.
+     * @param reportedIndex The index of the messages already reported, or
+     * {@code null} to report the message regardless.
+     * @return {@code true} if the report was sent, or {@code false} if it
+     * failed, or the message had already been reported.
+     * @throws MessagingException if the message can not be parsed, or the
+     * report can not be generated.
+     * @throws IOException if the message can not be read.
+     */
+    static boolean report(final SMTPSender smtp, final MessageSource source, String abuseEmailAddress,
+            final boolean debug, final boolean verbose, final boolean stream, final ReturnedContent returned,
+            final long maxBodyLength, final AbuseContactResolver resolver, final ReportedMessageIndex reportedIndex)
+            throws MessagingException, IOException {
+        long start = System.nanoTime();
+        ParsedMessage originalMessage = stream
+                ? ParsedMessage.parseHeaders(smtp.getSession(), source)
+                : ParsedMessage.parse(smtp.getSession(), source);
+        PipelineMetrics.getDefault().parsed(System.nanoTime() - start, source.getSize());
+
+        if (debug) {
+            Enumeration e = originalMessage.getAllHeaderLines();
+            System.out.println("<------------ Original Message -------------->");
+            while (e.hasMoreElements()) {
+                String header = (String) e.nextElement();
+                System.out.println(header);
+            }
+            System.out.println("<-------------------------------------------->");
+        }
+
+        if (verbose) {
+            System.out.println(String.format("Final IP Address: %s", originalMessage.getSourceIP()));
+            System.out.println(MessageFormat.format("Date: {0}", originalMessage.getArrivalDate()));
+        }
+
+        long key = 0;
+        if (reportedIndex != null) {
+            key = ReportedMessageIndex.key(originalMessage);
+            if (reportedIndex.contains(key)) {
+                if (verbose) {
+                    System.out.println(source.getName() + " has already been reported.");
+                }
+                return false;
+            }
+        }
+
+        if (abuseEmailAddress == null) {
+            abuseEmailAddress = getAbuseAddress(originalMessage, null, resolver);
+            if (verbose) {
+                System.out.println(MessageFormat.format("Abuse email address: {0}", abuseEmailAddress));
+            }
+        }
+
+        if (verbose) {
+            System.out.println("From: " + originalMessage.getFrom()[0].toString());
+            System.out.println("To: " + originalMessage.getAllRecipients()[0].toString());
+        }
+
+        ARFMessage arfm = new ARFMessage(smtp.getSession(), originalMessage, abuseEmailAddress);
+        arfm.setStreamOriginal(stream);
+        arfm.setReturnedContent(returned);
+        arfm.setMaxBodyLength(maxBodyLength);
+        start = System.nanoTime();
+        MimeMessage mm = arfm.generateARF();
+        PipelineMetrics.getDefault().generated(System.nanoTime() - start);
+
+        boolean success;
+        if (verbose) {
+            ARFMessage.print(mm, System.out);
+            success = smtp.send(mm);
+            System.out.println("Mail Success: " + success);
+        } else {
+            success = smtp.send(mm);
+        }
+        if (success && reportedIndex != null) {
+            reportedIndex.add(key);
+        }
+        return success;
+    }
+
+    /**
+     * Determines the address an ARF report for the message is sent to.
+     *
+     * @param message The message being reported.
+     * @param abuseEmailAddress A specific abuse address, or {@code null}.
+     * @param resolver The resolver used to find the abuse contact, or
+     * {@code null}.
+     * @return the abuse address provided, the contact found by the resolver,
+     * or <code>abuse@</code> the domain of the sender.
+     * @throws MessagingException if the sender can not be determined.
+     */
+    static String getAbuseAddress(final ParsedMessage message, final String abuseEmailAddress,
+            final AbuseContactResolver resolver) throws MessagingException {
+        if (abuseEmailAddress != null) {
+            return abuseEmailAddress;
+        }
+        if (resolver != null) {
+            String contact = resolver.resolve(message.getSenderDomain(), message.getSourceIP());
+            if (contact != null) {
+                return contact;
+            }
+        }
+        return "abuse@" + message.getSenderDomain();
+    }
+
     public Options getOptions() {
         return options;
     }
@@ -184,9 +545,71 @@ public class ARF {
         Option smtpServer = Option.builder("s").longOpt("smtpServer").argName("localhost")
                 .hasArg().desc("SMTP server name or IP address. The default is localhost.").build();
         Option file = Option.builder("f").longOpt("file").argName("email.msg")
-                .hasArg().required().desc("(REQUIRED) Raw email message used to send ARF response.").build();
+                .hasArg().desc("Raw email message used to send ARF response.").build();
+        Option batch = Option.builder("b").longOpt("batch").argName("path")
+                .hasArg().desc("Send an ARF response for every message in a directory, glob, or mbox file. "
+                        + "Use - to read a list of paths from standard input.").build();
+        Option listen = Option.builder("l").longOpt("listen").argName("[host:]port").hasArg()
+                .desc("Run as a server which reports every message received over SMTP, or LMTP on "
+                        + "the given port. The default host is the loopback address.").build();
+        OptionGroup input = new OptionGroup();
+        input.addOption(file);
+        input.addOption(batch);
+        input.addOption(listen);
+        input.setRequired(true);
         Option port = Option.builder("P").longOpt("port").hasArg().argName("25")
                 .desc("Port number of SMTP server").build();
+        Option connections = Option.builder("c").longOpt("connections").hasArg().argName("1")
+                .desc("Number of SMTP connections held open and reused. The default is 1.").build();
+        Option maxMessages = Option.builder("m").longOpt("maxMessages").hasArg().argName("100")
+                .desc("Number of messages sent on an SMTP connection before it is reopened. The default is 100.").build();
+        Option workers = Option.builder("w").longOpt("workers").hasArg().argName("n")
+                .desc("Number of threads parsing messages, and building reports in batch mode. "
+                        + "The default is the number of processors.").build();
+        Option trusted = Option.builder("t").longOpt("trusted").hasArg().argName("192.0.2.0/24,...")
+                .desc("Comma separated addresses or networks of trusted relays which are skipped "
+                        + "when determining the source IP address.").build();
+        Option stream = Option.builder().longOpt("stream")
+                .desc("Attach the original message byte-for-byte from the file, rather than "
+                        + "re-encoding the parsed message.").build();
+        Option returned = Option.builder().longOpt("returned").hasArg().argName("full|headers|bytes")
+                .desc("How much of the original message is returned in the report: the full message, "
+                        + "only the headers, or the headers, and the given number of bytes of the body. "
+                        + "The default is full.").build();
+        Option aggregate = Option.builder().longOpt("aggregate").hasArg().argName("seconds")
+                .desc("Aggregate copies of the same spam received within the given number of seconds "
+                        + "into a single report with an Incidents: count in batch mode.").build();
+        Option rate = Option.builder().longOpt("rate").hasArg().argName("n[,domain=n,...]")
+                .desc("Maximum number of reports per second sent to each destination domain, optionally "
+                        + "followed by limits for particular domains, which also apply to their subdomains. "
+                        + "Reports to the same domain are sent together on one connection.").build();
+        Option domainConnections = Option.builder().longOpt("domainConnections").hasArg().argName("1")
+                .desc("Number of connections which may send reports to the same destination domain "
+                        + "at once. The default is 1.").build();
+        Option contacts = Option.builder().longOpt("contacts").hasArg().argName("file")
+                .desc("Mapping file of domains, and IP networks to abuse addresses, each line holding a "
+                        + "domain or network followed by an address. Unmapped senders are reported to abuse@ "
+                        + "their registrable domain.").build();
+        Option publicSuffixList = Option.builder().longOpt("publicSuffixList").hasArg().argName("file")
+                .desc("Public suffix list used to determine the registrable domain of the sender.").build();
+        Option metrics = Option.builder().longOpt("metrics").hasArg().argName("file")
+                .desc("Write counters, and latency histograms in the Prometheus text format to the file "
+                        + "every 15 seconds, and on exit. The metrics are also available over JMX.").build();
+        Option mmap = Option.builder().longOpt("mmap")
+                .desc("Memory-map the input files, and mbox files, so messages are parsed from the mapping "
+                        + "without being copied into the heap.").build();
+        Option dedup = Option.builder().longOpt("dedup").hasArg().argName("file")
+                .desc("Skip messages which have already been reported, recording the reported messages in the index file provided.")
+                .build();
+        Option spool = Option.builder().longOpt("spool").hasArg().argName("directory")
+                .desc("Write reports to a durable spool, and deliver them in the background with "
+                        + "retries. Reports which can not be delivered are kept for the next run.").build();
+        Option load = Option.builder().longOpt("load").hasArg().argName("reports/s")
+                .desc("Generate load on the SMTP server by replaying reports built from the messages given "
+                        + "with -f, or -b at the given rate, and print the latency percentiles, and replies. "
+                        + "With 0 each connection sends reports one after another.").build();
+        Option duration = Option.builder().longOpt("duration").hasArg().argName("seconds")
+                .desc("How long load is generated for. The default is 60 seconds.").build();
         Option debug = Option.builder("d").longOpt("debug").desc("Turn on debugging code.").build();
         Option abuse = Option.builder("a").longOpt("abuse").argName("abuse@example.com")
                 .desc("Set a specific abuse address. The default is the abuse@XXX.XXX.").build();
@@ -194,8 +617,25 @@ public class ARF {
         options.addOption(username);
         options.addOption(password);
         options.addOption(smtpServer);
-        options.addOption(file);
+        options.addOptionGroup(input);
         options.addOption(port);
+        options.addOption(connections);
+        options.addOption(maxMessages);
+        options.addOption(workers);
+        options.addOption(trusted);
+        options.addOption(stream);
+        options.addOption(returned);
+        options.addOption(aggregate);
+        options.addOption(spool);
+        options.addOption(dedup);
+        options.addOption(load);
+        options.addOption(duration);
+        options.addOption(mmap);
+        options.addOption(metrics);
+        options.addOption(contacts);
+        options.addOption(publicSuffixList);
+        options.addOption(rate);
+        options.addOption(domainConnections);
         options.addOption(debug);
         options.addOption(abuse);
     }
@@ -15,13 +15,26 @@
  */
 package com.bluelotussoftware.mail;
 
+import com.bluelotussoftware.mail.arf.ARFMultipartReport;
 import com.bluelotussoftware.mail.arf.AbuseFormatReport;
-import com.sun.mail.dsn.MultipartReport;
+import com.bluelotussoftware.mail.arf.Utils;
+import com.sun.mail.dsn.MessageHeaders;
+import com.sun.mail.smtp.SMTPMessage;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Enumeration;
+import javax.activation.DataHandler;
+import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 
 /**
  *
@@ -30,6 +43,12 @@ import javax.mail.internet.MimeMessage;
  */
 public class ARFMessage {
 
+    /**
+     * The default number of bytes of the body returned when the original
+     * message is truncated.
+     */
+    public static final long DEFAULT_MAX_BODY_LENGTH = 4096;
+
     private final Session session;
     private final String from;
     private final String to;
@@ -49,6 +68,32 @@ public class ARFMessage {
      * 2005 14:00:00 EDT.
      */
     private final String arrivalDate;
+    /**
+     * Attach the raw bytes of the original message rather than re-serializing
+     * the parsed message.
+     */
+    private boolean streamOriginal;
+    /**
+     * How much of the original message is returned in the report.
+     */
+    private ReturnedContent returnedContent = ReturnedContent.FULL;
+    /**
+     * The number of bytes of the body returned when the original message is
+     * truncated.
+     */
+    private long maxBodyLength = DEFAULT_MAX_BODY_LENGTH;
+    /**
+     * The number of copies of the original message covered by the report, or
+     * 0 if the report is for a single message.
+     */
+    private int incidents;
+    private String firstArrivalDate;
+    private String lastArrivalDate;
+    /**
+     * Render the report from the {@link ReportTemplate} rather than building
+     * it with JavaMail.
+     */
+    private boolean templated = true;
 
     public ARFMessage(final Session session, final String from, final String to, final String subject,
             final String sourceIP, final String arrivalDate, final MimeMessage originalMessage) {
@@ -62,8 +107,155 @@ public class ARFMessage {
 
     }
 
+    /**
+     * Constructor which derives the report fields from a
+     * {@link ParsedMessage}. The report is sent from the first recipient of the
+     * original message.
+     *
+     * @param session The session used to create the report.
+     * @param originalMessage The message being reported.
+     * @param to The abuse address the report is sent to.
+     * @throws MessagingException if the recipients of the message can not be
+     * determined.
+     */
+    public ARFMessage(final Session session, final ParsedMessage originalMessage, final String to)
+            throws MessagingException {
+        this(session, getFirstRecipient(originalMessage), to,
+                originalMessage.getForwardedSubject(), originalMessage.getSourceIP(),
+                getArrivalDate(originalMessage), originalMessage);
+    }
+
+    /**
+     * The date the message was received by the first server, which falls back
+     * to its <code>Date:</code> header.
+     */
+    private static String getArrivalDate(final ParsedMessage message) {
+        Date received = message.getReceivedDate();
+        return received != null ? Utils.formatDate(received) : message.getArrivalDate();
+    }
+
+    private static String getFirstRecipient(final MimeMessage message) throws MessagingException {
+        Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new MessagingException("The original message has no recipients.");
+        }
+        return recipients[0].toString();
+    }
+
+    /**
+     * Indicates if the original message is attached from its raw bytes.
+     *
+     * @return {@code true} if the original message is streamed from its
+     * source.
+     */
+    public boolean isStreamOriginal() {
+        return streamOriginal;
+    }
+
+    /**
+     * Sets whether the original message is attached by streaming the raw bytes
+     * from its {@link MessageSource} into the report, rather than by
+     * re-serializing the parsed message. This keeps the original intact
+     * byte-for-byte as recommended by RFC-5965, and avoids re-encoding it.
+     * This only applies when the original message is a {@link ParsedMessage}
+     * read from a {@link MessageSource}. A message parsed with
+     * {@link ParsedMessage#parseHeaders(javax.mail.Session, com.bluelotussoftware.mail.MessageSource)}
+     * is always streamed.
+     *
+     * @param streamOriginal {@code true} to stream the original message.
+     */
+    public void setStreamOriginal(final boolean streamOriginal) {
+        this.streamOriginal = streamOriginal;
+    }
+
+    /**
+     * How much of the original message is returned in the report.
+     *
+     * @return the returned content mode.
+     */
+    public ReturnedContent getReturnedContent() {
+        return returnedContent;
+    }
+
+    /**
+     * Sets how much of the original message is returned in the report. The
+     * default is {@link ReturnedContent#FULL}.
+     *
+     * @param returnedContent The returned content mode.
+     */
+    public void setReturnedContent(final ReturnedContent returnedContent) {
+        this.returnedContent = returnedContent;
+    }
+
+    /**
+     * Sets the number of bytes of the body returned when the original message
+     * is {@link ReturnedContent#TRUNCATED}.
+     *
+     * @param maxBodyLength The maximum number of bytes of the body. The default
+     * is {@value #DEFAULT_MAX_BODY_LENGTH}.
+     */
+    public void setMaxBodyLength(final long maxBodyLength) {
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * Sets the number of copies of the original message covered by the
+     * report. The report includes an <code>Incidents:</code> field, and the
+     * <code>Arrival-Date:</code> of the first copy.
+     *
+     * @param incidents The number of copies received.
+     * @param firstArrivalDate The date the first copy was received, or
+     * {@code null} if it is not known.
+     * @param lastArrivalDate The date the last copy was received, or
+     * {@code null} if it is not known.
+     */
+    public void setIncidents(final int incidents, final String firstArrivalDate, final String lastArrivalDate) {
+        this.incidents = incidents;
+        this.firstArrivalDate = firstArrivalDate;
+        this.lastArrivalDate = lastArrivalDate;
+    }
+
+    /**
+     * Sets the number of copies of the original message covered by the report
+     * from an aggregated {@link Incident}.
+     *
+     * @param incident The incident being reported.
+     */
+    public void setIncident(final Incident incident) {
+        setIncidents(incident.getCount(), incident.getFirstArrivalDate(), incident.getLastArrivalDate());
+    }
+
+    /**
+     * Indicates if the report is rendered from a template.
+     *
+     * @return {@code true} if the report is rendered from a template.
+     */
+    public boolean isTemplated() {
+        return templated;
+    }
+
+    /**
+     * Sets whether the report is rendered from a template of pre-encoded
+     * parts, rather than built from a {@link ARFMultipartReport} by JavaMail.
+     * Both produce the same bytes, apart from the boundary, and
+     * <code>Message-ID:</code>. A report whose text, or headers contain
+     * characters which are not US-ASCII is always built by JavaMail, as it
+     * encodes them. The default is {@code true}.
+     *
+     * @param templated {@code true} to render the report from a template.
+     */
+    public void setTemplated(final boolean templated) {
+        this.templated = templated;
+    }
+
     public MimeMessage generateARF() throws MessagingException {
-        MimeMessage mimeMessage = new MimeMessage(session);
+        if (templated) {
+            MimeMessage report = generateFromTemplate();
+            if (report != null) {
+                return report;
+            }
+        }
+        ReportMessage mimeMessage = new ReportMessage(session);
 
         //RFC822 From:
         mimeMessage.setFrom(new InternetAddress(from));
@@ -74,26 +266,437 @@ public class ARFMessage {
         //RFC822 Subject:
         mimeMessage.setSubject(subject);
 
-        MultipartReport report = new MultipartReport();
+        ARFMultipartReport report = new ARFMultipartReport();
         // Part I : Human Readable
-        report.setText(getHumanReadableMessage());
+        String text = getHumanReadableMessage();
+        report.setText(text);
+        BodyTypeScanner textScan = new BodyTypeScanner();
+        textScan.writeLine(text);
 
         // Part II : Abuse Format Report
-        AbuseFormatReport afr = new AbuseFormatReport();
+        AbuseFormatReport afr = getAbuseFormatReport();
         report.setReport(afr);
+        BodyTypeScanner reportScan = new BodyTypeScanner();
+        try {
+            afr.writeTo(reportScan);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to write the feedback report.", e);
+        }
 
         // Part III : Original Message
-        report.setReturnedMessage(originalMessage);
+        MessageSource source = getStreamableSource();
+        BodyTypeScanner headersScan = null;
+        ReturnedMessage returned = null;
+        if (returnedContent == ReturnedContent.HEADERS) {
+            headersScan = scanReturned();
+            report.setReturnedMessage(new ReturnedHeaders(getOriginalHeaders()));
+            ((MimeBodyPart) report.getBodyPart(2)).setDescription("Original message headers");
+        } else if (isTruncated()) {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new TruncatedMessageDataSource(originalMessage, maxBodyLength)));
+            part.setDescription("Original message truncated to " + maxBodyLength + " bytes of body");
+            report.setReturnedBodyPart(part);
+            returned = ReturnedMessage.truncated(originalMessage, maxBodyLength);
+        } else if (source != null) {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new RawMessageDataSource(source)));
+            report.setReturnedBodyPart(part);
+            returned = ReturnedMessage.of(source);
+        } else {
+            report.setReturnedMessage(originalMessage);
+            returned = ReturnedMessage.of(originalMessage);
+        }
+
+        // Text parts which may be sent as 8bit are not encoded.
+        BodyType type = BodyType.SEVEN_BIT;
+        long overhead = 0;
+        BodyTypeScanner[] scans = {textScan, reportScan, headersScan};
+        for (int i = 0; i < scans.length; i++) {
+            if (scans[i] != null && scans[i].getBodyType() == BodyType.EIGHT_BIT) {
+                report.getBodyPart(i).setHeader("Content-Transfer-Encoding", BodyType.EIGHT_BIT.getEncoding());
+                type = BodyType.EIGHT_BIT;
+                overhead += scans[i].getEncodingOverhead();
+            }
+        }
+        mimeMessage.setBodyType(type, overhead);
 
         mimeMessage.setContent(report);
 
+        if (returned != null) {
+            mimeMessage.setReturnedMessage(returned, scanReturned());
+        }
+
         return mimeMessage;
     }
 
-    private String getHumanReadableMessage() {
-        return "This is an email abuse report for an email message received from IP\n"
-                + sourceIP + " on " + arrivalDate + ".  For more information\n"
-                + "about this format please see http://www.mipassoc.org/arf/.\n";
+    /**
+     * Renders the report from the {@link ReportTemplate}.
+     *
+     * @return the report, or {@code null} if a part must be encoded.
+     */
+    private MimeMessage generateFromTemplate() throws MessagingException {
+        boolean truncated = isTruncated();
+        byte[] text = ReportTemplate.text(sourceIP, arrivalDate, incidents, firstArrivalDate, lastArrivalDate,
+                returnedContent == ReturnedContent.HEADERS, truncated ? maxBodyLength : -1);
+        if (text == null) {
+            return null;
+        }
+        MessageSource source = getStreamableSource();
+        ReturnedMessage message = null;
+        ReportTemplate.Part returned;
+        if (returnedContent == ReturnedContent.HEADERS) {
+            returned = ReportTemplate.headers(getOriginalHeaders());
+            if (returned == null) {
+                return null;
+            }
+        } else if (truncated) {
+            message = ReturnedMessage.truncated(originalMessage, maxBodyLength);
+            returned = ReportTemplate.message(message,
+                    "Original message truncated to " + maxBodyLength + " bytes of body");
+        } else {
+            message = source != null ? ReturnedMessage.of(source) : ReturnedMessage.of(originalMessage);
+            returned = ReportTemplate.message(message, null);
+        }
+        ReportMessage report = ReportTemplate.render(session, from, to, subject, text, getAbuseFormatReport(),
+                returned);
+        if (report != null && message != null) {
+            report.setReturnedMessage(message, scanReturned());
+        }
+        return report;
+    }
+
+    /**
+     * Scans the content returned in the third part of the report, if it is
+     * known without reading the original message again, i.e. only its headers
+     * are returned, or the body of a {@link ParsedMessage} has already been
+     * read. The scan of the whole body is used for a truncated message, which
+     * may label it with a wider type than it needs.
+     *
+     * @return the scan, or {@code null} if the type of the returned message
+     * is not known.
+     */
+    private BodyTypeScanner scanReturned() throws MessagingException {
+        if (returnedContent == ReturnedContent.HEADERS) {
+            BodyTypeScanner scanner = new BodyTypeScanner();
+            Enumeration<?> lines = getOriginalHeaders().getAllHeaderLines();
+            while (lines.hasMoreElements()) {
+                scanner.writeLine((String) lines.nextElement());
+            }
+            return scanner;
+        }
+        if (originalMessage instanceof ParsedMessage) {
+            return ((ParsedMessage) originalMessage).getBodyScan();
+        }
+        return null;
+    }
+
+    private AbuseFormatReport getAbuseFormatReport() throws MessagingException {
+        return AbuseFormatReport.builder()
+                .sourceIP(sourceIP)
+                .arrivalDate(incidents > 0 && firstArrivalDate != null ? firstArrivalDate : arrivalDate)
+                .incidents(incidents)
+                .message(originalMessage)
+                .build();
+    }
+
+    /**
+     * The original message is only truncated if the body may be longer than
+     * the maximum length. The size of the body is unknown if only the headers
+     * were parsed.
+     */
+    private boolean isTruncated() throws MessagingException {
+        if (returnedContent != ReturnedContent.TRUNCATED) {
+            return false;
+        }
+        if (originalMessage instanceof ParsedMessage && ((ParsedMessage) originalMessage).isHeadersOnly()) {
+            return true;
+        }
+        int size = originalMessage.getSize();
+        return size < 0 || size > maxBodyLength;
+    }
+
+    private InternetHeaders getOriginalHeaders() throws MessagingException {
+        if (originalMessage instanceof ParsedMessage) {
+            return ((ParsedMessage) originalMessage).getHeaders();
+        }
+        InternetHeaders headers = new InternetHeaders();
+        Enumeration<?> lines = originalMessage.getAllHeaderLines();
+        while (lines.hasMoreElements()) {
+            headers.addHeaderLine((String) lines.nextElement());
+        }
+        return headers;
+    }
+
+    private MessageSource getStreamableSource() {
+        if (originalMessage instanceof ParsedMessage) {
+            ParsedMessage parsed = (ParsedMessage) originalMessage;
+            if (parsed.getSource() != null && (streamOriginal || parsed.isHeadersOnly())) {
+                return parsed.getSource();
+            }
+        }
+        return null;
+    }
+
+    private String getHumanReadableMessage() throws MessagingException {
+        StringBuilder text = new StringBuilder(512)
+                .append(ReportTemplate.TEXT_INTRO)
+                .append(sourceIP);
+        if (arrivalDate != null) {
+            text.append(ReportTemplate.TEXT_ON).append(arrivalDate);
+        }
+        text.append(ReportTemplate.TEXT_INFO);
+        if (incidents > 1) {
+            text.append(ReportTemplate.TEXT_INCIDENTS).append(incidents);
+            if (firstArrivalDate != null && lastArrivalDate != null) {
+                text.append(ReportTemplate.TEXT_COPIES).append(firstArrivalDate).append(ReportTemplate.TEXT_AND)
+                        .append(lastArrivalDate).append(ReportTemplate.TEXT_END);
+            } else {
+                text.append(ReportTemplate.TEXT_COPIES_END);
+            }
+        }
+        if (returnedContent == ReturnedContent.HEADERS) {
+            text.append(ReportTemplate.TEXT_HEADERS);
+        } else if (isTruncated()) {
+            text.append(ReportTemplate.TEXT_TRUNCATED).append(maxBodyLength)
+                    .append(ReportTemplate.TEXT_TRUNCATED_END);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The headers of the original message returned as
+     * <code>text/rfc822-headers</code>. {@link MessageHeaders} is written with
+     * {@link MimeMessage#writeTo(java.io.OutputStream)} which would otherwise
+     * add a new <code>Message-ID:</code>, and <code>MIME-Version:</code> to the
+     * original headers.
+     */
+    private static class ReturnedHeaders extends MessageHeaders {
+
+        private ReturnedHeaders(final InternetHeaders headers) throws MessagingException {
+            super(headers);
+            saved = true;
+        }
+    }
+
+    /**
+     * Writes a report without recording it in the {@link PipelineMetrics}, so
+     * that a report which is printed, and then sent is only counted once.
+     *
+     * @param report The report generated.
+     * @param os The stream to write to.
+     * @throws IOException if the report can not be written.
+     * @throws MessagingException if the report can not be serialized.
+     */
+    static void print(final MimeMessage report, final OutputStream os) throws IOException, MessagingException {
+        if (report instanceof ReportMessage) {
+            ((ReportMessage) report).writeReport(os, null);
+        } else {
+            report.writeTo(os);
+        }
+    }
+
+    /**
+     * The report, which records the time taken to write it, and its size in
+     * the {@link PipelineMetrics} when it is sent, or spooled. A report with
+     * parts which are not encoded requests the <code>BODY=</code> type they
+     * require, which {@link TransportPool} only sends if the server supports
+     * it. The type of the returned message may not be known until it is
+     * resolved, which reads the original message.
+     */
+    static class ReportMessage extends SMTPMessage {
+
+        private BodyType bodyType = BodyType.SEVEN_BIT;
+        private long encodingOverhead;
+        private ReturnedMessage returned;
+        private BodyType returnedType;
+
+        ReportMessage(final Session session) {
+            super(session);
+        }
+
+        /**
+         * Sets the type of the unencoded parts of the report.
+         *
+         * @param type The body type of the report.
+         * @param encodingOverhead The estimated bytes the parts would grow by
+         * if they were encoded.
+         */
+        void setBodyType(final BodyType type, final long encodingOverhead) {
+            setMailExtension(type.getExtension() == null ? null : "BODY=" + type.getExtension());
+            this.bodyType = type;
+            this.encodingOverhead = encodingOverhead;
+        }
+
+        /**
+         * The type of the unencoded parts of the report.
+         *
+         * @return the body type, which does not include the returned message
+         * until it is resolved.
+         */
+        BodyType getBodyType() {
+            return bodyType;
+        }
+
+        /**
+         * Sets the message returned in the third part of the report, which is
+         * labelled with its type if it is known.
+         *
+         * @param returned The returned message.
+         * @param scan The scan of the returned message, or {@code null} if its
+         * type is not known.
+         * @throws MessagingException if the part can not be labelled.
+         */
+        void setReturnedMessage(final ReturnedMessage returned, final BodyTypeScanner scan)
+                throws MessagingException {
+            this.returned = returned;
+            this.returnedType = scan == null ? null : scan.getBodyType();
+            if (returnedType != null && returnedType != BodyType.SEVEN_BIT) {
+                labelReturned(returnedType);
+                setBodyType(bodyType.max(returnedType), encodingOverhead + scan.getEncodingOverhead());
+            }
+        }
+
+        /**
+         * Indicates if the type of every part of the report is known.
+         *
+         * @return {@code false} if the returned message has not been scanned.
+         */
+        boolean isResolved() {
+            return returned == null || returnedType != null;
+        }
+
+        /**
+         * Reads the returned message to determine its type, and labels it.
+         *
+         * @throws MessagingException if the returned message can not be read.
+         */
+        void resolveBodyType() throws MessagingException {
+            if (!isResolved()) {
+                setReturnedMessage(returned, returned.scan());
+            }
+        }
+
+        /**
+         * Encodes the parts of the report which are labelled <code>8bit</code>,
+         * or <code>binary</code>, so that it may be sent to any server. The
+         * returned message, unless it is known to be <code>7bit</code>, is
+         * converted as it is written.
+         *
+         * @throws MessagingException if the report can not be encoded.
+         */
+        void encode() throws MessagingException {
+            encodeParts(returned != null && returnedType != BodyType.SEVEN_BIT ? returned.encoded(session) : null);
+            returnedType = BodyType.SEVEN_BIT;
+            setBodyType(BodyType.SEVEN_BIT, 0);
+        }
+
+        /**
+         * Labels the part holding the returned message.
+         *
+         * @param type The type of the returned message.
+         * @throws MessagingException if the part can not be labelled.
+         */
+        void labelReturned(final BodyType type) throws MessagingException {
+            MimeMultipart multipart = getParts();
+            if (multipart != null && multipart.getCount() > 2) {
+                multipart.getBodyPart(2).setHeader("Content-Transfer-Encoding", type.getEncoding());
+            }
+        }
+
+        /**
+         * Encodes the labelled parts. Text parts are encoded by JavaMail when
+         * their label is removed. The <code>Message-ID:</code> is kept.
+         *
+         * @param encoded The returned message to attach in place of the
+         * original, or {@code null} if it is <code>7bit</code>.
+         * @throws MessagingException if the parts can not be encoded.
+         */
+        void encodeParts(final MimeMessage encoded) throws MessagingException {
+            MimeMultipart multipart = getParts();
+            if (multipart == null) {
+                return;
+            }
+            for (int i = 0; i < multipart.getCount(); i++) {
+                MimeBodyPart part = (MimeBodyPart) multipart.getBodyPart(i);
+                String encoding = part.getHeader("Content-Transfer-Encoding", null);
+                if (encoded != null && i == 2) {
+                    part.setContent(encoded, "message/rfc822");
+                } else if ("8bit".equalsIgnoreCase(encoding) || "binary".equalsIgnoreCase(encoding)) {
+                    part.removeHeader("Content-Transfer-Encoding");
+                }
+            }
+            String messageID = getHeader("Message-ID", null);
+            saveChanges();
+            if (messageID != null) {
+                setHeader("Message-ID", messageID);
+            }
+        }
+
+        private MimeMultipart getParts() throws MessagingException {
+            try {
+                Object content = getContent();
+                return content instanceof MimeMultipart ? (MimeMultipart) content : null;
+            } catch (IOException e) {
+                throw new MessagingException("Unable to read the parts of the report.", e);
+            }
+        }
+
+        /**
+         * The estimated bytes saved by sending the report without encoding
+         * its parts.
+         *
+         * @return the encoding overhead.
+         */
+        long getEncodingOverhead() {
+            return encodingOverhead;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+            long start = System.nanoTime();
+            CountingOutputStream out = new CountingOutputStream(os);
+            writeReport(out, ignoreList);
+            PipelineMetrics.getDefault().serialized(System.nanoTime() - start, out.count);
+        }
+
+        /**
+         * Writes the report.
+         *
+         * @param os The stream to write to.
+         * @param ignoreList The headers which are not written.
+         * @throws IOException if the report can not be written.
+         * @throws MessagingException if the report can not be serialized.
+         */
+        void writeReport(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+            super.writeTo(os, ignoreList);
+        }
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
     }
 
 }
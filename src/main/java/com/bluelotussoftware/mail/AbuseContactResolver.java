@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+/**
+ * Determines the address an ARF report is sent to from the domain of the
+ * sender, and the source IP address of the message being reported.
+ * Implementations must be safe for use by multiple threads.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ * @see MappedAbuseContactResolver
+ * @see CachingAbuseContactResolver
+ */
+public interface AbuseContactResolver {
+
+    /**
+     * Determines the abuse contact for a message.
+     *
+     * @param senderDomain The domain of the sender, which may be {@code null}.
+     * @param sourceIP The source IP address of the message, which may be
+     * {@code null}.
+     * @return the abuse address, or {@code null} if it can not be determined.
+     */
+    String resolve(String senderDomain, String sourceIP);
+
+    /**
+     * Determines the abuse contact for a message from the domain of the
+     * sender alone, if it does not depend on the source IP address. This
+     * allows the contact to be cached by domain. The default returns
+     * {@code null}, i.e. the contact always depends on the source IP address.
+     *
+     * @param senderDomain The domain of the sender, which may be {@code null}.
+     * @return the abuse address which {@link #resolve(java.lang.String, java.lang.String)}
+     * returns for every source IP address, or {@code null} if it may depend on
+     * the source IP address.
+     */
+    default String resolveDomain(final String senderDomain) {
+        return null;
+    }
+}
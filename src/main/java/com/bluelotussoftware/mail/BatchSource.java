@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Resolves the batch argument provided to {@link ARF} into the messages to be
+ * reported. The argument may be one of the following:
+ * <ul>
+ * <li>a Maildir; every message in its <code>new</code>, and <code>cur</code>
+ * directories, and in those of its Maildir++ folders, is reported,</li>
+ * <li>a directory; every regular file below it is a message,</li>
+ * <li>a glob such as <code>spool/*.eml</code>,</li>
+ * <li>an mbox file containing many messages, or</li>
+ * <li><code>-</code> to read a list of paths, one per line, from
+ * {@code System.in}.</li>
+ * </ul>
+ * Any file which begins with an mbox <code>From </code> separator line is split
+ * into its individual messages as the batch is read, so an mbox of any size is
+ * never held in memory. A Maildir is listed one directory at a time, skipping
+ * <code>tmp</code>, which holds messages still being delivered, and the
+ * metadata files kept by mail servers, such as <code>dovecot-uidlist</code>.
+ * <p>
+ * When the files are memory-mapped each message is a
+ * {@link MappedMessageSource}, and mbox files are split over the mapping by a
+ * {@link MappedMboxReader}, so the messages are parsed without being copied
+ * into the heap.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class BatchSource implements Iterator<MessageSource>, Closeable {
+
+    /**
+     * The argument used to read a list of paths from {@code System.in}.
+     */
+    public static final String STDIN = "-";
+
+    private final Iterator<Path> paths;
+    private final Closeable pathResource;
+    private final boolean mapped;
+    private Iterator<MessageSource> mbox;
+    private Closeable mboxResource;
+    private MessageSource next;
+
+    /**
+     * Constructor.
+     *
+     * @param argument A Maildir, directory, glob, mbox, file, or <code>-</code>.
+     * @throws IOException if the argument can not be resolved.
+     */
+    public BatchSource(final String argument) throws IOException {
+        this(argument, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param argument A Maildir, directory, glob, mbox, file, or <code>-</code>.
+     * @param mapped {@code true} to memory-map the files.
+     * @throws IOException if the argument can not be resolved.
+     */
+    public BatchSource(final String argument, final boolean mapped) throws IOException {
+        this.mapped = mapped;
+        if (STDIN.equals(argument)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, Charset.defaultCharset()));
+            paths = reader.lines()
+                    .map(String::trim)
+                    .filter(s -> !s.isEmpty())
+                    .map(Paths::get)
+                    .iterator();
+            pathResource = reader;
+        } else if (isGlob(argument)) {
+            paths = glob(argument).iterator();
+            pathResource = null;
+        } else {
+            Path path = Paths.get(argument);
+            if (isMaildir(path)) {
+                Stream<Path> stream = maildir(path);
+                paths = stream.iterator();
+                pathResource = stream::close;
+            } else if (Files.isDirectory(path)) {
+                paths = walk(path).iterator();
+                pathResource = null;
+            } else if (Files.isRegularFile(path)) {
+                paths = Stream.of(path).iterator();
+                pathResource = null;
+            } else {
+                throw new IOException("No such file or directory: " + argument);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (mbox != null) {
+                    if (mbox.hasNext()) {
+                        next = mbox.next();
+                        break;
+                    }
+                    mboxResource.close();
+                    mbox = null;
+                }
+                if (!paths.hasNext()) {
+                    break;
+                }
+                next = open(paths.next());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageSource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MessageSource result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (mbox != null) {
+            mboxResource.close();
+        }
+        if (pathResource != null) {
+            pathResource.close();
+        }
+    }
+
+    /**
+     * Opens a single file. If the file is an mbox, the messages are read from
+     * it in subsequent calls.
+     *
+     * @return the file as a message, or {@code null} if it is an mbox.
+     */
+    private MessageSource open(final Path path) throws IOException {
+        if (mapped) {
+            MappedMessageSource source = new MappedMessageSource(path);
+            if (MboxReader.isMbox(source.openStream())) {
+                MappedMboxReader reader = new MappedMboxReader(path);
+                mbox = reader;
+                mboxResource = reader;
+                return null;
+            }
+            return source;
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(path.toFile()));
+        boolean isMbox;
+        try {
+            isMbox = MboxReader.isMbox(is);
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        if (isMbox) {
+            MboxReader reader = new MboxReader(path.toString(), is);
+            mbox = reader;
+            mboxResource = reader;
+            return null;
+        }
+        is.close();
+        return new FileMessageSource(path);
+    }
+
+    private static boolean isGlob(final String argument) {
+        for (char c : argument.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expands a glob. The directory walked is the longest leading part of the
+     * glob which contains no wildcards.
+     */
+    private static Stream<Path> glob(final String argument) throws IOException {
+        String separator = FileSystems.getDefault().getSeparator();
+        int wildcard = 0;
+        while (!isGlob(argument.substring(0, wildcard + 1))) {
+            wildcard++;
+        }
+        int end = argument.lastIndexOf(separator, wildcard);
+        Path base = end < 0 ? Paths.get(".") : Paths.get(end == 0 ? separator : argument.substring(0, end));
+        String pattern = end < 0 ? argument : argument.substring(end + separator.length());
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        return walk(base).filter(p -> matcher.matches(base.relativize(p)));
+    }
+
+    /**
+     * Determines if a directory is a Maildir, i.e. it contains both
+     * <code>cur</code>, and <code>new</code> directories.
+     *
+     * @param directory The directory to examine.
+     * @return {@code true} if the directory is a Maildir.
+     */
+    static boolean isMaildir(final Path directory) {
+        return Files.isDirectory(directory.resolve("cur")) && Files.isDirectory(directory.resolve("new"));
+    }
+
+    /**
+     * Lists the messages of a Maildir, followed by those of its Maildir++
+     * folders. The <code>new</code>, and <code>cur</code> directories are only
+     * listed when the messages before them have been read.
+     */
+    private static Stream<Path> maildir(final Path maildir) throws IOException {
+        List<Path> folders = new ArrayList<>();
+        folders.add(maildir);
+        try (Stream<Path> children = Files.list(maildir)) {
+            children.filter(p -> p.getFileName().toString().startsWith("."))
+                    .filter(BatchSource::isMaildir)
+                    .sorted()
+                    .forEach(folders::add);
+        }
+        return folders.stream()
+                .flatMap(folder -> Stream.of(folder.resolve("new"), folder.resolve("cur")))
+                .flatMap(BatchSource::messages);
+    }
+
+    /**
+     * Lists the messages in a Maildir <code>new</code>, or <code>cur</code>
+     * directory. Maildir names begin with the time of delivery, so they are
+     * sorted into the order they were received.
+     */
+    private static Stream<Path> messages(final Path directory) {
+        try {
+            return Files.list(directory)
+                    .filter(p -> !p.getFileName().toString().startsWith("."))
+                    .filter(Files::isRegularFile)
+                    .sorted();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Stream<Path> walk(final Path directory) throws IOException {
+        try (Stream<Path> stream = Files.walk(directory)) {
+            return stream.filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(Collectors.toList())
+                    .stream();
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the results of a batch run and prints a summary of the throughput
+ * and failures.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class BatchSummary {
+
+    /**
+     * The maximum number of individual failures listed in the summary.
+     */
+    private static final int MAX_FAILURES_LISTED = 25;
+
+    private final long start = System.nanoTime();
+    private final List<String> failures = new ArrayList<>();
+    private long elapsed = -1;
+    private int succeeded;
+    private int aggregated;
+    private int duplicates;
+    private int failed;
+
+    /**
+     * Records a report which was sent successfully.
+     */
+    public synchronized void success() {
+        succeeded++;
+    }
+
+    /**
+     * Records a message which was reported as a copy in the report of another
+     * message.
+     */
+    public synchronized void aggregated() {
+        succeeded++;
+        aggregated++;
+    }
+
+    /**
+     * Records a message which was not reported because it had already been
+     * reported.
+     */
+    public synchronized void duplicate() {
+        duplicates++;
+    }
+
+    /**
+     * Records a message which could not be reported.
+     *
+     * @param name The name of the message.
+     * @param reason The reason the report failed.
+     */
+    public synchronized void failure(final String name, final String reason) {
+        failed++;
+        if (failures.size() < MAX_FAILURES_LISTED) {
+            failures.add(name + ": " + reason);
+        }
+    }
+
+    /**
+     * Stops the clock for the batch.
+     */
+    public synchronized void finish() {
+        elapsed = System.nanoTime() - start;
+    }
+
+    public synchronized int getSucceeded() {
+        return succeeded;
+    }
+
+    public synchronized int getAggregated() {
+        return aggregated;
+    }
+
+    public synchronized int getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized int getTotal() {
+        return succeeded + duplicates + failed;
+    }
+
+    /**
+     * Prints the summary.
+     *
+     * @param out The stream to print to.
+     */
+    public synchronized void print(final PrintStream out) {
+        long nanos = elapsed < 0 ? System.nanoTime() - start : elapsed;
+        double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        out.println("<--------------- Batch Summary ---------------->");
+        out.println(String.format("Messages:   %d", getTotal()));
+        out.println(String.format("Sent:       %d", succeeded));
+        if (aggregated > 0) {
+            out.println(String.format("Aggregated: %d (%d reports)", aggregated, succeeded - aggregated));
+        }
+        if (duplicates > 0) {
+            out.println(String.format("Duplicates: %d (already reported)", duplicates));
+        }
+        out.println(String.format("Failed:     %d", failed));
+        out.println(String.format("Elapsed:    %.3f s", seconds));
+        out.println(String.format("Throughput: %.1f messages/s", seconds > 0 ? getTotal() / seconds : 0.0));
+        if (!failures.isEmpty()) {
+            out.println("Failures:");
+            for (String f : failures) {
+                out.println("  " + f);
+            }
+            if (failed > failures.size()) {
+                out.println(String.format("  ... and %d more", failed - failures.size()));
+            }
+        }
+        out.println("<---------------------------------------------->");
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+/**
+ * The kind of data in a message, which determines if it may be sent without
+ * encoding, and the SMTP extension the server must support to accept it.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public enum BodyType {
+
+    /**
+     * US-ASCII lines of no more than 998 bytes, which may be sent to any SMTP
+     * server.
+     */
+    SEVEN_BIT("7bit", null),
+    /**
+     * Lines of no more than 998 bytes, some of which are not US-ASCII, which
+     * may be sent unencoded to a server supporting RFC-6152
+     * <code>8BITMIME</code>.
+     */
+    EIGHT_BIT("8bit", "8BITMIME"),
+    /**
+     * Data with <code>NUL</code> bytes, or longer lines, which may only be sent
+     * unencoded with RFC-3030 <code>BINARYMIME</code>, and
+     * <code>CHUNKING</code>.
+     */
+    BINARY("binary", "BINARYMIME");
+
+    private final String encoding;
+    private final String extension;
+
+    private BodyType(final String encoding, final String extension) {
+        this.encoding = encoding;
+        this.extension = extension;
+    }
+
+    /**
+     * The <code>Content-Transfer-Encoding:</code> of a part holding the data
+     * unencoded.
+     *
+     * @return the transfer encoding.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * The SMTP extension, and <code>BODY=</code> parameter of
+     * <code>MAIL FROM:</code> required to send the data unencoded.
+     *
+     * @return the extension, or {@code null} if none is required.
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * The type of data which combines this, and another.
+     *
+     * @param other The other type.
+     * @return the wider of the two types.
+     */
+    public BodyType max(final BodyType other) {
+        return other.ordinal() > ordinal() ? other : this;
+    }
+
+    /**
+     * The type requested by a <code>BODY=</code> parameter.
+     *
+     * @param mailExtension The parameters of <code>MAIL FROM:</code>, which
+     * may be {@code null}.
+     * @return the type of the body, which is {@link #SEVEN_BIT} if no type is
+     * requested.
+     */
+    public static BodyType forMailExtension(final String mailExtension) {
+        if (mailExtension != null) {
+            for (String parameter : mailExtension.trim().split("\\s+")) {
+                if (parameter.regionMatches(true, 0, "BODY=", 0, 5)) {
+                    String value = parameter.substring(5);
+                    for (BodyType type : values()) {
+                        if (value.equalsIgnoreCase(type.extension)) {
+                            return type;
+                        }
+                    }
+                }
+            }
+        }
+        return SEVEN_BIT;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Determines the {@link BodyType} of the data written to it, which is
+ * discarded. It also estimates how much larger the lines which are not
+ * US-ASCII would be if they were encoded as <code>quoted-printable</code>,
+ * i.e. the bytes saved by sending them unencoded.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+final class BodyTypeScanner extends OutputStream {
+
+    /**
+     * The longest line which may be sent without <code>BINARYMIME</code>.
+     */
+    private static final int MAX_LINE_LENGTH = 998;
+    /**
+     * The longest line written by a <code>quoted-printable</code> encoder.
+     */
+    private static final int QP_LINE_LENGTH = 76;
+
+    private BodyType type = BodyType.SEVEN_BIT;
+    private int line;
+    private int encoded;
+    private boolean eightBit;
+    private long overhead;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) {
+        scan(b & 0xff);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        for (int i = off; i < off + len; i++) {
+            scan(b[i] & 0xff);
+        }
+    }
+
+    /**
+     * Scans a header line, whose characters each stand for a byte.
+     *
+     * @param header The header line, without its line terminator.
+     */
+    void writeLine(final String header) {
+        for (int i = 0; i < header.length(); i++) {
+            char c = header.charAt(i);
+            scan(c < 0x100 ? c : 0xff);
+        }
+        endLine();
+    }
+
+    /**
+     * Scans the rest of a stream, which is not closed.
+     *
+     * @param is The stream to scan.
+     * @throws IOException if the stream can not be read.
+     */
+    void scan(final InputStream is) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            write(buffer, 0, n);
+        }
+    }
+
+    private void scan(final int b) {
+        if (b == '\r' || b == '\n') {
+            endLine();
+            return;
+        }
+        line++;
+        if (b == 0 || line > MAX_LINE_LENGTH) {
+            type = BodyType.BINARY;
+        }
+        if (b >= 0x80) {
+            eightBit = true;
+            encoded += 3;
+            if (type == BodyType.SEVEN_BIT) {
+                type = BodyType.EIGHT_BIT;
+            }
+        } else {
+            encoded += b == '=' ? 3 : 1;
+        }
+    }
+
+    private void endLine() {
+        overhead += lineOverhead();
+        line = 0;
+        encoded = 0;
+        eightBit = false;
+    }
+
+    /**
+     * The type of the data scanned.
+     *
+     * @return the body type.
+     */
+    BodyType getBodyType() {
+        return type;
+    }
+
+    /**
+     * The estimated number of bytes the data would grow by if it were encoded.
+     *
+     * @return the encoding overhead, which is 0 if the data is US-ASCII.
+     */
+    long getEncodingOverhead() {
+        return overhead + lineOverhead();
+    }
+
+    private int lineOverhead() {
+        return eightBit ? encoded + 3 * (encoded / QP_LINE_LENGTH) - line : 0;
+    }
+
+}
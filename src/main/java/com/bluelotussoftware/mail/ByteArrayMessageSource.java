@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.InputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * A {@link MessageSource} backed by an in-memory copy of the raw message, e.g.
+ * a message which has been split out of an mbox file.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class ByteArrayMessageSource implements MessageSource {
+
+    private final String name;
+    private final byte[] content;
+    private final int offset;
+    private final int length;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name used to identify the message.
+     * @param content The raw message.
+     */
+    public ByteArrayMessageSource(final String name, final byte[] content) {
+        this(name, content, 0, content.length);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name The name used to identify the message.
+     * @param content A buffer containing the raw message.
+     * @param offset The offset of the message in the buffer.
+     * @param length The length of the message.
+     */
+    public ByteArrayMessageSource(final String name, final byte[] content, final int offset, final int length) {
+        this.name = name;
+        this.content = content;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stream returned is a {@link SharedByteArrayInputStream} so that
+     * {@link javax.mail.internet.MimeMessage} references the buffer rather
+     * than copying the message content.
+     * </p>
+     */
+    @Override
+    public InputStream openStream() {
+        return new SharedByteArrayInputStream(content, offset, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() {
+        return length;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * An {@link InputStream} which reads the remaining bytes of a
+ * {@link ByteBuffer}, e.g. a memory-mapped file, without copying them to the
+ * heap first. The buffer provided is not modified.
+ * <p>
+ * The stream is a {@link SharedInputStream}, so a
+ * {@link javax.mail.internet.MimeMessage} parsed from it, and its body parts,
+ * keep views of the buffer for their content rather than copying it.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class ByteBufferInputStream extends InputStream implements SharedInputStream {
+
+    private final ByteBuffer buffer;
+    private final int start;
+    private int mark;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer The buffer to read, from its position to its limit.
+     */
+    public ByteBufferInputStream(final ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+        this.start = this.buffer.position();
+        this.mark = start;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getPosition() {
+        return buffer.position() - start;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The new stream shares the buffer, and none of its content is copied.
+     * </p>
+     */
+    @Override
+    public InputStream newStream(final long start, final long end) {
+        if (start < 0) {
+            throw new IllegalArgumentException("start < 0");
+        }
+        ByteBuffer view = buffer.duplicate();
+        int limit = end == -1 ? buffer.limit() : (int) Math.min(buffer.limit(), this.start + end);
+        view.limit(limit);
+        view.position((int) Math.min(limit, this.start + start));
+        return new ByteBufferInputStream(view);
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        buffer.position(mark);
+    }
+
+}
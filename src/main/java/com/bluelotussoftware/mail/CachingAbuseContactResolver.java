@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the contacts found by another {@link AbuseContactResolver}, so that
+ * the copies of a spam campaign from the same sender are only resolved once.
+ * A contact which {@link AbuseContactResolver#resolveDomain(java.lang.String)}
+ * determines from the sender domain alone is cached by the domain, so a
+ * campaign sent from many source IP addresses is still resolved once. Other
+ * contacts are cached by the domain, and source IP address. The cache holds a
+ * bounded number of entries, evicting the least recently used, and each entry
+ * expires after a fixed time. Lookups which find no contact are cached as
+ * well.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class CachingAbuseContactResolver implements AbuseContactResolver {
+
+    /**
+     * The default number of entries held.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final AbuseContactResolver resolver;
+    private final long ttl;
+    private final Map<Key, CachedContact> cache;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * The inputs to a lookup, or only the sender domain for a lookup by
+     * domain.
+     */
+    private static final class Key {
+
+        private final String senderDomain;
+        private final String sourceIP;
+        private final boolean domainOnly;
+
+        private Key(final String senderDomain, final String sourceIP, final boolean domainOnly) {
+            this.senderDomain = senderDomain;
+            this.sourceIP = sourceIP;
+            this.domainOnly = domainOnly;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return domainOnly == other.domainOnly && Objects.equals(senderDomain, other.senderDomain)
+                    && Objects.equals(sourceIP, other.sourceIP);
+        }
+
+        @Override
+        public int hashCode() {
+            return (Objects.hashCode(senderDomain) * 31 + Objects.hashCode(sourceIP)) * 31 + (domainOnly ? 1 : 0);
+        }
+    }
+
+    /**
+     * A cached contact, and when it expires. The contact of a domain entry is
+     * {@code null} if it depends on the source IP address.
+     */
+    private static final class CachedContact {
+
+        private final String contact;
+        private final long expires;
+
+        private CachedContact(final String contact, final long expires) {
+            this.contact = contact;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param resolver The resolver whose contacts are cached.
+     * @param maxEntries The number of entries held.
+     * @param ttl The time an entry is held.
+     * @param unit The unit of the time to live.
+     */
+    public CachingAbuseContactResolver(final AbuseContactResolver resolver, final int maxEntries,
+            final long ttl, final TimeUnit unit) {
+        this.resolver = resolver;
+        this.ttl = unit.toNanos(ttl);
+        this.cache = new LinkedHashMap<Key, CachedContact>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CachedContact> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The delegate is called without holding a lock, so concurrent misses for
+     * the same sender may each resolve the contact.
+     * </p>
+     */
+    @Override
+    public String resolve(final String senderDomain, final String sourceIP) {
+        String domain = senderDomain == null ? null : senderDomain.toLowerCase(Locale.ROOT);
+        Key domainKey = new Key(domain, null, true);
+        Key key = new Key(domain, sourceIP, false);
+        long now = System.nanoTime();
+        CachedContact byDomain;
+        synchronized (cache) {
+            byDomain = get(domainKey, now);
+            if (byDomain != null && byDomain.contact != null) {
+                hits++;
+                return byDomain.contact;
+            }
+            if (byDomain != null) {
+                CachedContact entry = get(key, now);
+                if (entry != null) {
+                    hits++;
+                    return entry.contact;
+                }
+            }
+            misses++;
+        }
+        if (byDomain == null) {
+            String contact = resolver.resolveDomain(senderDomain);
+            synchronized (cache) {
+                cache.put(domainKey, new CachedContact(contact, now + ttl));
+            }
+            if (contact != null) {
+                return contact;
+            }
+        }
+        String contact = resolver.resolve(senderDomain, sourceIP);
+        synchronized (cache) {
+            cache.put(key, new CachedContact(contact, now + ttl));
+        }
+        return contact;
+    }
+
+    /**
+     * The entry for a key, if it has not expired.
+     */
+    private CachedContact get(final Key key, final long now) {
+        CachedContact entry = cache.get(key);
+        return entry != null && now - entry.expires < 0 ? entry : null;
+    }
+
+    /**
+     * The number of lookups answered from the cache.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * The number of lookups passed to the delegate.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    /**
+     * The number of entries removed to make room for others.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictions() {
+        synchronized (cache) {
+            return evictions;
+        }
+    }
+
+    /**
+     * The number of entries held.
+     *
+     * @return the size of the cache.
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of reporting a single message through the
+ * {@link ReportPipeline}.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class DeliveryResult {
+
+    private final String name;
+    private final String recipient;
+    private final Exception cause;
+    private final long elapsed;
+    private final boolean aggregated;
+    private final boolean duplicate;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the message which was reported.
+     * @param recipient The abuse address the report was sent to, if known.
+     * @param cause The reason the report failed, or {@code null} if it was
+     * sent.
+     * @param elapsed The time taken in nanoseconds.
+     */
+    public DeliveryResult(final String name, final String recipient, final Exception cause, final long elapsed) {
+        this(name, recipient, cause, elapsed, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the message which was reported.
+     * @param recipient The abuse address the report was sent to, if known.
+     * @param cause The reason the report failed, or {@code null} if it was
+     * sent.
+     * @param elapsed The time taken in nanoseconds.
+     * @param aggregated {@code true} if the message was reported as a copy in
+     * the report of another message.
+     */
+    public DeliveryResult(final String name, final String recipient, final Exception cause, final long elapsed,
+            final boolean aggregated) {
+        this(name, recipient, cause, elapsed, aggregated, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the message which was reported.
+     * @param recipient The abuse address the report was sent to, if known.
+     * @param cause The reason the report failed, or {@code null} if it was
+     * sent.
+     * @param elapsed The time taken in nanoseconds.
+     * @param aggregated {@code true} if the message was reported as a copy in
+     * the report of another message.
+     * @param duplicate {@code true} if the message was not reported because it
+     * had already been reported.
+     */
+    public DeliveryResult(final String name, final String recipient, final Exception cause, final long elapsed,
+            final boolean aggregated, final boolean duplicate) {
+        this.name = name;
+        this.recipient = recipient;
+        this.cause = cause;
+        this.elapsed = elapsed;
+        this.aggregated = aggregated;
+        this.duplicate = duplicate;
+    }
+
+    /**
+     * The name of the message which was reported.
+     *
+     * @return the name of the message source.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The abuse address the report was sent to.
+     *
+     * @return the recipient of the report, or {@code null} if the message
+     * failed before it was determined.
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * Indicates if the report was sent.
+     *
+     * @return {@code true} if the report was sent successfully.
+     */
+    public boolean isSuccess() {
+        return cause == null;
+    }
+
+    /**
+     * Indicates if the message was a copy included in the
+     * <code>Incidents:</code> of the report of another message, rather than
+     * being reported on its own.
+     *
+     * @return {@code true} if the message was aggregated.
+     */
+    public boolean isAggregated() {
+        return aggregated;
+    }
+
+    /**
+     * Indicates if the message was not reported because it is in the
+     * {@link ReportedMessageIndex}.
+     *
+     * @return {@code true} if the message had already been reported.
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * The reason the report failed.
+     *
+     * @return the exception which caused the failure, or {@code null} if the
+     * report was sent.
+     */
+    public Exception getCause() {
+        return cause;
+    }
+
+    /**
+     * The time taken from submission to completion.
+     *
+     * @param unit The unit of the result.
+     * @return the elapsed time.
+     */
+    public long getElapsed(final TimeUnit unit) {
+        return unit.convert(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        if (duplicate && isSuccess()) {
+            return name + ": already reported";
+        }
+        return name + (isSuccess() ? (aggregated ? ": aggregated, sent to " : ": sent to ") + recipient
+                : ": " + cause);
+    }
+
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Schedules reports by the domain of their recipient, so that a single abuse
+ * mailbox is not flooded with reports. Each destination domain has a token
+ * bucket which limits the rate reports are sent to it, and a limit on the
+ * number of connections sending to it at once. Reports queued for the same
+ * domain are sent together, one after another, on a single connection.
+ * <p>
+ * Domains are served in turn, so a domain which is being throttled does not
+ * hold up reports to other domains. The number of reports queued is bounded;
+ * {@link #submit(MimeMessage)} blocks while the scheduler is full.
+ * </p>
+ * <p>
+ * A limit set for a domain also applies to its subdomains, which share the
+ * same token bucket. Domains without a limit of their own use the default
+ * limits.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class DestinationScheduler implements AutoCloseable {
+
+    /**
+     * The default number of reports queued before {@link #submit(MimeMessage)}
+     * blocks.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * The default number of reports sent on a connection at once.
+     */
+    public static final int DEFAULT_MAX_BATCH = 10;
+    private static final int MIN_EVICT_AT = 64;
+
+    /**
+     * Sends a batch of reports on a single connection.
+     */
+    public interface Delivery {
+
+        /**
+         * Sends the reports provided.
+         *
+         * @param messages The reports to send.
+         * @return the failure of each report, which is {@code null} for those
+         * which were sent.
+         * @throws MessagingException if none of the reports could be sent.
+         */
+        MessagingException[] deliver(List<MimeMessage> messages) throws MessagingException;
+    }
+
+    /**
+     * The limits applied to a destination.
+     */
+    private static final class Limit {
+
+        private final double rate;
+        private final int burst;
+        private final int maxInFlight;
+
+        private Limit(final double rate, final int burst, final int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("At least one connection must be permitted.");
+            }
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.maxInFlight = maxInFlight;
+        }
+
+        private boolean isUnlimited() {
+            return rate <= 0;
+        }
+    }
+
+    /**
+     * A report waiting to be sent.
+     */
+    private static final class Pending {
+
+        private final MimeMessage message;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private Destination destination;
+
+        private Pending(final MimeMessage message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * The queue, token bucket, and connections of a destination.
+     */
+    private static final class Destination {
+
+        private final String name;
+        private final Limit limit;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        private double tokens;
+        private long refilled;
+        private int inFlight;
+
+        private Destination(final String name, final Limit limit, final long now) {
+            this.name = name;
+            this.limit = limit;
+            this.tokens = limit.burst;
+            this.refilled = now;
+        }
+
+        private void refill(final long now) {
+            if (!limit.isUnlimited()) {
+                tokens = Math.min(limit.burst, tokens + (now - refilled) * limit.rate / 1e9);
+                refilled = now;
+            }
+        }
+
+        /**
+         * The number of reports which may be sent now.
+         */
+        private int available() {
+            if (inFlight >= limit.maxInFlight) {
+                return 0;
+            }
+            return limit.isUnlimited() ? Integer.MAX_VALUE : (int) tokens;
+        }
+
+        /**
+         * The time until the next token is added.
+         */
+        private long untilToken() {
+            return (long) Math.ceil((1 - tokens) * 1e9 / limit.rate);
+        }
+    }
+
+    private final Delivery delivery;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Map<String, Limit> limits = new HashMap<>();
+    private final Map<String, Destination> destinations = new HashMap<>();
+    /**
+     * The destinations with queued reports, in the order they are served.
+     */
+    private final ArrayDeque<Destination> waiting = new ArrayDeque<>();
+    /**
+     * The number of destinations at which idle destinations are next evicted.
+     */
+    private int evictAt = MIN_EVICT_AT;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile Limit defaultLimit = new Limit(0, 1, 1);
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;
+    private int queued;
+    private long sent;
+    private long batches;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param delivery Sends each batch of reports.
+     * @param capacity The number of reports which may be queued.
+     */
+    public DestinationScheduler(final Delivery delivery, final int capacity) {
+        this.delivery = delivery;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the limits of destinations which do not have limits of their own.
+     * By default the rate is not limited, and one connection is used for each
+     * destination.
+     *
+     * @param rate The number of reports per second, or 0 for no limit.
+     * @param burst The number of reports which may be sent at once after the
+     * destination has been idle.
+     * @param maxInFlight The number of connections which may send to the
+     * destination at once.
+     */
+    public void setDefaultLimit(final double rate, final int burst, final int maxInFlight) {
+        this.defaultLimit = new Limit(rate, burst, maxInFlight);
+    }
+
+    /**
+     * Sets the limits of a domain, and its subdomains. This must be set
+     * before any report is submitted to the domain.
+     *
+     * @param domain The destination domain.
+     * @param rate The number of reports per second, or 0 for no limit.
+     * @param burst The number of reports which may be sent at once after the
+     * domain has been idle.
+     * @param maxInFlight The number of connections which may send to the
+     * domain at once.
+     */
+    public void setLimit(final String domain, final double rate, final int burst, final int maxInFlight) {
+        lock.lock();
+        try {
+            limits.put(domain.toLowerCase(Locale.ROOT), new Limit(rate, burst, maxInFlight));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of reports sent on a connection at once.
+     *
+     * @param maxBatch The number of reports. The default is
+     * {@value #DEFAULT_MAX_BATCH}.
+     */
+    public void setMaxBatch(final int maxBatch) {
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Starts the workers which send the reports.
+     *
+     * @param threads The number of workers, which should usually match the
+     * number of connections to the SMTP server.
+     */
+    public void start(final int threads) {
+        ThreadFactory factory = WorkerThreads.newThreadFactory("arf-destination");
+        for (int i = 0; i < threads; i++) {
+            Thread t = factory.newThread(this::work);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Queues a report to be sent. This blocks while the scheduler is full.
+     *
+     * @param message The report to send.
+     * @return a future which completes when the report has been sent, or has
+     * failed.
+     * @throws InterruptedException if interrupted while waiting for space.
+     */
+    public CompletableFuture<Void> submit(final MimeMessage message) throws InterruptedException {
+        Pending pending = new Pending(message);
+        String domain = getDomain(message);
+        lock.lockInterruptibly();
+        try {
+            while (queued >= capacity && !closed) {
+                notFull.await();
+            }
+            if (closed) {
+                throw new IllegalStateException("The scheduler is closed.");
+            }
+            Destination d = destinations.get(domain);
+            if (d == null) {
+                long now = System.nanoTime();
+                if (destinations.size() >= evictAt) {
+                    evictIdle(now);
+                    evictAt = Math.max(MIN_EVICT_AT, destinations.size() * 2);
+                }
+                d = new Destination(domain, getLimit(domain), now);
+                destinations.put(domain, d);
+            }
+            if (d.queue.isEmpty()) {
+                waiting.add(d);
+            }
+            d.queue.add(pending);
+            pending.destination = d;
+            queued++;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        return pending.result;
+    }
+
+    /**
+     * Forgets the destinations which are idle, and whose buckets have filled
+     * since their last report. A destination is only forgotten when its
+     * bucket is full, so that it is not given a new bucket before its rate
+     * allows. The destinations are checked when their number doubles, so the
+     * cost is spread over the destinations added.
+     */
+    private void evictIdle(final long now) {
+        Iterator<Destination> i = destinations.values().iterator();
+        while (i.hasNext()) {
+            Destination d = i.next();
+            if (d.inFlight == 0 && d.queue.isEmpty()) {
+                d.refill(now);
+                if (d.limit.isUnlimited() || d.tokens >= d.limit.burst) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The destination of a report is the domain of its first recipient. When
+     * the domain, or one of its parents has a limit set, the reports share that
+     * limit.
+     */
+    private String getDomain(final MimeMessage message) {
+        String domain = "";
+        try {
+            Address[] to = message.getRecipients(Message.RecipientType.TO);
+            if (to == null || to.length == 0) {
+                to = message.getAllRecipients();
+            }
+            if (to != null && to.length > 0 && to[0] instanceof InternetAddress) {
+                String address = ((InternetAddress) to[0]).getAddress();
+                int at = address == null ? -1 : address.lastIndexOf('@');
+                if (at >= 0) {
+                    domain = address.substring(at + 1).toLowerCase(Locale.ROOT);
+                }
+            }
+        } catch (MessagingException e) {
+            // The report is scheduled with the default limits.
+        }
+        lock.lock();
+        try {
+            String d = domain;
+            while (!d.isEmpty()) {
+                if (limits.containsKey(d)) {
+                    return d;
+                }
+                int dot = d.indexOf('.');
+                if (dot < 0) {
+                    break;
+                }
+                d = d.substring(dot + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return domain;
+    }
+
+    private Limit getLimit(final String domain) {
+        Limit limit = limits.get(domain);
+        return limit == null ? defaultLimit : limit;
+    }
+
+    private void work() {
+        try {
+            List<Pending> batch;
+            while ((batch = next()) != null) {
+                deliver(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a destination which may be sent to, and takes a batch of its
+     * reports. The destinations are served in turn.
+     *
+     * @return the next batch, or {@code null} once the scheduler is closed,
+     * and every report has been taken.
+     */
+    private List<Pending> next() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (closed && queued == 0) {
+                    return null;
+                }
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (int i = waiting.size(); i > 0; i--) {
+                    Destination d = waiting.poll();
+                    d.refill(now);
+                    int n = Math.min(Math.min(d.available(), maxBatch), d.queue.size());
+                    if (n > 0) {
+                        if (n < d.queue.size()) {
+                            waiting.add(d);
+                        }
+                        return take(d, n);
+                    }
+                    waiting.add(d);
+                    if (d.inFlight < d.limit.maxInFlight) {
+                        wait = Math.min(wait, d.untilToken());
+                    }
+                }
+                if (wait == Long.MAX_VALUE) {
+                    ready.await();
+                } else {
+                    ready.awaitNanos(wait);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Pending> take(final Destination d, final int n) {
+        List<Pending> batch = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            batch.add(d.queue.poll());
+        }
+        if (!d.limit.isUnlimited()) {
+            d.tokens -= n;
+        }
+        d.inFlight++;
+        queued -= n;
+        batches++;
+        notFull.signalAll();
+        return batch;
+    }
+
+    private void deliver(final List<Pending> batch) throws InterruptedException {
+        List<MimeMessage> messages = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            messages.add(p.message);
+        }
+        MessagingException[] failures;
+        try {
+            failures = delivery.deliver(messages);
+        } catch (MessagingException e) {
+            failures = new MessagingException[batch.size()];
+            Arrays.fill(failures, e);
+        } catch (RuntimeException e) {
+            failures = new MessagingException[batch.size()];
+            Arrays.fill(failures, new MessagingException(e.toString(), e));
+        }
+        Destination d = batch.get(0).destination;
+        lock.lockInterruptibly();
+        try {
+            d.inFlight--;
+            if (d.inFlight == 0 && d.queue.isEmpty()) {
+                // An idle destination is forgotten once its bucket is full, or later by evictIdle.
+                d.refill(System.nanoTime());
+                if (d.limit.isUnlimited() || d.tokens >= d.limit.burst) {
+                    destinations.remove(d.name);
+                }
+            }
+            for (MessagingException f : failures) {
+                if (f == null) {
+                    sent++;
+                }
+            }
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (failures[i] == null) {
+                batch.get(i).result.complete(null);
+            } else {
+                batch.get(i).result.completeExceptionally(failures[i]);
+            }
+        }
+    }
+
+    /**
+     * The number of reports waiting to be sent.
+     *
+     * @return the number of queued reports.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of reports which have been sent.
+     *
+     * @return the number of reports sent.
+     */
+    public long getSent() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of batches taken, each of which was sent on a single
+     * connection.
+     *
+     * @return the number of batches.
+     */
+    public long getBatches() {
+        lock.lock();
+        try {
+            return batches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every queued report to be sent, and stops the workers.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            ready.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * A {@link MessageSource} which reads a single raw message from a file.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class FileMessageSource implements MessageSource {
+
+    private final Path path;
+
+    /**
+     * Constructor.
+     *
+     * @param path The file containing the raw message.
+     */
+    public FileMessageSource(final Path path) {
+        this.path = path;
+    }
+
+    /**
+     * The file containing the raw message.
+     *
+     * @return the path to the message.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return path.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(path.toFile()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() {
+        return path.toFile().length();
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * {@link InternetHeaders} which are looked up by name through an index, rather
+ * than by comparing the name of every header. The index is built from the
+ * header lines when a header is first looked up, and holds the lines, and the
+ * offsets of the end of their names in flat arrays, with an open addressing
+ * table keyed by the hash of the lower case name. Headers which appear more
+ * than once, such as <code>Received:</code>, are chained in the order they
+ * appear, so the order, and duplicates of the headers are preserved.
+ * <p>
+ * The values are returned as they appear in the message, as by
+ * {@link InternetHeaders}. {@link #getText(java.lang.String)} also unfolds,
+ * and decodes the RFC-2047 encoded words of a value, which is done only when
+ * it is first requested. Changing the headers discards the index, which is
+ * built again on the next lookup.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class HeaderIndex extends InternetHeaders {
+
+    private String[] lines;
+    private int[] nameEnds;
+    private int[] hashes;
+    private int[] next;
+    private int[] table;
+    private String[] texts;
+    private int size;
+
+    /**
+     * Constructor which reads the headers from the stream provided, up to, and
+     * including the blank line which ends them.
+     *
+     * @param is The stream containing the headers.
+     * @throws MessagingException if the headers can not be read.
+     */
+    public HeaderIndex(final InputStream is) throws MessagingException {
+        super(is);
+    }
+
+    /**
+     * The number of headers in the index.
+     *
+     * @return the number of headers.
+     */
+    public int size() {
+        index();
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getHeader(final String name) {
+        int i = first(name);
+        if (i < 0) {
+            return null;
+        }
+        int count = 0;
+        for (int j = i; j >= 0; j = next[j]) {
+            count++;
+        }
+        String[] values = new String[count];
+        count = 0;
+        for (int j = i; j >= 0; j = next[j]) {
+            values[count++] = value(j);
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getHeader(final String name, final String delimiter) {
+        int i = first(name);
+        if (i < 0) {
+            return null;
+        }
+        if (delimiter == null || next[i] < 0) {
+            return value(i);
+        }
+        StringBuilder sb = new StringBuilder(value(i));
+        for (int j = next[i]; j >= 0; j = next[j]) {
+            sb.append(delimiter).append(value(j));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The first value of a header, unfolded, and with any RFC-2047 encoded
+     * words decoded. A word which can not be decoded is left as it is.
+     *
+     * @param name The name of the header, which is matched ignoring case.
+     * @return the decoded value, or {@code null} if the header is not present.
+     */
+    public String getText(final String name) {
+        int i = first(name);
+        if (i < 0) {
+            return null;
+        }
+        if (texts == null) {
+            texts = new String[size];
+        }
+        if (texts[i] == null) {
+            String value = MimeUtility.unfold(value(i));
+            try {
+                texts[i] = MimeUtility.decodeText(value);
+            } catch (UnsupportedEncodingException e) {
+                texts[i] = value;
+            }
+        }
+        return texts[i];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setHeader(final String name, final String value) {
+        super.setHeader(name, value);
+        lines = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addHeader(final String name, final String value) {
+        super.addHeader(name, value);
+        lines = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeHeader(final String name) {
+        super.removeHeader(name);
+        lines = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addHeaderLine(final String line) {
+        super.addHeaderLine(line);
+        lines = null;
+    }
+
+    /**
+     * Finds the first header with the name provided.
+     *
+     * @return the position of the header, or -1 if it is not present.
+     */
+    private int first(final String name) {
+        index();
+        int length = name.length();
+        int hash = hash(name, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int i = table[slot] - 1;
+            if (hashes[i] == hash && nameEnds[i] == length && lines[i].regionMatches(true, 0, name, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds the index from the header lines, if it has not been built since
+     * they last changed.
+     */
+    private void index() {
+        if (lines != null) {
+            return;
+        }
+        String[] l = new String[16];
+        int n = 0;
+        for (Enumeration<?> e = getAllHeaderLines(); e.hasMoreElements();) {
+            if (n == l.length) {
+                l = Arrays.copyOf(l, n * 2);
+            }
+            l[n++] = (String) e.nextElement();
+        }
+        nameEnds = new int[n];
+        hashes = new int[n];
+        next = new int[n];
+        table = new int[Integer.highestOneBit(Math.max(n, 4)) << 2];
+        texts = null;
+        int[] last = new int[n];
+        int mask = table.length - 1;
+        for (int i = 0; i < n; i++) {
+            String line = l[i];
+            int colon = line.indexOf(':');
+            int end = colon < 0 ? line.length() : colon;
+            while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            nameEnds[i] = end;
+            hashes[i] = hash(line, end);
+            next[i] = -1;
+            int slot = hashes[i] & mask;
+            while (table[slot] != 0) {
+                int j = table[slot] - 1;
+                if (hashes[j] == hashes[i] && nameEnds[j] == end && line.regionMatches(true, 0, l[j], 0, end)) {
+                    next[last[j]] = i;
+                    last[j] = i;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                table[slot] = i + 1;
+                last[i] = i;
+            }
+        }
+        size = n;
+        lines = l;
+    }
+
+    /**
+     * The value of a header, as returned by {@link InternetHeaders}, i.e.
+     * everything after the colon, and any whitespace which follows it.
+     */
+    private String value(final int i) {
+        String line = lines[i];
+        int colon = line.indexOf(':', nameEnds[i]);
+        if (colon < 0) {
+            return line;
+        }
+        int start = colon + 1;
+        while (start < line.length()) {
+            char c = line.charAt(start);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            start++;
+        }
+        return line.substring(start);
+    }
+
+    /**
+     * The hash of the first characters of a name, ignoring case as
+     * {@link String#regionMatches(boolean, int, java.lang.String, int, int)}
+     * does.
+     */
+    private static int hash(final String s, final int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            } else if (c >= 0x80) {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+}
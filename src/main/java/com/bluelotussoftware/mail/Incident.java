@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.bluelotussoftware.mail.arf.Utils;
+import java.util.Date;
+
+/**
+ * Copies of the same spam which are reported together in a single ARF report
+ * with an <code>Incidents:</code> field. The first message received is
+ * returned in the report.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ * @see IncidentAggregator
+ */
+public class Incident {
+
+    private final IncidentFingerprint fingerprint;
+    private final ParsedMessage message;
+    private int count;
+    private long firstArrival;
+    private long lastArrival;
+    private String firstArrivalDate;
+    private String lastArrivalDate;
+
+    /**
+     * Constructor.
+     *
+     * @param fingerprint The fingerprint shared by the messages.
+     * @param message The first message received.
+     * @param arrival The time the message arrived in milliseconds.
+     */
+    Incident(final IncidentFingerprint fingerprint, final ParsedMessage message, final long arrival) {
+        this.fingerprint = fingerprint;
+        this.message = message;
+        this.count = 1;
+        this.firstArrival = arrival;
+        this.lastArrival = arrival;
+        this.firstArrivalDate = arrivalDate(message, arrival);
+        this.lastArrivalDate = firstArrivalDate;
+    }
+
+    /**
+     * Adds a copy of the message to the incident.
+     *
+     * @param duplicate The copy received.
+     * @param arrival The time the copy arrived in milliseconds.
+     */
+    void add(final ParsedMessage duplicate, final long arrival) {
+        count++;
+        if (arrival < firstArrival) {
+            firstArrival = arrival;
+            firstArrivalDate = arrivalDate(duplicate, arrival);
+        }
+        if (arrival > lastArrival) {
+            lastArrival = arrival;
+            lastArrivalDate = arrivalDate(duplicate, arrival);
+        }
+    }
+
+    /**
+     * The date a copy was received. The arrival is only known if the copy
+     * has a <code>Received:</code> header, as the <code>Date:</code> is set by
+     * the sender.
+     */
+    private static String arrivalDate(final ParsedMessage message, final long arrival) {
+        return message.getReceivedDate() == null ? null : Utils.formatDate(new Date(arrival));
+    }
+
+    /**
+     * The fingerprint shared by the messages.
+     *
+     * @return the fingerprint of the incident.
+     */
+    public IncidentFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * The first message received, which is returned in the report.
+     *
+     * @return the first message.
+     */
+    public ParsedMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * The number of copies received.
+     *
+     * @return the number of incidents.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    long getFirstArrival() {
+        return firstArrival;
+    }
+
+    long getLastArrival() {
+        return lastArrival;
+    }
+
+    /**
+     * The date the earliest copy was received, from its first
+     * <code>Received:</code> header.
+     *
+     * @return the first arrival date, or {@code null} if it is not known.
+     */
+    public String getFirstArrivalDate() {
+        return firstArrivalDate;
+    }
+
+    /**
+     * The date the latest copy was received, from its first
+     * <code>Received:</code> header.
+     *
+     * @return the last arrival date, or {@code null} if it is not known.
+     */
+    public String getLastArrivalDate() {
+        return lastArrivalDate;
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+
+/**
+ * Collapses copies of the same spam into a single {@link Incident}. Messages
+ * with the same {@link IncidentFingerprint} are aggregated while the
+ * difference between the first, and last arrival is within the window. The
+ * arrival of a message is the date of its first <code>Received:</code>
+ * header, which is added by the receiving server, so a sender can not move it
+ * by forging the <code>Date:</code> header. A date later than the time the
+ * message is added is taken as that time. A message without a received date
+ * is taken to arrive at the latest arrival seen, and does not move it, so it
+ * can not close the open incidents.
+ * <p>
+ * An incident is closed when a copy arrives outside its window, or when the
+ * latest arrival seen by the aggregator is more than the window after the
+ * first arrival of the incident. Closed incidents are returned by
+ * {@link #drainClosed()} to be reported. The incidents which remain open are
+ * returned by {@link #flush()}.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class IncidentAggregator {
+
+    private final long window;
+    private final Map<IncidentFingerprint, Incident> open = new LinkedHashMap<>();
+    private final List<Incident> closed = new ArrayList<>();
+    private long latestArrival = Long.MIN_VALUE;
+    private Incident last;
+
+    /**
+     * Constructor.
+     *
+     * @param window The time within which copies are aggregated.
+     * @param unit The unit of the window.
+     */
+    public IncidentAggregator(final long window, final TimeUnit unit) {
+        this.window = unit.toMillis(window);
+    }
+
+    /**
+     * Adds a message to the incident with the same fingerprint, or opens a new
+     * incident.
+     *
+     * @param message The message received.
+     * @return {@code true} if the message opened a new incident, or
+     * {@code false} if it is a copy of a message already added.
+     * @throws MessagingException if the message can not be parsed.
+     * @throws IOException if the body of the message can not be read.
+     */
+    public boolean add(final ParsedMessage message) throws MessagingException, IOException {
+        return add(message, IncidentFingerprint.of(message));
+    }
+
+    /**
+     * Adds a message whose fingerprint has already been computed. The
+     * fingerprint digests the whole body, so computing it before calling this
+     * keeps it outside the lock of the aggregator.
+     *
+     * @param message The message received.
+     * @param fingerprint The fingerprint of the message.
+     * @return {@code true} if the message opened a new incident, or
+     * {@code false} if it is a copy of a message already added.
+     */
+    public synchronized boolean add(final ParsedMessage message, final IncidentFingerprint fingerprint) {
+        Date received = message.getReceivedDate();
+        long arrival;
+        if (received != null) {
+            arrival = Math.min(received.getTime(), System.currentTimeMillis());
+            latestArrival = Math.max(latestArrival, arrival);
+        } else {
+            arrival = latestArrival == Long.MIN_VALUE ? System.currentTimeMillis() : latestArrival;
+        }
+
+        Incident incident = open.get(fingerprint);
+        if (incident != null && (Math.max(incident.getLastArrival(), arrival)
+                - Math.min(incident.getFirstArrival(), arrival) > window)) {
+            open.remove(fingerprint);
+            closed.add(incident);
+            incident = null;
+        }
+        boolean opened = incident == null;
+        if (opened) {
+            incident = new Incident(fingerprint, message, arrival);
+            open.put(fingerprint, incident);
+        } else {
+            incident.add(message, arrival);
+        }
+        last = incident;
+        expire();
+        return opened;
+    }
+
+    /**
+     * Closes the incidents, oldest first, whose first arrival is outside the
+     * window of the latest arrival.
+     */
+    private void expire() {
+        Iterator<Incident> i = open.values().iterator();
+        while (i.hasNext()) {
+            Incident incident = i.next();
+            if (incident == last || latestArrival - incident.getFirstArrival() <= window) {
+                break;
+            }
+            i.remove();
+            closed.add(incident);
+        }
+    }
+
+    /**
+     * The incident to which the last message added belongs.
+     *
+     * @return the last incident, or {@code null} if no message was added.
+     */
+    public synchronized Incident getLastIncident() {
+        return last;
+    }
+
+    /**
+     * Removes, and returns the incidents closed since this was last called.
+     *
+     * @return the closed incidents which are ready to be reported.
+     */
+    public synchronized List<Incident> drainClosed() {
+        if (closed.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<Incident> result = new ArrayList<>(closed);
+        closed.clear();
+        return result;
+    }
+
+    /**
+     * Closes every incident, and returns those which have not been drained.
+     *
+     * @return every incident which has not been reported.
+     */
+    public synchronized List<Incident> flush() {
+        closed.addAll(open.values());
+        open.clear();
+        last = null;
+        return drainClosed();
+    }
+
+    /**
+     * The number of incidents which are open.
+     *
+     * @return the number of open incidents.
+     */
+    public synchronized int size() {
+        return open.size();
+    }
+
+}
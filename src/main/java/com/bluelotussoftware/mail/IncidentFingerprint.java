@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Identifies copies of the same spam. Two messages have the same fingerprint
+ * when they were received from the same source IP address, have the same
+ * envelope sender, and have the same subject, and body once normalized.
+ * <p>
+ * The subject is normalized by removing any <code>Re:</code>,
+ * <code>Fw:</code>, or <code>Fwd:</code> prefixes, folding the case, and
+ * collapsing white space. The body is normalized by folding the case of ASCII
+ * letters, and removing all white space, before it is digested with SHA-256.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public final class IncidentFingerprint {
+
+    private final String sourceIP;
+    private final String sender;
+    private final String subject;
+    private final byte[] bodyDigest;
+    private final int hash;
+
+    /**
+     * Constructor.
+     *
+     * @param sourceIP The source IP address of the message.
+     * @param sender The envelope sender of the message.
+     * @param subject The normalized subject of the message.
+     * @param bodyDigest The digest of the normalized body of the message.
+     */
+    public IncidentFingerprint(final String sourceIP, final String sender, final String subject,
+            final byte[] bodyDigest) {
+        this.sourceIP = sourceIP;
+        this.sender = sender;
+        this.subject = subject;
+        this.bodyDigest = bodyDigest.clone();
+        this.hash = Objects.hash(sourceIP, sender, subject) * 31 + Arrays.hashCode(bodyDigest);
+    }
+
+    /**
+     * Computes the fingerprint of a message. The body is read from the message
+     * source if only the headers were parsed.
+     *
+     * @param message The message to fingerprint.
+     * @return the fingerprint of the message.
+     * @throws MessagingException if the message can not be parsed.
+     * @throws IOException if the body can not be read.
+     */
+    public static IncidentFingerprint of(final ParsedMessage message) throws MessagingException, IOException {
+        return new IncidentFingerprint(message.getSourceIP(), getEnvelopeSender(message),
+                normalizeSubject(message.getSubject()), message.getBodyDigest());
+    }
+
+    /**
+     * The envelope sender is taken from the <code>Return-Path:</code> header
+     * added on final delivery, or the <code>From:</code> address if it is not
+     * present.
+     */
+    private static String getEnvelopeSender(final ParsedMessage message) throws MessagingException {
+        String returnPath = message.getHeaders().getHeader("Return-Path", null);
+        if (returnPath != null) {
+            String sender = returnPath.trim();
+            if (sender.startsWith("<") && sender.endsWith(">")) {
+                sender = sender.substring(1, sender.length() - 1).trim();
+            }
+            return sender.toLowerCase(Locale.ROOT);
+        }
+        Address[] from = message.getFrom();
+        if (from != null && from.length > 0 && from[0] instanceof InternetAddress) {
+            String address = ((InternetAddress) from[0]).getAddress();
+            return address == null ? null : address.toLowerCase(Locale.ROOT);
+        }
+        return null;
+    }
+
+    /**
+     * Normalizes a subject line for comparison.
+     *
+     * @param subject The subject of a message.
+     * @return the normalized subject, or an empty string if there is no
+     * subject.
+     */
+    static String normalizeSubject(final String subject) {
+        if (subject == null) {
+            return "";
+        }
+        String s = subject.trim();
+        boolean prefix = true;
+        while (prefix) {
+            prefix = false;
+            for (String p : new String[]{"re:", "fw:", "fwd:"}) {
+                if (s.regionMatches(true, 0, p, 0, p.length())) {
+                    s = s.substring(p.length()).trim();
+                    prefix = true;
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Digests the body of a message, ignoring white space, and the case of
+     * ASCII letters. The digest of a message is cached by
+     * {@link ParsedMessage#getBodyDigest()}, which should be used instead.
+     *
+     * @param message The message to digest.
+     * @param copy A stream the raw body is also written to as it is read, or
+     * {@code null}.
+     * @return the SHA-256 digest of the normalized body.
+     * @throws MessagingException if the body can not be located.
+     * @throws IOException if the body can not be read.
+     */
+    static byte[] digestBody(final ParsedMessage message, final OutputStream copy)
+            throws MessagingException, IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream is = message.getBody()) {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                if (copy != null) {
+                    copy.write(buffer, 0, n);
+                }
+                int length = 0;
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                        continue;
+                    }
+                    if (b >= 'A' && b <= 'Z') {
+                        b += 'a' - 'A';
+                    }
+                    buffer[length++] = b;
+                }
+                digest.update(buffer, 0, length);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * The source IP address of the message.
+     *
+     * @return the source IP address, or {@code null} if it is not known.
+     */
+    public String getSourceIP() {
+        return sourceIP;
+    }
+
+    /**
+     * The envelope sender of the message in lower case.
+     *
+     * @return the envelope sender, or {@code null} if it is not known.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * The normalized subject of the message.
+     *
+     * @return the normalized subject.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IncidentFingerprint)) {
+            return false;
+        }
+        IncidentFingerprint other = (IncidentFingerprint) obj;
+        return hash == other.hash
+                && Objects.equals(sourceIP, other.sourceIP)
+                && Objects.equals(sender, other.sender)
+                && subject.equals(other.subject)
+                && Arrays.equals(bodyDigest, other.bodyDigest);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return sourceIP + " " + sender + " \"" + subject + "\"";
+    }
+
+}
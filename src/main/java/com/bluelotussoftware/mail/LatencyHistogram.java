@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with fixed bucket bounds from 50 microseconds to
+ * one minute. Recording is lock free, and does not allocate, so it may be
+ * called from every worker on the hot path.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+    /**
+     * The upper bound of each bucket in seconds. A final bucket holds the
+     * latencies above the last bound.
+     */
+    static final double[] BOUNDS = {
+        0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+        0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(final long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * The number of latencies recorded.
+     *
+     * @return the count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * The sum of the latencies recorded.
+     *
+     * @return the sum in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * The number of latencies recorded in a bucket.
+     *
+     * @param bucket The index of the bucket; the bucket at
+     * <code>BOUNDS.length</code> holds the latencies above the last bound.
+     * @return the count of the bucket.
+     */
+    long getBucket(final int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Estimates a quantile of the latencies, by interpolating within the bucket
+     * in which it falls.
+     *
+     * @param quantile The quantile between 0, and 1, e.g. 0.99.
+     * @return the estimated latency in seconds, or 0 if nothing was recorded.
+     */
+    public double getQuantile(final double quantile) {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double rank = quantile * total;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0 && seen + counts[i] >= rank) {
+                if (i == BOUNDS.length) {
+                    return BOUNDS[BOUNDS.length - 1];
+                }
+                double lower = i == 0 ? 0 : BOUNDS[i - 1];
+                return lower + (BOUNDS[i] - lower) * (rank - seen) / counts[i];
+            }
+            seen += counts[i];
+        }
+        return BOUNDS[BOUNDS.length - 1];
+    }
+
+    /**
+     * The mean of the latencies recorded.
+     *
+     * @return the mean in seconds, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n / TimeUnit.SECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Sends ARF reports built from a corpus of sample messages at a target rate,
+ * in order to measure the capacity of a system receiving abuse reports.
+ * <p>
+ * The reports are generated once, before the run, and each is replayed with a
+ * new <code>Message-ID:</code> so that the receiver sees distinct reports.
+ * Samples which are already ARF reports are replayed as they are.
+ * </p>
+ * <p>
+ * At a target rate the reports are scheduled open-loop: each report has an
+ * intended start time fixed by the rate, and its latency is measured from that
+ * time rather than from when it was actually sent. A receiver which stalls
+ * therefore shows the delay of every report which queued behind it, rather
+ * than hiding it by slowing the generator down, i.e. the measurement does not
+ * suffer from coordinated omission. The number of reports in flight is
+ * limited by the number of connections of the {@link SMTPSender}. With a rate
+ * of 0 the generator runs closed-loop, each connection sending one report
+ * after another as fast as the receiver accepts them.
+ * </p>
+ * <p>
+ * Latencies are recorded in an HdrHistogram, and reported with the replies by
+ * SMTP reply code periodically, and at the end of the run.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class LoadGenerator {
+
+    /**
+     * The reply code recorded for a report which the server accepted.
+     */
+    private static final int ACCEPTED = 250;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final SMTPSender smtp;
+    private final List<Sample> reports = new ArrayList<>();
+    private double rate;
+    private int concurrency = 1;
+    private long duration = TimeUnit.SECONDS.toNanos(60);
+    private long reportInterval = TimeUnit.SECONDS.toNanos(10);
+    private ReturnedContent returnedContent = ReturnedContent.FULL;
+    private long maxBodyLength = ARFMessage.DEFAULT_MAX_BODY_LENGTH;
+
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private final ConcurrentMap<Integer, LongAdder> replies = new ConcurrentHashMap<>();
+    private final AtomicLong next = new AtomicLong();
+    private long intervalStart;
+    private long runStart;
+
+    /**
+     * Constructor.
+     *
+     * @param smtp The sender used to send the reports.
+     */
+    public LoadGenerator(final SMTPSender smtp) {
+        this.smtp = smtp;
+    }
+
+    /**
+     * Sets the number of reports sent per second. With a rate of 0 each
+     * connection sends reports one after another.
+     *
+     * @param rate The target rate.
+     */
+    public void setRate(final double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Sets the number of reports which may be sent at once. This should be
+     * the number of connections of the {@link SMTPSender}.
+     *
+     * @param concurrency The number of reports in flight. The default is 1.
+     */
+    public void setConcurrency(final int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Sets how long the load is generated for.
+     *
+     * @param duration The duration of the run. The default is 60 seconds.
+     * @param unit The unit of the duration.
+     */
+    public void setDuration(final long duration, final TimeUnit unit) {
+        this.duration = unit.toNanos(duration);
+    }
+
+    /**
+     * Sets how often the progress of the run is reported.
+     *
+     * @param interval The interval between reports, or 0 to only report at
+     * the end of the run. The default is 10 seconds.
+     * @param unit The unit of the interval.
+     */
+    public void setReportInterval(final long interval, final TimeUnit unit) {
+        this.reportInterval = unit.toNanos(interval);
+    }
+
+    /**
+     * Sets how much of each sample is returned in the reports.
+     *
+     * @param returnedContent The returned content.
+     * @param maxBodyLength The number of bytes of the body returned when the
+     * sample is truncated.
+     */
+    public void setReturnedContent(final ReturnedContent returnedContent, final long maxBodyLength) {
+        this.returnedContent = returnedContent;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * Adds a sample message, from which a report is generated. A sample which
+     * is already a <code>multipart/report</code> is replayed as it is.
+     *
+     * @param source The sample message.
+     * @param abuseEmailAddress The address reports are sent to, or
+     * {@code null} to send them to <code>abuse@</code> the domain of the
+     * sender.
+     * @throws MessagingException if the sample can not be parsed, or the
+     * report can not be generated.
+     * @throws IOException if the sample can not be read.
+     */
+    public void addSample(final MessageSource source, final String abuseEmailAddress)
+            throws MessagingException, IOException {
+        Session session = smtp.getSession();
+        ParsedMessage message = ParsedMessage.parse(session, source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String body = null;
+        if (message.isMimeType("multipart/report")) {
+            message.writeTo(out);
+        } else {
+            ARFMessage arfm = new ARFMessage(session, message, ARF.getAbuseAddress(message, abuseEmailAddress, null));
+            arfm.setReturnedContent(returnedContent);
+            arfm.setMaxBodyLength(maxBodyLength);
+            MimeMessage report = arfm.generateARF();
+            report.saveChanges();
+            ARFMessage.print(report, out);
+            body = ((SMTPMessage) report).getMailExtension();
+        }
+        byte[] bytes = out.toByteArray();
+        // A returned message which was not scanned, or a sample replayed as it is, may hold unencoded data.
+        BodyTypeScanner scanner = new BodyTypeScanner();
+        scanner.write(bytes, 0, bytes.length);
+        String extension = BodyType.forMailExtension(body).max(scanner.getBodyType()).getExtension();
+        reports.add(new Sample(bytes, extension == null ? null : "BODY=" + extension));
+    }
+
+    /**
+     * The number of samples.
+     *
+     * @return the number of reports which are replayed.
+     */
+    public int getSamples() {
+        return reports.size();
+    }
+
+    /**
+     * Generates the load, and prints the progress, and a summary of the
+     * latencies, and replies.
+     *
+     * @param out The stream the progress, and summary are printed to.
+     * @throws InterruptedException if interrupted while generating the load.
+     */
+    public void run(final PrintStream out) throws InterruptedException {
+        if (reports.isEmpty()) {
+            throw new IllegalStateException("There are no samples to send.");
+        }
+        runStart = System.nanoTime();
+        intervalStart = runStart;
+        ScheduledExecutorService reporter = null;
+        if (reportInterval > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(WorkerThreads.newThreadFactory("arf-load-report"));
+            reporter.scheduleAtFixedRate(() -> printInterval(out), reportInterval, reportInterval,
+                    TimeUnit.NANOSECONDS);
+        }
+        ExecutorService senders = Executors.newFixedThreadPool(concurrency,
+                WorkerThreads.newThreadFactory("arf-load"));
+        long end = runStart + duration;
+        int unsent = 0;
+        try {
+            if (rate > 0) {
+                for (long i = 0;; i++) {
+                    final long intended = runStart + (long) (i * TimeUnit.SECONDS.toNanos(1) / rate);
+                    if (intended >= end) {
+                        break;
+                    }
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    senders.execute(() -> send(intended));
+                }
+            } else {
+                for (int i = 0; i < concurrency; i++) {
+                    senders.execute(() -> {
+                        while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                            send(System.nanoTime());
+                        }
+                    });
+                }
+            }
+            senders.shutdown();
+            // Allow the reports which queued behind a slow receiver to complete.
+            if (!senders.awaitTermination(Math.max(duration, TimeUnit.SECONDS.toNanos(30)), TimeUnit.NANOSECONDS)) {
+                unsent = senders.shutdownNow().size();
+            }
+        } finally {
+            senders.shutdownNow();
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        printSummary(out, System.nanoTime() - runStart, unsent);
+    }
+
+    /**
+     * Sends the next report, and records its latency from the time it was
+     * intended to start, and its reply.
+     */
+    private void send(final long intended) {
+        Sample sample = reports.get((int) (next.getAndIncrement() % reports.size()));
+        int code;
+        try {
+            smtp.deliver(new ReplayMessage(smtp.getSession(), sample));
+            code = ACCEPTED;
+        } catch (MessagingException | RuntimeException e) {
+            code = getReplyCode(e);
+        }
+        recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+        replies.computeIfAbsent(code, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * The SMTP reply code of a failure, or -1 if the server did not reply,
+     * e.g. the connection was refused, or lost. The cause of a
+     * {@link MessagingException} is its next exception, so the rejected
+     * recipients of a {@link javax.mail.SendFailedException} are found.
+     */
+    static int getReplyCode(final Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) t).getReturnCode();
+            }
+            if (t instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) t).getReturnCode();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Prints the latencies, and throughput of the interval since the last
+     * report.
+     */
+    private synchronized void printInterval(final PrintStream out) {
+        long now = System.nanoTime();
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        double seconds = (now - intervalStart) / (double) TimeUnit.SECONDS.toNanos(1);
+        intervalStart = now;
+        out.println(String.format("%6.0f s: %8.1f reports/s, latency p50 %s, p99 %s, max %s ms, %d failed",
+                (now - runStart) / (double) TimeUnit.SECONDS.toNanos(1), interval.getTotalCount() / seconds,
+                millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)),
+                millis(interval.getMaxValue()), failures()));
+    }
+
+    private synchronized void printSummary(final PrintStream out, final long elapsed, final int unsent) {
+        total.add(recorder.getIntervalHistogram());
+        long count = total.getTotalCount();
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        out.println("<---------------- Load Summary ---------------->");
+        out.println(String.format("Target:     %s", rate > 0 ? String.format("%.1f reports/s", rate)
+                : String.format("closed-loop, %d connections", concurrency)));
+        out.println(String.format("Reports:    %d", count));
+        out.println(String.format("Elapsed:    %.3f s", seconds));
+        out.println(String.format("Throughput: %.1f reports/s", count / seconds));
+        if (unsent > 0) {
+            out.println(String.format("Not sent:   %d (queued when the run ended)", unsent));
+        }
+        out.println("Latency (ms):");
+        for (double p : PERCENTILES) {
+            out.println(String.format("  p%-7s %s", format(p), millis(total.getValueAtPercentile(p))));
+        }
+        out.println(String.format("  max      %s", millis(total.getMaxValue())));
+        out.println(String.format("  mean     %.3f", total.getMean() / 1000));
+        out.println("Replies:");
+        for (Map.Entry<Integer, Long> e : getReplies().entrySet()) {
+            out.println(String.format("  %-8s %d (%.2f%%)", e.getKey() < 0 ? "none" : e.getKey(),
+                    e.getValue(), count == 0 ? 0 : 100.0 * e.getValue() / count));
+        }
+        out.println("<---------------------------------------------->");
+    }
+
+    private long failures() {
+        long failed = 0;
+        for (Map.Entry<Integer, LongAdder> e : replies.entrySet()) {
+            if (e.getKey() != ACCEPTED) {
+                failed += e.getValue().sum();
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * The replies received so far by SMTP reply code. Failures without a
+     * reply are counted as -1.
+     *
+     * @return the number of replies for each code.
+     */
+    public Map<Integer, Long> getReplies() {
+        Map<Integer, Long> result = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> e : replies.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        return result;
+    }
+
+    private static String millis(final long micros) {
+        return String.format("%.3f", micros / 1000.0);
+    }
+
+    private static String format(final double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+
+    /**
+     * A generated report, and the <code>BODY=</code> parameter it is sent
+     * with.
+     */
+    private static final class Sample {
+
+        private final byte[] report;
+        private final String body;
+
+        private Sample(final byte[] report, final String body) {
+            this.report = report;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A report replayed from its generated form. The content is sent as it is,
+     * rather than being parsed, and rebuilt when the message is saved; only
+     * the <code>Message-ID:</code> is replaced. A report which is encoded for
+     * a server without <code>8BITMIME</code> is rebuilt.
+     */
+    private static final class ReplayMessage extends SMTPMessage {
+
+        ReplayMessage(final Session session, final Sample sample) throws MessagingException {
+            super(session, new SharedByteArrayInputStream(sample.report));
+            setMailExtension(sample.body);
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            if (cachedContent != null) {
+                // The content was parsed to be encoded.
+                super.updateHeaders();
+            } else {
+                updateMessageID();
+            }
+        }
+    }
+
+}
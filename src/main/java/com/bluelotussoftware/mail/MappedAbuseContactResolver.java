@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Resolves abuse contacts from a local mapping file, in the manner of the
+ * abuse.net lookup table. Each line of the file holds a domain, or an IP
+ * address or network, followed by the abuse address for it:
+ * <pre>
+ * # Comments, and blank lines are ignored.
+ * example.com      abuse@example.net
+ * 192.0.2.0/24     noc@isp.example
+ * 2001:db8::/32    abuse@isp.example
+ * </pre>
+ * <p>
+ * A message is resolved in the following order:
+ * </p>
+ * <ol>
+ * <li>The sender domain, and its parent domains down to the registrable
+ * domain, are looked up in the file.</li>
+ * <li>The source IP address is matched against the networks in the file,
+ * preferring the longest prefix.</li>
+ * <li>The RFC-2142 <code>abuse@</code> mailbox of the registrable domain of
+ * the sender is used.</li>
+ * </ol>
+ * <p>
+ * Instances are immutable, and may be shared between threads.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class MappedAbuseContactResolver implements AbuseContactResolver {
+
+    private final PublicSuffixList publicSuffixList;
+    private final Map<String, String> domains = new HashMap<>();
+    private final List<Network> networks = new ArrayList<>();
+
+    /**
+     * An IP network, and its abuse contact.
+     */
+    private static final class Network {
+
+        private final byte[] address;
+        private final int prefix;
+        private final String contact;
+
+        private Network(final byte[] address, final int prefix, final String contact) {
+            this.address = address;
+            this.prefix = prefix;
+            this.contact = contact;
+        }
+
+        private boolean contains(final byte[] ip) {
+            if (ip.length != address.length) {
+                return false;
+            }
+            int bytes = prefix / 8;
+            for (int i = 0; i < bytes; i++) {
+                if (ip[i] != address[i]) {
+                    return false;
+                }
+            }
+            int bits = prefix % 8;
+            if (bits == 0) {
+                return true;
+            }
+            int mask = 0xff00 >> bits;
+            return (ip[bytes] & mask) == (address[bytes] & mask);
+        }
+    }
+
+    /**
+     * Constructor which only uses the registrable domain of the sender.
+     *
+     * @param publicSuffixList The list used to determine registrable domains.
+     */
+    public MappedAbuseContactResolver(final PublicSuffixList publicSuffixList) {
+        this.publicSuffixList = publicSuffixList;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param publicSuffixList The list used to determine registrable domains.
+     * @param mapping The mapping file, which may be {@code null}.
+     * @throws IOException if the mapping file can not be read.
+     * @throws IllegalArgumentException if a line of the file is not valid.
+     */
+    public MappedAbuseContactResolver(final PublicSuffixList publicSuffixList, final Path mapping)
+            throws IOException {
+        this(publicSuffixList);
+        if (mapping != null) {
+            load(mapping);
+        }
+    }
+
+    private void load(final Path mapping) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(mapping, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                int hash = line.indexOf('#');
+                String entry = (hash < 0 ? line : line.substring(0, hash)).trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                String[] fields = entry.split("\\s+");
+                if (fields.length != 2 || fields[1].indexOf('@') < 0) {
+                    throw new IllegalArgumentException(String.format("Invalid mapping at %s:%d: %s",
+                            mapping, number, line));
+                }
+                if (!addNetwork(fields[0], fields[1])) {
+                    domains.put(fields[0].toLowerCase(Locale.ROOT), fields[1]);
+                }
+            }
+        }
+        // Longest prefix first.
+        networks.sort((a, b) -> Integer.compare(b.prefix, a.prefix));
+    }
+
+    private boolean addNetwork(final String key, final String contact) {
+        int slash = key.indexOf('/');
+        String ip = slash < 0 ? key : key.substring(0, slash);
+        byte[] address = parseAddress(ip);
+        if (address == null) {
+            return false;
+        }
+        int max = address.length * 8;
+        int prefix;
+        try {
+            prefix = slash < 0 ? max : Integer.parseInt(key.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            prefix = -1;
+        }
+        if (prefix < 0 || prefix > max) {
+            throw new IllegalArgumentException("Invalid prefix length in mapping: " + key);
+        }
+        networks.add(new Network(address, prefix, contact));
+        return true;
+    }
+
+    /**
+     * Parses an IPv4, or IPv6 address literal. Host names are not looked up.
+     *
+     * @return the address, or {@code null} if it is not a literal.
+     */
+    private static byte[] parseAddress(final String ip) {
+        boolean ipv6 = ip.indexOf(':') >= 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            boolean valid = (c >= '0' && c <= '9') || c == '.'
+                    || (ipv6 && (c == ':' || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')));
+            if (!valid) {
+                return null;
+            }
+        }
+        if (ip.isEmpty() || (!ipv6 && ip.chars().filter(c -> c == '.').count() != 3)) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String resolve(final String senderDomain, final String sourceIP) {
+        String registrable = null;
+        if (senderDomain != null && !senderDomain.isEmpty()) {
+            String domain = senderDomain.toLowerCase(Locale.ROOT);
+            registrable = publicSuffixList.getRegistrableDomain(domain);
+            String contact = lookupDomain(domain, registrable);
+            if (contact != null) {
+                return contact;
+            }
+        }
+        if (sourceIP != null && !networks.isEmpty()) {
+            byte[] ip = parseAddress(sourceIP);
+            if (ip != null) {
+                for (Network n : networks) {
+                    if (n.contains(ip)) {
+                        return n.contact;
+                    }
+                }
+            }
+        }
+        return registrable == null ? null : "abuse@" + registrable;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The contact depends only on the domain if the domain, or one of its
+     * parents is in the file, or the file contains no networks.
+     * </p>
+     */
+    @Override
+    public String resolveDomain(final String senderDomain) {
+        if (senderDomain == null || senderDomain.isEmpty()) {
+            return null;
+        }
+        String domain = senderDomain.toLowerCase(Locale.ROOT);
+        String registrable = publicSuffixList.getRegistrableDomain(domain);
+        String contact = lookupDomain(domain, registrable);
+        if (contact == null && networks.isEmpty() && registrable != null) {
+            contact = "abuse@" + registrable;
+        }
+        return contact;
+    }
+
+    /**
+     * Looks up a domain, and its parents down to the registrable domain in
+     * the file.
+     */
+    private String lookupDomain(final String domain, final String registrable) {
+        String d = domain;
+        while (true) {
+            String contact = domains.get(d);
+            if (contact != null) {
+                return contact;
+            }
+            int dot = d.indexOf('.');
+            if (dot < 0 || d.equals(registrable)) {
+                return null;
+            }
+            d = d.substring(dot + 1);
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a memory-mapped mbox file into individual messages, with the same
+ * rules as {@link MboxReader}. Each message is returned as a
+ * {@link MappedMessageSource} which is a view of the mapping, so neither the
+ * mbox, nor the messages are copied into the heap. Only a message which
+ * contains quoted <code>&gt;From </code> lines is copied, in order to unescape
+ * them.
+ * <p>
+ * The file is mapped in windows of up to {@value #WINDOW_SIZE} bytes, so mbox
+ * files larger than 2 GB may be split. A message which does not fit in the
+ * current window starts a new window.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class MappedMboxReader implements Iterator<MessageSource>, Closeable {
+
+    /**
+     * The maximum size of a mapped window.
+     */
+    static final int WINDOW_SIZE = 1 << 30;
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    private final String name;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+    /**
+     * The position in the file of the next line to be read.
+     */
+    private long position;
+    /**
+     * The position in the file of the message being read.
+     */
+    private long messageStart;
+    private MessageSource next;
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param path The mbox file.
+     * @throws IOException if the file can not be mapped.
+     */
+    public MappedMboxReader(final Path path) throws IOException {
+        this.name = path.toString();
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            // Skip anything before the first separator.
+            while (position < size) {
+                long line = position;
+                position = nextLine(line);
+                if (startsWithFrom(line)) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && position < size) {
+            try {
+                next = readMessage();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageSource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MessageSource result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Closes the file. The messages already returned remain readable until
+     * they are garbage collected.
+     *
+     * @throws IOException if the file can not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MessageSource readMessage() throws IOException {
+        long start = position;
+        messageStart = start;
+        long end = size;
+        long blankLine = -1;
+        boolean quoted = false;
+        while (position < size) {
+            long line = position;
+            position = nextLine(line);
+            if (blankLine >= 0 && startsWithFrom(line)) {
+                // The empty line preceding a separator belongs to the mbox.
+                end = blankLine;
+                break;
+            }
+            blankLine = isBlank(line) ? line : -1;
+            if (!quoted && byteAt(line) == '>') {
+                long i = line;
+                while (i < size && byteAt(i) == '>') {
+                    i++;
+                }
+                quoted = startsWithFrom(i);
+            }
+        }
+        if (position >= size && blankLine >= 0 && end == size) {
+            end = blankLine;
+        }
+        count++;
+        String messageName = name + "#" + count;
+        ByteBuffer message = map(start, end);
+        return quoted ? new ByteArrayMessageSource(messageName, unescape(message))
+                : new MappedMessageSource(messageName, message);
+    }
+
+    /**
+     * Returns a view of a region of the file, from the current window if it
+     * lies within it.
+     */
+    private ByteBuffer map(final long start, final long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Message at %d in %s is too large to map.", start, name));
+        }
+        if (start >= windowStart && end <= windowEnd) {
+            ByteBuffer view = window.duplicate();
+            view.limit((int) (end - windowStart));
+            view.position((int) (start - windowStart));
+            return view.slice();
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    }
+
+    /**
+     * Reads a byte of the file, mapping a new window if it is outside the
+     * current window. The window starts at the message being read, so that
+     * the message may be returned as a view of it.
+     */
+    private int byteAt(final long offset) throws IOException {
+        if (offset < windowStart || offset >= windowEnd || window == null) {
+            windowStart = offset - messageStart < WINDOW_SIZE ? messageStart : offset;
+            windowEnd = Math.min(size, windowStart + WINDOW_SIZE);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+        }
+        return window.get((int) (offset - windowStart));
+    }
+
+    /**
+     * Finds the start of the line following the line at the offset provided.
+     */
+    private long nextLine(final long offset) throws IOException {
+        long i = offset;
+        while (i < size) {
+            int c = byteAt(i++);
+            if (c == '\n') {
+                return i;
+            }
+            if (c == '\r') {
+                return i < size && byteAt(i) == '\n' ? i + 1 : i;
+            }
+        }
+        return i;
+    }
+
+    private boolean isBlank(final long line) throws IOException {
+        if (line >= size) {
+            return true;
+        }
+        int c = byteAt(line);
+        return c == '\n' || c == '\r';
+    }
+
+    private boolean startsWithFrom(final long offset) throws IOException {
+        if (size - offset < FROM.length) {
+            return false;
+        }
+        for (int i = 0; i < FROM.length; i++) {
+            if (byteAt(offset + i) != FROM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies a message, removing one <code>&gt;</code> from each quoted
+     * <code>From </code> line.
+     */
+    private static byte[] unescape(final ByteBuffer message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.remaining());
+        boolean lineStart = true;
+        while (message.hasRemaining()) {
+            int p = message.position();
+            if (lineStart && message.get(p) == '>') {
+                int i = p;
+                while (i < message.limit() && message.get(i) == '>') {
+                    i++;
+                }
+                if (isFrom(message, i)) {
+                    message.get();
+                }
+            }
+            byte b = message.get();
+            out.write(b);
+            lineStart = b == '\n' || (b == '\r' && !(message.hasRemaining() && message.get(message.position()) == '\n'));
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isFrom(final ByteBuffer message, final int offset) {
+        if (message.limit() - offset < FROM.length) {
+            return false;
+        }
+        for (int i = 0; i < FROM.length; i++) {
+            if (message.get(offset + i) != FROM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link MessageSource} which memory-maps the file containing the raw
+ * message. Streams opened from the source read the mapped region directly, so
+ * the message is never copied into the heap as a whole. The streams are
+ * {@link javax.mail.internet.SharedInputStream}s, so the content of a message
+ * parsed from them remains a view of the mapping.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class MappedMessageSource implements MessageSource {
+
+    private final String name;
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor which maps the file provided. The mapping remains valid
+     * until the source is garbage collected.
+     *
+     * @param path The file containing the raw message.
+     * @throws IOException if the file can not be mapped.
+     */
+    public MappedMessageSource(final Path path) throws IOException {
+        this.name = path.toString();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Constructor for a message within a larger mapping, such as a message
+     * split out of an mbox file.
+     *
+     * @param name The name used to identify the message.
+     * @param buffer The message, from its position to its limit. The buffer
+     * is not modified.
+     */
+    public MappedMessageSource(final String name, final ByteBuffer buffer) {
+        this.name = name;
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream openStream() {
+        return new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() {
+        return buffer.capacity();
+    }
+
+}
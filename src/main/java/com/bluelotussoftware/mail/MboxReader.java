@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits an mbox file into individual messages. Messages are separated by a
+ * line beginning with <code>From </code> which is either the first line of the
+ * file, or follows an empty line. Quoted <code>&gt;From </code> lines in the
+ * body are unescaped (mboxrd).
+ * <p>
+ * The mbox is split in a single forward pass, one message at a time, so that
+ * only the current message is held in memory. Boundaries are found by
+ * scanning a block buffer for line terminators; lines are copied from the
+ * buffer into the message without any allocation per line.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class MboxReader implements Iterator<MessageSource>, Closeable {
+
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final InputStream is;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean drained;
+    /**
+     * The bounds of the current line in the buffer, excluding its terminator.
+     */
+    private int lineStart;
+    private int lineEnd;
+    private MessageSource next;
+    private boolean eof;
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the mbox, used to name the individual messages.
+     * @param is The stream containing the mbox. The stream is read in blocks,
+     * so it need not be buffered.
+     * @throws IOException if the stream can not be read.
+     */
+    public MboxReader(final String name, final InputStream is) throws IOException {
+        this.name = name;
+        this.is = is;
+        // Skip anything before the first separator.
+        while (readLine() && !startsWithFrom(lineStart)) {
+        }
+    }
+
+    /**
+     * Determines if the stream provided begins with an mbox separator line. The
+     * stream must support {@link InputStream#mark(int)}.
+     *
+     * @param is The stream to examine.
+     * @return {@code true} if the stream appears to be an mbox.
+     * @throws IOException if the stream can not be read.
+     */
+    public static boolean isMbox(final InputStream is) throws IOException {
+        is.mark(FROM.length);
+        try {
+            for (byte b : FROM) {
+                if (is.read() != b) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            is.reset();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && !eof) {
+            try {
+                next = readMessage();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageSource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        MessageSource result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        is.close();
+    }
+
+    private MessageSource readMessage() throws IOException {
+        if (eof) {
+            return null;
+        }
+        ByteArrayOutputStream message = new ByteArrayOutputStream(8192);
+        boolean blank = false;
+        boolean pendingBlank = false;
+        while (readLine()) {
+            if (blank && startsWithFrom(lineStart)) {
+                break;
+            }
+            // The empty line preceding a separator belongs to the mbox, not the message.
+            if (pendingBlank) {
+                message.write('\n');
+                pendingBlank = false;
+            }
+            blank = lineEnd == lineStart;
+            if (blank) {
+                pendingBlank = true;
+            } else {
+                writeUnescaped(message);
+                message.write('\n');
+            }
+        }
+        count++;
+        return new ByteArrayMessageSource(name + "#" + count, message.toByteArray());
+    }
+
+    private void writeUnescaped(final ByteArrayOutputStream message) {
+        int i = lineStart;
+        while (i < lineEnd && buffer[i] == '>') {
+            i++;
+        }
+        if (i > lineStart && startsWithFrom(i)) {
+            message.write(buffer, lineStart + 1, lineEnd - lineStart - 1);
+        } else {
+            message.write(buffer, lineStart, lineEnd - lineStart);
+        }
+    }
+
+    private boolean startsWithFrom(final int offset) {
+        if (lineEnd - offset < FROM.length) {
+            return false;
+        }
+        for (int i = 0; i < FROM.length; i++) {
+            if (buffer[offset + i] != FROM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next line in the buffer, refilling it as required. The line is
+     * left in the buffer between {@link #lineStart}, and {@link #lineEnd}.
+     *
+     * @return {@code false} if the end of the stream has been reached.
+     */
+    private boolean readLine() throws IOException {
+        int scan = position;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                byte c = buffer[i];
+                if (c == '\n' || (c == '\r' && (i + 1 < limit || drained))) {
+                    lineStart = position;
+                    lineEnd = i;
+                    position = c == '\r' && i + 1 < limit && buffer[i + 1] == '\n' ? i + 2 : i + 1;
+                    return true;
+                }
+                if (c == '\r') {
+                    // The terminator may be CRLF split across reads.
+                    scan = i;
+                    break;
+                }
+                scan = i + 1;
+            }
+            if (drained) {
+                eof = true;
+                if (position < limit) {
+                    lineStart = position;
+                    lineEnd = limit;
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+            scan -= position;
+            fill();
+            scan += position;
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer, growing it if a
+     * single line fills it, and reads more of the stream.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int n = is.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            drained = true;
+        } else {
+            limit += n;
+        }
+    }
+
+}
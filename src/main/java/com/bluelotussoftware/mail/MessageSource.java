@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A raw RFC-822 message which is to be reported. The source may be a single
+ * file on disk, or a message which has been split out of a larger archive like
+ * an mbox file.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public interface MessageSource {
+
+    /**
+     * A name used to identify the message in diagnostic output.
+     *
+     * @return the name of the message source.
+     */
+    String getName();
+
+    /**
+     * Opens a new {@link InputStream} positioned at the start of the raw
+     * message. The caller is responsible for closing the stream.
+     *
+     * @return a new stream of the raw message.
+     * @throws IOException if the message can not be read.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * The size of the raw message in bytes, used for metrics.
+     *
+     * @return the size of the message, or -1 if it is not known.
+     */
+    default long getSize() {
+        return -1;
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * A durable queue of outbound reports. Each report is written to the
+ * <code>queue</code> directory before {@link #enqueue(javax.mail.internet.MimeMessage)}
+ * returns, and is deleted once it has been delivered. Delivery is performed by
+ * background workers, so the caller never waits on the SMTP server.
+ * <p>
+ * A report which fails with a transient error is retried with exponential
+ * backoff, and jitter. Its attempts, and the time of the next attempt are kept
+ * in a <code>.meta</code> file next to the report, so the schedule survives a
+ * restart. The <code>BODY=</code> parameter of an <code>8bit</code> report is
+ * also kept, so that the report is sent with it when it is read back. The
+ * type of a returned message which has not yet been read is found as the
+ * report is written to the spool. A report which is rejected permanently, or
+ * which has used all of its attempts is moved to the <code>dead</code>
+ * directory with the reason.
+ * </p>
+ * <p>
+ * Reports, and their metadata are written to a temporary file, forced to disk,
+ * and renamed into place, so a crash never leaves a partial report in the
+ * queue. The directory is forced to disk after the rename, so a report is not
+ * lost on power failure once it has been spooled. Any report found in the
+ * queue when the spool is opened is scheduled again.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class OutboundSpool implements AutoCloseable {
+
+    /**
+     * Delivers a report read back from the spool.
+     */
+    public interface Delivery {
+
+        /**
+         * Delivers the message.
+         *
+         * @param message The message to deliver.
+         * @throws MessagingException if the message could not be delivered.
+         */
+        void deliver(MimeMessage message) throws MessagingException;
+    }
+
+    private static final String MESSAGE_SUFFIX = ".eml";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path queue;
+    private final Path dead;
+    private final Session session;
+    private final Delivery delivery;
+    private final DelayQueue<Entry> scheduled = new DelayQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    /**
+     * Held while a report is taken from the queue, and counted as being
+     * delivered, so that {@link #awaitDue(long, java.util.concurrent.TimeUnit)}
+     * never sees a report which is in neither.
+     */
+    private final Object takeLock = new Object();
+    private final AtomicInteger delivering = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private int maxAttempts = 10;
+    private long initialDelay = TimeUnit.SECONDS.toMillis(30);
+    private long maxDelay = TimeUnit.HOURS.toMillis(1);
+    private volatile boolean closed;
+
+    /**
+     * A report waiting to be delivered.
+     */
+    private static class Entry implements Delayed {
+
+        private final String id;
+        private final int attempts;
+        private final long due;
+        private final String body;
+
+        private Entry(final String id, final int attempts, final long due, final String body) {
+            this.id = id;
+            this.attempts = attempts;
+            this.due = due;
+            this.body = body;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            return Long.compare(due, ((Entry) o).due);
+        }
+    }
+
+    /**
+     * Constructor which opens, or creates the spool, and schedules any reports
+     * found in it. Delivery does not begin until {@link #start(int)} is
+     * called.
+     *
+     * @param directory The directory of the spool.
+     * @param session The session used to read the reports back.
+     * @param delivery Delivers the reports.
+     * @throws IOException if the spool can not be opened.
+     */
+    public OutboundSpool(final Path directory, final Session session, final Delivery delivery) throws IOException {
+        this.queue = Files.createDirectories(directory.resolve("queue"));
+        this.dead = Files.createDirectories(directory.resolve("dead"));
+        this.session = session;
+        this.delivery = delivery;
+        recover();
+    }
+
+    /**
+     * Schedules every report in the queue, and removes any temporary files
+     * left by a crash.
+     */
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(queue)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(MESSAGE_SUFFIX)) {
+                    String id = name.substring(0, name.length() - MESSAGE_SUFFIX.length());
+                    Properties meta = readMeta(id);
+                    schedule(new Entry(id, Integer.parseInt(meta.getProperty("attempts", "0")),
+                            Long.parseLong(meta.getProperty("next", "0")), meta.getProperty("body")));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the number of delivery attempts before a report is moved to the
+     * dead letter directory.
+     *
+     * @param maxAttempts The number of attempts. The default is 10.
+     */
+    public void setMaxAttempts(final int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the backoff between attempts. The delay doubles after each failed
+     * attempt up to the maximum, and a random jitter of up to half the delay
+     * is subtracted.
+     *
+     * @param initialDelay The delay after the first failure.
+     * @param maxDelay The maximum delay.
+     * @param unit The unit of the delays.
+     */
+    public void setBackoff(final long initialDelay, final long maxDelay, final TimeUnit unit) {
+        this.initialDelay = unit.toMillis(initialDelay);
+        this.maxDelay = unit.toMillis(maxDelay);
+    }
+
+    /**
+     * Starts the delivery workers.
+     *
+     * @param threads The number of reports delivered concurrently.
+     */
+    public synchronized void start(final int threads) {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        ThreadFactory factory = WorkerThreads.newThreadFactory("arf-spool");
+        for (int i = 0; i < threads; i++) {
+            Thread t = factory.newThread(this::work);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Writes a report to the spool, and schedules it for immediate delivery.
+     *
+     * @param message The report.
+     * @throws MessagingException if the report can not be serialized.
+     * @throws IOException if the report can not be written to disk.
+     */
+    public void enqueue(final MimeMessage message) throws MessagingException, IOException {
+        if (closed) {
+            throw new IllegalStateException("The spool is closed.");
+        }
+        String id = String.format("%013d-%06d-%04x", System.currentTimeMillis(),
+                sequence.incrementAndGet() % 1000000, ThreadLocalRandom.current().nextInt(0x10000));
+        String body = message instanceof SMTPMessage ? ((SMTPMessage) message).getMailExtension() : null;
+        // The type of a returned message which has not been read is found as the report is written.
+        BodyTypeScanner scanner = message instanceof ARFMessage.ReportMessage
+                && !((ARFMessage.ReportMessage) message).isResolved() ? new BodyTypeScanner() : null;
+        Path temp = queue.resolve(id + MESSAGE_SUFFIX + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 16384);
+            message.writeTo(scanner == null ? out : new ScanningOutputStream(out, scanner));
+            out.flush();
+            channel.force(true);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (scanner != null) {
+            String extension = BodyType.forMailExtension(body).max(scanner.getBodyType()).getExtension();
+            body = extension == null ? null : "BODY=" + extension;
+        }
+        if (body != null) {
+            Properties meta = new Properties();
+            meta.setProperty("body", body);
+            try {
+                writeMeta(id, meta);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+        Files.move(temp, queue.resolve(id + MESSAGE_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        force(queue);
+        schedule(new Entry(id, 0, 0, body));
+    }
+
+    private void schedule(final Entry entry) {
+        synchronized (takeLock) {
+            scheduled.add(entry);
+            takeLock.notifyAll();
+        }
+    }
+
+    private void work() {
+        try {
+            while (!closed) {
+                Entry entry = take(250, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    try {
+                        attempt(entry);
+                    } finally {
+                        delivering.decrementAndGet();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the next report which is due, and counts it as being delivered.
+     *
+     * @return the report, or {@code null} if none became due in time.
+     */
+    private Entry take(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (takeLock) {
+            while (true) {
+                Entry entry = scheduled.poll();
+                if (entry != null) {
+                    delivering.incrementAndGet();
+                    return entry;
+                }
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || closed) {
+                    return null;
+                }
+                Entry next = scheduled.peek();
+                if (next != null) {
+                    wait = Math.min(wait, next.getDelay(TimeUnit.NANOSECONDS));
+                }
+                TimeUnit.NANOSECONDS.timedWait(takeLock, Math.max(wait, 1));
+            }
+        }
+    }
+
+    private void attempt(final Entry entry) {
+        Path file = queue.resolve(entry.id + MESSAGE_SUFFIX);
+        try {
+            try (InputStream in = new SharedFileInputStream(file.toFile())) {
+                SMTPMessage message = new SMTPMessage(session, in);
+                message.setMailExtension(entry.body);
+                delivery.deliver(message);
+            }
+            Files.deleteIfExists(queue.resolve(entry.id + META_SUFFIX));
+            Files.deleteIfExists(file);
+            delivered.incrementAndGet();
+        } catch (MessagingException e) {
+            fail(entry, e, isPermanent(e));
+        } catch (IOException | RuntimeException e) {
+            fail(entry, e, false);
+        }
+    }
+
+    /**
+     * Reschedules a report with backoff, or moves it to the dead letter
+     * directory.
+     */
+    private void fail(final Entry entry, final Exception cause, final boolean permanent) {
+        int attempts = entry.attempts + 1;
+        try {
+            Properties meta = new Properties();
+            meta.setProperty("attempts", Integer.toString(attempts));
+            meta.setProperty("error", String.valueOf(cause));
+            if (entry.body != null) {
+                meta.setProperty("body", entry.body);
+            }
+            if (permanent || attempts >= maxAttempts) {
+                writeMeta(entry.id, meta);
+                Files.move(queue.resolve(entry.id + MESSAGE_SUFFIX), dead.resolve(entry.id + MESSAGE_SUFFIX),
+                        StandardCopyOption.ATOMIC_MOVE);
+                Files.move(queue.resolve(entry.id + META_SUFFIX), dead.resolve(entry.id + META_SUFFIX),
+                        StandardCopyOption.ATOMIC_MOVE);
+                force(dead);
+                force(queue);
+                deadLettered.incrementAndGet();
+                System.err.println("Report " + entry.id + " moved to " + dead + ": " + cause);
+            } else {
+                long next = System.currentTimeMillis() + backoff(attempts);
+                meta.setProperty("next", Long.toString(next));
+                writeMeta(entry.id, meta);
+                force(queue);
+                schedule(new Entry(entry.id, attempts, next, entry.body));
+                deferred.incrementAndGet();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to update the spool for report " + entry.id + ": " + e);
+        }
+    }
+
+    /**
+     * The delay before the next attempt. The delay doubles after each failure
+     * up to the maximum, and up to half of it is removed at random so that
+     * reports which failed together are not retried together.
+     *
+     * @param attempts The number of failed attempts.
+     * @return the delay in milliseconds.
+     */
+    long backoff(final int attempts) {
+        long delay = initialDelay << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * A report is rejected permanently if the server replied with a 5xx code,
+     * or an address is malformed.
+     */
+    static boolean isPermanent(final MessagingException e) {
+        Exception next = e;
+        while (next != null) {
+            if (next instanceof AddressException) {
+                return true;
+            }
+            if (next instanceof SMTPSendFailedException
+                    && ((SMTPSendFailedException) next).getReturnCode() >= 500) {
+                return true;
+            }
+            if (next instanceof SMTPAddressFailedException
+                    && ((SMTPAddressFailedException) next).getReturnCode() >= 500) {
+                return true;
+            }
+            next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+        }
+        return false;
+    }
+
+    private Properties readMeta(final String id) throws IOException {
+        Properties meta = new Properties();
+        Path file = queue.resolve(id + META_SUFFIX);
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                meta.load(in);
+            }
+        }
+        return meta;
+    }
+
+    private void writeMeta(final String id, final Properties meta) throws IOException {
+        Path temp = queue.resolve(id + META_SUFFIX + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = Channels.newOutputStream(channel);
+            meta.store(out, null);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, queue.resolve(id + META_SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that the files renamed
+     * into it survive a crash. A platform which can not open a directory,
+     * such as Windows, is skipped.
+     */
+    private static void force(final Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The number of reports waiting in the queue, including those being
+     * delivered.
+     *
+     * @return the number of queued reports.
+     */
+    public int getQueued() {
+        return scheduled.size() + delivering.get();
+    }
+
+    /**
+     * The number of reports which have been delivered.
+     *
+     * @return the number of reports delivered.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * The number of failed attempts which were scheduled to be retried.
+     *
+     * @return the number of attempts deferred.
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    /**
+     * The number of reports moved to the dead letter directory.
+     *
+     * @return the number of reports dead lettered.
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Waits until every report which is due has been attempted.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return {@code true} if no report is due, or {@code false} if the
+     * timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitDue(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            synchronized (takeLock) {
+                Entry next = scheduled.peek();
+                if (delivering.get() == 0 && (next == null || next.getDelay(TimeUnit.MILLISECONDS) > 0)) {
+                    return true;
+                }
+            }
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Stops the delivery workers once the reports being delivered have been
+     * attempted. Reports which remain in the queue are delivered when the
+     * spool is next opened.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        for (Thread t : workers) {
+            t.join();
+        }
+    }
+
+    /**
+     * Copies the bytes written to the underlying stream to a scanner.
+     */
+    private static class ScanningOutputStream extends FilterOutputStream {
+
+        private final BodyTypeScanner scanner;
+
+        private ScanningOutputStream(final OutputStream out, final BodyTypeScanner scanner) {
+            super(out);
+            this.scanner = scanner;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            scanner.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            scanner.write(b, off, len);
+        }
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.bluelotussoftware.mail.arf.Utils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Enumeration;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A {@link MimeMessage} which is read once from its source, and provides the
+ * headers and the fields derived from them which are required to generate an
+ * ARF report. The derived fields are evaluated when first requested, and
+ * cached. The headers are held in a {@link HeaderIndex}, so each header is
+ * looked up without scanning all of them.
+ * <p>
+ * A message may also be parsed with {@link #parseHeaders(javax.mail.Session,
+ * com.bluelotussoftware.mail.MessageSource)} which reads only the headers. The
+ * body is not held in memory, and is read from the {@link MessageSource} when
+ * it is required.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class ParsedMessage extends MimeMessage {
+
+    private final String name;
+    private final MessageSource source;
+    private final boolean headersOnly;
+    private String sourceIP;
+    private boolean sourceIPResolved;
+    private String senderDomain;
+    private boolean senderDomainResolved;
+    private Date receivedDate;
+    private boolean receivedDateResolved;
+    private BodyTypeScanner bodyScan;
+    private byte[] bodyDigest;
+
+    /**
+     * Constructor which reads the message from the stream provided. The stream
+     * is read once, and is not closed.
+     *
+     * @param session The session used for the message.
+     * @param name The name used to identify the message.
+     * @param is The stream containing the raw message.
+     * @throws MessagingException if the message can not be parsed.
+     */
+    public ParsedMessage(final Session session, final String name, final InputStream is) throws MessagingException {
+        super(session, is);
+        this.name = name;
+        this.source = null;
+        this.headersOnly = false;
+    }
+
+    /**
+     * Constructor used to parse a message from a {@link MessageSource}.
+     *
+     * @param session The session used for the message.
+     * @param source The source of the raw message.
+     * @param is A stream opened from the source.
+     * @param headersOnly If {@code true} only the headers are read.
+     * @throws MessagingException if the message can not be parsed.
+     */
+    private ParsedMessage(final Session session, final MessageSource source, final InputStream is,
+            final boolean headersOnly) throws MessagingException {
+        super(session);
+        this.name = source.getName();
+        this.source = source;
+        this.headersOnly = headersOnly;
+        if (headersOnly) {
+            headers = createInternetHeaders(is);
+            content = new byte[0];
+        } else {
+            parse(is);
+        }
+        modified = false;
+        saved = true;
+    }
+
+    /**
+     * Reads, and parses a message from the {@link MessageSource} provided.
+     *
+     * @param session The session used for the message.
+     * @param source The source of the raw message.
+     * @return the parsed message.
+     * @throws MessagingException if the message can not be parsed.
+     * @throws IOException if the message can not be read.
+     */
+    public static ParsedMessage parse(final Session session, final MessageSource source)
+            throws MessagingException, IOException {
+        try (InputStream is = source.openStream()) {
+            return new ParsedMessage(session, source, is, false);
+        }
+    }
+
+    /**
+     * Reads, and parses only the headers of a message from the
+     * {@link MessageSource} provided. The body is read from the source when it
+     * is requested.
+     *
+     * @param session The session used for the message.
+     * @param source The source of the raw message.
+     * @return the parsed message.
+     * @throws MessagingException if the headers can not be parsed.
+     * @throws IOException if the message can not be read.
+     */
+    public static ParsedMessage parseHeaders(final Session session, final MessageSource source)
+            throws MessagingException, IOException {
+        try (InputStream is = source.openStream()) {
+            return new ParsedMessage(session, source, is, true);
+        }
+    }
+
+    /**
+     * The name used to identify the message in diagnostic output.
+     *
+     * @return the name of the message source.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The source the message was read from.
+     *
+     * @return the source of the raw message, or {@code null} if the message
+     * was read from a stream.
+     */
+    public MessageSource getSource() {
+        return source;
+    }
+
+    /**
+     * Indicates if only the headers of the message were read.
+     *
+     * @return {@code true} if the body was not read.
+     */
+    public boolean isHeadersOnly() {
+        return headersOnly;
+    }
+
+    /**
+     * The headers of the message.
+     *
+     * @return the headers parsed from the message.
+     */
+    public HeaderIndex getHeaders() {
+        return (HeaderIndex) headers;
+    }
+
+    /**
+     * Creates a {@link HeaderIndex} for the headers of the message.
+     *
+     * @param is The stream positioned at the start of the headers.
+     * @return the headers read from the stream.
+     * @throws MessagingException if the headers can not be read.
+     */
+    @Override
+    protected InternetHeaders createInternetHeaders(final InputStream is) throws MessagingException {
+        return new HeaderIndex(is);
+    }
+
+    /**
+     * The IP address of the MTA from which the message was received.
+     *
+     * @return the source IP address, or {@code null} if it can not be
+     * determined.
+     * @see Utils#getSourceIPAddress(javax.mail.internet.InternetHeaders)
+     */
+    public String getSourceIP() {
+        if (!sourceIPResolved) {
+            sourceIP = Utils.getSourceIPAddress(headers);
+            sourceIPResolved = true;
+        }
+        return sourceIP;
+    }
+
+    /**
+     * The value of the <code>Date:</code> header of the message.
+     *
+     * @return the date the message was sent, or {@code null} if it is not
+     * present.
+     */
+    public String getArrivalDate() {
+        return headers.getHeader("Date", null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The date is taken from the first <code>Received:</code> header, which
+     * was added by the server which delivered the message, rather than by its
+     * sender.
+     * </p>
+     *
+     * @return the date the message was received, or {@code null} if there is
+     * no <code>Received:</code> header, or its date can not be parsed.
+     */
+    @Override
+    public Date getReceivedDate() {
+        if (!receivedDateResolved) {
+            receivedDate = Utils.getReceivedDate(headers.getHeader("Received", null));
+            receivedDateResolved = true;
+        }
+        return receivedDate;
+    }
+
+    /**
+     * The domain of the first <code>From:</code> address.
+     *
+     * @return the domain of the sender, or {@code null} if it can not be
+     * determined.
+     * @throws MessagingException if the <code>From:</code> header can not be
+     * parsed.
+     */
+    public String getSenderDomain() throws MessagingException {
+        if (!senderDomainResolved) {
+            Address[] from = getFrom();
+            if (from != null && from.length > 0 && from[0] instanceof InternetAddress) {
+                String address = ((InternetAddress) from[0]).getAddress();
+                int at = address == null ? -1 : address.lastIndexOf('@');
+                senderDomain = at < 0 ? null : address.substring(at + 1);
+            }
+            senderDomainResolved = true;
+        }
+        return senderDomain;
+    }
+
+    /**
+     * The subject of the message with <code>FW:</code> prepended. The subject
+     * is unfolded, and its encoded words are decoded, so it is encoded again
+     * as a whole when it is set on the report.
+     *
+     * @return a forwarded subject line.
+     */
+    public String getForwardedSubject() {
+        String subject = getHeaders().getText("Subject");
+        return subject == null ? "FW: " : "FW: " + subject;
+    }
+
+    /**
+     * The digest of the normalized body, which identifies copies of the same
+     * message. The body is read once, from the source if only the headers
+     * were parsed, and the digest is cached, so the
+     * {@link IncidentFingerprint}, and the key of the
+     * {@link ReportedMessageIndex} share it. The body is scanned for its
+     * {@link BodyType} as it is read.
+     *
+     * @return the SHA-256 digest of the normalized body, which must not be
+     * modified.
+     * @throws MessagingException if the body can not be located.
+     * @throws IOException if the body can not be read.
+     * @see IncidentFingerprint#digestBody(com.bluelotussoftware.mail.ParsedMessage, java.io.OutputStream)
+     */
+    byte[] getBodyDigest() throws MessagingException, IOException {
+        if (bodyDigest == null) {
+            BodyTypeScanner scanner = bodyScan == null ? scanHeaders() : null;
+            bodyDigest = IncidentFingerprint.digestBody(this, scanner);
+            if (scanner != null) {
+                bodyScan = scanner;
+            }
+        }
+        return bodyDigest;
+    }
+
+    /**
+     * The type of the data in the message, which determines if it may be
+     * returned in a report without being encoded.
+     *
+     * @return the type of the headers, and body of the message.
+     * @throws MessagingException if the message can not be read.
+     */
+    public BodyType getBodyType() throws MessagingException {
+        return scanBody().getBodyType();
+    }
+
+    /**
+     * Scans the headers, and body of the message once, reading the body from
+     * the source if only the headers were parsed.
+     */
+    BodyTypeScanner scanBody() throws MessagingException {
+        if (bodyScan == null) {
+            BodyTypeScanner scanner = scanHeaders();
+            try (InputStream is = getBody()) {
+                scanner.scan(is);
+            } catch (IOException e) {
+                throw new MessagingException("Unable to read the body of " + name, e);
+            }
+            bodyScan = scanner;
+        }
+        return bodyScan;
+    }
+
+    /**
+     * The scan of the message if its body has already been read, by
+     * {@link #scanBody()}, or {@link #getBodyDigest()}.
+     *
+     * @return the scan, or {@code null} if the body has not been scanned.
+     */
+    BodyTypeScanner getBodyScan() {
+        return bodyScan;
+    }
+
+    private BodyTypeScanner scanHeaders() {
+        BodyTypeScanner scanner = new BodyTypeScanner();
+        Enumeration<?> lines = headers.getAllHeaderLines();
+        while (lines.hasMoreElements()) {
+            scanner.writeLine((String) lines.nextElement());
+        }
+        return scanner;
+    }
+
+    /**
+     * The body of the message, without any decoding applied. The body is not
+     * read again from the source, but from the content retained when the
+     * message was parsed, unless only the headers were read.
+     *
+     * @return a stream of the raw body.
+     * @throws MessagingException if the body can not be accessed.
+     */
+    public InputStream getBody() throws MessagingException {
+        if (!headersOnly) {
+            return getRawInputStream();
+        }
+        InputStream is = null;
+        try {
+            is = source.openStream();
+            // Skip the headers.
+            new InternetHeaders(is);
+            return is;
+        } catch (IOException | MessagingException e) {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
+                }
+            }
+            throw e instanceof MessagingException ? (MessagingException) e
+                    : new MessagingException("Unable to read the body of " + name, e);
+        }
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, and latency histograms for the generation, and sending of
+ * reports. The parser, builder, serializer, and SMTP transport record into the
+ * {@link #getDefault() default} instance, which may be registered with JMX,
+ * and written in the Prometheus text exposition format.
+ * <p>
+ * The stages measured are:
+ * </p>
+ * <ul>
+ * <li><b>parse</b>: reading, and parsing an original message.</li>
+ * <li><b>build</b>: generating the report.</li>
+ * <li><b>serialize</b>: writing the report, which includes copying the
+ * original message into it.</li>
+ * <li><b>smtp</b>: the SMTP transaction which sends a report, including its
+ * serialization.</li>
+ * </ul>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+
+    /**
+     * The name the metrics are registered under with JMX.
+     */
+    public static final String OBJECT_NAME = "com.bluelotussoftware.mail:type=PipelineMetrics";
+
+    private static final PipelineMetrics DEFAULT = new PipelineMetrics();
+
+    /**
+     * The measured stages.
+     */
+    public enum Stage {
+        PARSE, BUILD, SERIALIZE, SMTP;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    private final LongAdder messagesParsed = new LongAdder();
+    private final LongAdder reportsGenerated = new LongAdder();
+    private final LongAdder reportsSent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder reportsUnencoded = new LongAdder();
+    private final LongAdder reportsEncoded = new LongAdder();
+    private final LongAdder encodingBytesSaved = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> failuresByCode = new ConcurrentHashMap<>();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+
+    /**
+     * Constructor.
+     */
+    public PipelineMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * The metrics recorded by the pipeline, and transport.
+     *
+     * @return the shared metrics.
+     */
+    public static PipelineMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Registering an
+     * instance a second time has no effect.
+     *
+     * @throws JMException if the metrics can not be registered.
+     */
+    public void register() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered.
+        }
+    }
+
+    /**
+     * Records an original message which was parsed.
+     *
+     * @param nanos The time taken to parse the message.
+     * @param bytes The size of the message, or -1 if it is not known.
+     */
+    public void parsed(final long nanos, final long bytes) {
+        messagesParsed.increment();
+        latencies[Stage.PARSE.ordinal()].record(nanos);
+        if (bytes > 0) {
+            bytesIn.add(bytes);
+        }
+    }
+
+    /**
+     * Records a report which was generated.
+     *
+     * @param nanos The time taken to generate the report.
+     */
+    public void generated(final long nanos) {
+        reportsGenerated.increment();
+        latencies[Stage.BUILD.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records a report which was serialized.
+     *
+     * @param nanos The time taken to write the report.
+     * @param bytes The size of the report.
+     */
+    public void serialized(final long nanos, final long bytes) {
+        latencies[Stage.SERIALIZE.ordinal()].record(nanos);
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Records a report which the SMTP server accepted.
+     *
+     * @param nanos The time taken by the SMTP transaction.
+     */
+    public void sent(final long nanos) {
+        reportsSent.increment();
+        latencies[Stage.SMTP.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records a report which the SMTP server did not accept.
+     *
+     * @param replyCode The SMTP reply code, or -1 if there was no reply.
+     */
+    public void sendFailed(final int replyCode) {
+        sendFailures.increment();
+        failuresByCode.computeIfAbsent(replyCode, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records an 8-bit report which was sent without being encoded, because
+     * the SMTP server supports <code>8BITMIME</code>.
+     *
+     * @param bytesSaved The estimated number of bytes which encoding the
+     * report would have added.
+     */
+    public void sentUnencoded(final long bytesSaved) {
+        reportsUnencoded.increment();
+        encodingBytesSaved.add(bytesSaved);
+    }
+
+    /**
+     * Records an 8-bit, or binary report which was encoded before it was
+     * sent, because the SMTP server does not support sending it as it is.
+     */
+    public void encoded() {
+        reportsEncoded.increment();
+    }
+
+    /**
+     * The latency histogram of a stage.
+     *
+     * @param stage The stage.
+     * @return the histogram of the stage.
+     */
+    public LatencyHistogram getLatency(final Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMessagesParsed() {
+        return messagesParsed.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReportsGenerated() {
+        return reportsGenerated.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReportsSent() {
+        return reportsSent.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getSendFailuresByReplyCode() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> e : failuresByCode.entrySet()) {
+            result.put(label(e.getKey()), e.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReportsUnencoded() {
+        return reportsUnencoded.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReportsEncoded() {
+        return reportsEncoded.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getEncodingBytesSaved() {
+        return encodingBytesSaved.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> result = new TreeMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = latencies[stage.ordinal()];
+            result.put(stage.label + ".mean", h.getMean() * 1000);
+            result.put(stage.label + ".p50", h.getQuantile(0.5) * 1000);
+            result.put(stage.label + ".p99", h.getQuantile(0.99) * 1000);
+        }
+        return result;
+    }
+
+    private static String label(final int replyCode) {
+        return replyCode < 0 ? "none" : Integer.toString(replyCode);
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format.
+     *
+     * @param out The writer to write to.
+     * @throws IOException if the metrics can not be written.
+     */
+    public void writePrometheus(final Writer out) throws IOException {
+        counter(out, "arf_messages_parsed_total", "Original messages parsed.", getMessagesParsed());
+        counter(out, "arf_reports_generated_total", "Reports generated.", getReportsGenerated());
+        counter(out, "arf_reports_sent_total", "Reports accepted by the SMTP server.", getReportsSent());
+        counter(out, "arf_bytes_in_total", "Bytes of original messages read.", getBytesIn());
+        counter(out, "arf_bytes_out_total", "Bytes of reports serialized.", getBytesOut());
+        counter(out, "arf_reports_unencoded_total", "8-bit reports sent without encoding.",
+                getReportsUnencoded());
+        counter(out, "arf_reports_encoded_total", "8-bit, or binary reports encoded before sending.",
+                getReportsEncoded());
+        counter(out, "arf_encoding_bytes_saved_total", "Estimated bytes not added by encoding reports.",
+                getEncodingBytesSaved());
+
+        out.write("# HELP arf_send_failures_total Reports not accepted by the SMTP server by reply code.\n");
+        out.write("# TYPE arf_send_failures_total counter\n");
+        for (Map.Entry<String, Long> e : getSendFailuresByReplyCode().entrySet()) {
+            out.write("arf_send_failures_total{code=\"" + e.getKey() + "\"} " + e.getValue() + "\n");
+        }
+
+        out.write("# HELP arf_stage_latency_seconds Latency of each stage of the pipeline.\n");
+        out.write("# TYPE arf_stage_latency_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = latencies[stage.ordinal()];
+            long cumulative = 0;
+            for (int i = 0; i <= LatencyHistogram.BOUNDS.length; i++) {
+                cumulative += h.getBucket(i);
+                String le = i < LatencyHistogram.BOUNDS.length
+                        ? BigDecimal.valueOf(LatencyHistogram.BOUNDS[i]).toPlainString() : "+Inf";
+                out.write("arf_stage_latency_seconds_bucket{stage=\"" + stage.label + "\",le=\"" + le + "\"} "
+                        + cumulative + "\n");
+            }
+            out.write("arf_stage_latency_seconds_sum{stage=\"" + stage.label + "\"} "
+                    + h.getSum() / (double) TimeUnit.SECONDS.toNanos(1) + "\n");
+            out.write("arf_stage_latency_seconds_count{stage=\"" + stage.label + "\"} " + h.getCount() + "\n");
+        }
+        out.flush();
+    }
+
+    private static void counter(final Writer out, final String name, final String help, final long value)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " counter\n");
+        out.write(name + " " + value + "\n");
+    }
+
+    /**
+     * Writes the metrics to a file in the Prometheus text exposition format.
+     * The file is replaced atomically, so it may be read by a collector at any
+     * time, e.g. the node exporter textfile collector.
+     *
+     * @param file The file to write.
+     * @throws IOException if the file can not be written.
+     */
+    public void writePrometheus(final Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writePrometheus(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+}
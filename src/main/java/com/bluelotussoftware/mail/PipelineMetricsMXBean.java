@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link PipelineMetrics}, which is registered
+ * as <code>com.bluelotussoftware.mail:type=PipelineMetrics</code>.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public interface PipelineMetricsMXBean {
+
+    /**
+     * The number of original messages parsed.
+     *
+     * @return the number of messages parsed.
+     */
+    long getMessagesParsed();
+
+    /**
+     * The number of reports generated.
+     *
+     * @return the number of reports generated.
+     */
+    long getReportsGenerated();
+
+    /**
+     * The number of reports accepted by the SMTP server.
+     *
+     * @return the number of reports sent.
+     */
+    long getReportsSent();
+
+    /**
+     * The number of reports which the SMTP server did not accept.
+     *
+     * @return the number of failed sends.
+     */
+    long getSendFailures();
+
+    /**
+     * The failed sends by SMTP reply code. Failures without a reply, such as a
+     * lost connection, are counted as <code>none</code>.
+     *
+     * @return the number of failures for each reply code.
+     */
+    Map<String, Long> getSendFailuresByReplyCode();
+
+    /**
+     * The number of bytes of original messages read.
+     *
+     * @return the bytes read.
+     */
+    long getBytesIn();
+
+    /**
+     * The number of bytes of reports serialized.
+     *
+     * @return the bytes written.
+     */
+    long getBytesOut();
+
+    /**
+     * The number of 8-bit reports sent without being encoded, because the
+     * SMTP server supports <code>8BITMIME</code>.
+     *
+     * @return the number of unencoded reports.
+     */
+    long getReportsUnencoded();
+
+    /**
+     * The number of 8-bit, or binary reports which were encoded before they
+     * were sent.
+     *
+     * @return the number of encoded reports.
+     */
+    long getReportsEncoded();
+
+    /**
+     * The estimated number of bytes which sending reports unencoded saved.
+     *
+     * @return the bytes saved.
+     */
+    long getEncodingBytesSaved();
+
+    /**
+     * The mean, median, and 99th percentile latency of each stage in
+     * milliseconds, keyed by <code>stage.statistic</code>, e.g.
+     * <code>smtp.p99</code>.
+     *
+     * @return the latencies of the stages.
+     */
+    Map<String, Double> getLatencyMillis();
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Determines the registrable domain of a host name, e.g.
+ * <code>example.co.uk</code> for <code>mail.example.co.uk</code>, using the
+ * rules of the <a href="https://publicsuffix.org/">Public Suffix List</a>.
+ * <p>
+ * The list is read from a local copy of <code>public_suffix_list.dat</code>.
+ * Normal, wildcard (<code>*.</code>), and exception (<code>!</code>) rules are
+ * supported. When no list is loaded, or no rule matches, the last label is
+ * treated as the public suffix.
+ * </p>
+ * <p>
+ * Instances are immutable once loaded, and may be shared between threads.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class PublicSuffixList {
+
+    private final Set<String> rules = new HashSet<>();
+    private final Set<String> wildcards = new HashSet<>();
+    private final Set<String> exceptions = new HashSet<>();
+
+    /**
+     * Constructor for an empty list, which treats the last label of every
+     * domain as its public suffix.
+     */
+    public PublicSuffixList() {
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file The public suffix list in the standard format.
+     * @throws IOException if the list can not be read.
+     */
+    public PublicSuffixList(final Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                String rule = (space < 0 ? line : line.substring(0, space)).trim().toLowerCase(Locale.ROOT);
+                if (rule.isEmpty() || rule.startsWith("//")) {
+                    continue;
+                }
+                if (rule.startsWith("!")) {
+                    exceptions.add(rule.substring(1));
+                } else if (rule.startsWith("*.")) {
+                    wildcards.add(rule.substring(2));
+                } else {
+                    rules.add(rule);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines the public suffix of a domain.
+     *
+     * @param domain The domain.
+     * @return the public suffix of the domain in lower case.
+     */
+    public String getPublicSuffix(final String domain) {
+        String d = normalize(domain);
+        int start = 0;
+        while (start < d.length()) {
+            String candidate = start == 0 ? d : d.substring(start);
+            int dot = candidate.indexOf('.');
+            if (exceptions.contains(candidate)) {
+                return dot < 0 ? "" : candidate.substring(dot + 1);
+            }
+            if (rules.contains(candidate) || (dot >= 0 && wildcards.contains(candidate.substring(dot + 1)))) {
+                return candidate;
+            }
+            if (dot < 0) {
+                return candidate;
+            }
+            start += dot + 1;
+        }
+        return d;
+    }
+
+    /**
+     * Determines the registrable domain, which is the public suffix, and one
+     * further label.
+     *
+     * @param domain The domain.
+     * @return the registrable domain in lower case, or {@code null} if the
+     * domain is itself a public suffix.
+     */
+    public String getRegistrableDomain(final String domain) {
+        String d = normalize(domain);
+        String suffix = getPublicSuffix(d);
+        if (suffix.length() >= d.length()) {
+            return null;
+        }
+        int end = d.length() - suffix.length() - (suffix.isEmpty() ? 0 : 1);
+        int start = d.lastIndexOf('.', end - 1) + 1;
+        return d.substring(start);
+    }
+
+    private static String normalize(final String domain) {
+        String d = domain.trim().toLowerCase(Locale.ROOT);
+        return d.endsWith(".") ? d.substring(0, d.length() - 1) : d;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.activation.DataSource;
+
+/**
+ * A read-only <code>message/rfc822</code> {@link DataSource} which streams the
+ * raw bytes of a {@link MessageSource}. This is used to attach the original
+ * message to a report byte-for-byte, without it being parsed, held in memory,
+ * or re-encoded by JavaMail.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class RawMessageDataSource implements DataSource {
+
+    private final MessageSource source;
+    private final String contentType;
+
+    /**
+     * Constructor.
+     *
+     * @param source The source of the raw message.
+     */
+    public RawMessageDataSource(final MessageSource source) {
+        this(source, "message/rfc822");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param source The source of the raw content.
+     * @param contentType The MIME type of the content.
+     */
+    public RawMessageDataSource(final MessageSource source, final String contentType) {
+        this.source = source;
+        this.contentType = contentType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return source.openStream();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This data source is read-only.
+     * </p>
+     */
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("RawMessageDataSource is read-only.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return source.getName();
+    }
+
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Generates, and sends ARF reports concurrently. Each report passes through
+ * three stages: the original message is parsed, the report is built, and the
+ * report is sent. Each stage has its own workers, and a bounded queue. When a
+ * queue is full the submitting thread blocks until there is space, so a slow
+ * SMTP server applies backpressure all the way back to the caller.
+ * <p>
+ * Workers are virtual threads when running on Java 21 or later, and platform
+ * threads otherwise.
+ * </p>
+ * <p>
+ * When an {@link IncidentAggregator} is set, copies of the same spam are
+ * collapsed after they are parsed, and only one report is built for each
+ * {@link Incident}. The futures of the copies complete when that report is
+ * sent.
+ * </p>
+ * <p>
+ * When a {@link ReportedMessageIndex} is set, a message which has already
+ * been reported is not reported again. The index is checked before the report
+ * is built, and the message is added to it once the report has been sent. A
+ * copy which arrives while the report of the first is being sent is held until
+ * that report completes. It is a duplicate if the first was added to the
+ * index, and is otherwise reported itself.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class ReportPipeline implements AutoCloseable {
+
+    /**
+     * The default capacity of the queue in front of each stage.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final SMTPSender smtp;
+    private final String abuseEmailAddress;
+    private final Stage parse;
+    private final Stage build;
+    private final Stage send;
+    private volatile boolean streamOriginal;
+    private volatile ReturnedContent returnedContent = ReturnedContent.FULL;
+    private volatile long maxBodyLength = ARFMessage.DEFAULT_MAX_BODY_LENGTH;
+    private volatile IncidentAggregator aggregator;
+    private volatile AbuseContactResolver resolver;
+    private volatile ReportedMessageIndex reportedIndex;
+    /**
+     * The jobs whose reports are being sent by the key of their message, so
+     * that copies submitted together are not both reported before either is
+     * in the index.
+     */
+    private final Map<Long, Job> reporting = new HashMap<>();
+    private final ThreadFactory retries = WorkerThreads.newThreadFactory("arf-retry");
+    private final Map<Incident, Job> leaders = new HashMap<>();
+    /**
+     * The number of reports passed to the sender which have not been sent.
+     */
+    private int sending;
+    private final Object sendLock = new Object();
+    private volatile boolean closed;
+
+    /**
+     * A message moving through the pipeline.
+     */
+    private static class Job {
+
+        private final long start = System.nanoTime();
+        private final String name;
+        private final MessageSource source;
+        private final CompletableFuture<DeliveryResult> result = new CompletableFuture<>();
+        private ParsedMessage parsed;
+        private String recipient;
+        private MimeMessage report;
+        private Incident incident;
+        private List<Job> copies;
+        private long key;
+        private boolean duplicate;
+        /**
+         * The copies held until the report of this message completes.
+         */
+        private List<Job> held;
+
+        private Job(final String name, final MessageSource source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        private void complete(final Exception cause) {
+            long now = System.nanoTime();
+            result.complete(new DeliveryResult(name, recipient, cause, now - start, false, duplicate));
+            if (copies != null) {
+                for (Job copy : copies) {
+                    copy.result.complete(new DeliveryResult(copy.name, recipient, cause, now - copy.start, true,
+                            duplicate));
+                }
+            }
+        }
+    }
+
+    /**
+     * A unit of work performed by a stage.
+     */
+    private interface Task {
+
+        void run(Job job) throws Exception;
+    }
+
+    /**
+     * A fixed number of workers consuming from a bounded queue.
+     */
+    private static class Stage {
+
+        private static final Job POISON = new Job(null, null);
+
+        private final BlockingQueue<Job> queue;
+        private final List<Thread> workers;
+
+        private Stage(final String name, final int workers, final int capacity, final Task task) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.workers = new ArrayList<>(workers);
+            ThreadFactory factory = WorkerThreads.newThreadFactory("arf-" + name);
+            for (int i = 0; i < workers; i++) {
+                Thread t = factory.newThread(() -> work(task));
+                this.workers.add(t);
+                t.start();
+            }
+        }
+
+        private void work(final Task task) {
+            try {
+                Job job;
+                while ((job = queue.take()) != POISON) {
+                    try {
+                        task.run(job);
+                    } catch (Exception e) {
+                        job.complete(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Adds a job, blocking while the queue is full.
+         */
+        private void submit(final Job job) throws InterruptedException {
+            queue.put(job);
+        }
+
+        /**
+         * Waits for the queued jobs to be processed, and stops the workers.
+         */
+        private void shutdown() throws InterruptedException {
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put(POISON);
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+        }
+    }
+
+    /**
+     * Constructor which uses one parse, and build worker per processor, and
+     * one send worker.
+     *
+     * @param smtp The sender used to deliver the reports.
+     * @param abuseEmailAddress The address the reports are sent to, or
+     * {@code null} to derive it from the sender of each message.
+     */
+    public ReportPipeline(final SMTPSender smtp, final String abuseEmailAddress) {
+        this(smtp, abuseEmailAddress, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(), 1, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param smtp The sender used to deliver the reports.
+     * @param abuseEmailAddress The address the reports are sent to, or
+     * {@code null} to derive it from the sender of each message.
+     * @param parseWorkers The number of workers parsing messages.
+     * @param buildWorkers The number of workers building reports.
+     * @param sendWorkers The number of workers sending reports. This should
+     * usually match the number of pooled SMTP connections.
+     * @param queueCapacity The capacity of the queue in front of each stage.
+     */
+    public ReportPipeline(final SMTPSender smtp, final String abuseEmailAddress, final int parseWorkers,
+            final int buildWorkers, final int sendWorkers, final int queueCapacity) {
+        this.smtp = smtp;
+        this.abuseEmailAddress = abuseEmailAddress;
+        this.send = new Stage("send", sendWorkers, queueCapacity, this::send);
+        this.build = new Stage("build", buildWorkers, queueCapacity, this::build);
+        this.parse = new Stage("parse", parseWorkers, queueCapacity, this::parse);
+    }
+
+    /**
+     * Submits a raw message to be reported. This blocks while the pipeline is
+     * full.
+     *
+     * @param source The message to report.
+     * @return a future which completes when the report has been sent, or has
+     * failed.
+     * @throws InterruptedException if interrupted while waiting for space in
+     * the pipeline.
+     */
+    public CompletableFuture<DeliveryResult> submit(final MessageSource source) throws InterruptedException {
+        checkOpen();
+        Job job = new Job(source.getName(), source);
+        parse.submit(job);
+        return job.result;
+    }
+
+    /**
+     * Submits a message which has already been parsed to be reported. This
+     * blocks while the pipeline is full.
+     *
+     * @param message The message to report.
+     * @return a future which completes when the report has been sent, or has
+     * failed.
+     * @throws InterruptedException if interrupted while waiting for space in
+     * the pipeline.
+     */
+    public CompletableFuture<DeliveryResult> submit(final ParsedMessage message) throws InterruptedException {
+        checkOpen();
+        Job job = new Job(message.getName(), null);
+        job.parsed = message;
+        try {
+            aggregate(job);
+        } catch (Exception e) {
+            job.complete(e);
+        }
+        return job.result;
+    }
+
+    /**
+     * Sets whether the original messages are streamed from their source into
+     * the reports. When enabled only the headers of each message are parsed.
+     *
+     * @param streamOriginal {@code true} to stream the original messages.
+     * @see ARFMessage#setStreamOriginal(boolean)
+     */
+    public void setStreamOriginal(final boolean streamOriginal) {
+        this.streamOriginal = streamOriginal;
+    }
+
+    /**
+     * Sets how much of each original message is returned in its report.
+     *
+     * @param returnedContent The returned content mode.
+     * @param maxBodyLength The number of bytes of the body returned when the
+     * original message is truncated.
+     * @see ARFMessage#setReturnedContent(com.bluelotussoftware.mail.ReturnedContent)
+     */
+    public void setReturnedContent(final ReturnedContent returnedContent, final long maxBodyLength) {
+        this.returnedContent = returnedContent;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * Sets the aggregator used to collapse copies of the same spam into a
+     * single report. This must be set before any message is submitted.
+     *
+     * @param aggregator The aggregator, or {@code null} to report every
+     * message.
+     */
+    public void setAggregator(final IncidentAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    /**
+     * Sets the resolver used to find the abuse contact of each message when
+     * no abuse address was provided.
+     *
+     * @param resolver The resolver, or {@code null} to report to
+     * <code>abuse@</code> the domain of the sender.
+     */
+    public void setAbuseContactResolver(final AbuseContactResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Sets the index of the messages which have already been reported. This
+     * must be set before any message is submitted.
+     *
+     * @param reportedIndex The index, or {@code null} to report every
+     * message.
+     */
+    public void setReportedIndex(final ReportedMessageIndex reportedIndex) {
+        this.reportedIndex = reportedIndex;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The pipeline is closed.");
+        }
+    }
+
+    private void parse(final Job job) throws Exception {
+        long start = System.nanoTime();
+        job.parsed = streamOriginal
+                ? ParsedMessage.parseHeaders(smtp.getSession(), job.source)
+                : ParsedMessage.parse(smtp.getSession(), job.source);
+        PipelineMetrics.getDefault().parsed(System.nanoTime() - start, job.source.getSize());
+        aggregate(job);
+    }
+
+    /**
+     * Passes the job to the build stage, unless an aggregator is set. The
+     * first copy of a message is held until its incident is closed, and each
+     * further copy is attached to the first.
+     */
+    private void aggregate(final Job job) throws Exception {
+        IncidentAggregator a = aggregator;
+        if (a == null) {
+            build.submit(job);
+            return;
+        }
+        IncidentFingerprint fingerprint = IncidentFingerprint.of(job.parsed);
+        List<Job> ready;
+        synchronized (a) {
+            if (a.add(job.parsed, fingerprint)) {
+                job.incident = a.getLastIncident();
+                job.copies = new ArrayList<>();
+                leaders.put(job.incident, job);
+            } else {
+                leaders.get(a.getLastIncident()).copies.add(job);
+                job.parsed = null;
+            }
+            ready = release(a.drainClosed());
+        }
+        for (Job leader : ready) {
+            build.submit(leader);
+        }
+    }
+
+    /**
+     * Finds the jobs holding the first copy of each closed incident.
+     */
+    private List<Job> release(final List<Incident> incidents) {
+        List<Job> ready = new ArrayList<>(incidents.size());
+        for (Incident i : incidents) {
+            ready.add(leaders.remove(i));
+        }
+        return ready;
+    }
+
+    private void build(final Job job) throws Exception {
+        ReportedMessageIndex index = reportedIndex;
+        if (index != null) {
+            job.key = ReportedMessageIndex.key(job.parsed);
+            synchronized (reporting) {
+                if (index.contains(job.key)) {
+                    job.duplicate = true;
+                    job.complete(null);
+                    return;
+                }
+                Job first = reporting.get(job.key);
+                if (first != null) {
+                    first.held.add(job);
+                    return;
+                }
+                job.held = new ArrayList<>();
+                reporting.put(job.key, job);
+            }
+        }
+        try {
+            generate(job);
+            send.submit(job);
+        } catch (Exception e) {
+            release(job);
+            throw e;
+        }
+    }
+
+    private void generate(final Job job) throws Exception {
+        job.recipient = ARF.getAbuseAddress(job.parsed, abuseEmailAddress, resolver);
+        ARFMessage arfm = new ARFMessage(smtp.getSession(), job.parsed, job.recipient);
+        arfm.setStreamOriginal(streamOriginal);
+        arfm.setReturnedContent(returnedContent);
+        arfm.setMaxBodyLength(maxBodyLength);
+        if (job.incident != null) {
+            arfm.setIncident(job.incident);
+        }
+        long start = System.nanoTime();
+        job.report = arfm.generateARF();
+        PipelineMetrics.getDefault().generated(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the report. When the sender schedules reports by destination the
+     * job completes once the scheduler has sent it.
+     */
+    private void send(final Job job) throws InterruptedException {
+        synchronized (sendLock) {
+            sending++;
+        }
+        CompletableFuture<Void> delivery;
+        try {
+            delivery = smtp.deliverAsync(job.report);
+        } catch (InterruptedException | RuntimeException e) {
+            release(job);
+            synchronized (sendLock) {
+                sending--;
+                sendLock.notifyAll();
+            }
+            throw e;
+        }
+        delivery.whenComplete((v, e) -> {
+            Throwable cause = record(job, e);
+            job.complete(cause == null ? null
+                    : cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+            synchronized (sendLock) {
+                sending--;
+                sendLock.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Adds a message whose report was sent to the index.
+     *
+     * @param failure The reason the report was not sent, or {@code null}.
+     * @return the reason the report failed, or {@code null}.
+     */
+    private Throwable record(final Job job, final Throwable failure) {
+        ReportedMessageIndex index = reportedIndex;
+        if (index == null || failure != null) {
+            release(job);
+            return failure;
+        }
+        try {
+            index.add(job.key);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return new IOException("The report was sent, but could not be added to the index.", e);
+        } finally {
+            release(job);
+        }
+    }
+
+    /**
+     * Completes the copies held by a job once its report has been sent, or has
+     * failed. They are duplicates if the message is in the index, otherwise
+     * the first copy is reported in its place, and holds the others.
+     */
+    private void release(final Job job) {
+        if (job.key == 0) {
+            return;
+        }
+        ReportedMessageIndex index = reportedIndex;
+        List<Job> held;
+        Job next = null;
+        synchronized (reporting) {
+            reporting.remove(job.key, job);
+            held = job.held;
+            job.held = null;
+            if (held == null || held.isEmpty()) {
+                return;
+            }
+            if (!index.contains(job.key)) {
+                next = held.remove(0);
+                next.key = job.key;
+                next.held = held;
+                reporting.put(next.key, next);
+            }
+        }
+        if (next == null) {
+            for (Job copy : held) {
+                copy.duplicate = true;
+                copy.complete(null);
+            }
+        } else {
+            retry(next);
+        }
+    }
+
+    /**
+     * Reports a copy whose first copy failed. It is built, and sent on its own
+     * thread, as the stages may be full, or stopped.
+     */
+    private void retry(final Job job) {
+        synchronized (sendLock) {
+            sending++;
+        }
+        retries.newThread(() -> {
+            try {
+                try {
+                    generate(job);
+                } catch (Exception e) {
+                    release(job);
+                    throw e;
+                }
+                send(job);
+            } catch (Exception e) {
+                job.complete(e);
+            } finally {
+                synchronized (sendLock) {
+                    sending--;
+                    sendLock.notifyAll();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Waits for every submitted message to be reported, and stops the
+     * workers. The {@link SMTPSender} is not closed.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        parse.shutdown();
+        IncidentAggregator a = aggregator;
+        if (a != null) {
+            List<Job> ready;
+            synchronized (a) {
+                ready = release(a.flush());
+            }
+            for (Job leader : ready) {
+                build.submit(leader);
+            }
+        }
+        build.shutdown();
+        send.shutdown();
+        synchronized (sendLock) {
+            while (sending > 0) {
+                sendLock.wait();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.bluelotussoftware.mail.arf.AbuseFormatReport;
+import com.sun.mail.util.LineOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParameterList;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Renders reports from fragments which are encoded once, rather than building
+ * a {@link com.bluelotussoftware.mail.arf.ARFMultipartReport} of body parts,
+ * and data handlers for every message. Every report has the same structure, so
+ * the part headers, and most of the human readable text are written from
+ * pre-encoded bytes. Only the boundary, the fields of the report, and the
+ * original message are written for each message.
+ * <p>
+ * The output is byte-for-byte the same as the report built by JavaMail, apart
+ * from the boundary, and <code>Message-ID:</code> which are unique to each
+ * report. JavaMail encodes a part as <code>quoted-printable</code>, or
+ * <code>base64</code> if it contains characters which are not US-ASCII, or
+ * lines longer than 998 characters. A report with such a part is not rendered
+ * from the template, and {@link ARFMessage} builds it with JavaMail instead.
+ * The returned message is labelled <code>8bit</code>, or <code>binary</code>
+ * when it is known not to be US-ASCII, as it is by JavaMail, and is only
+ * encoded when the report is sent to a server which can not accept it.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+final class ReportTemplate {
+
+    static final String TEXT_INTRO = "This is an email abuse report for an email message received from IP\n";
+    static final String TEXT_ON = " on ";
+    static final String TEXT_INFO = ".  For more information\n"
+            + "about this format please see http://www.mipassoc.org/arf/.\n";
+    static final String TEXT_INCIDENTS = "\nThis report covers ";
+    static final String TEXT_COPIES = " copies of the message received between\n";
+    static final String TEXT_COPIES_END = " copies of the message.\n";
+    static final String TEXT_AND = " and ";
+    static final String TEXT_END = ".\n";
+    static final String TEXT_HEADERS = "\nOnly the headers of the original message are included.\n";
+    static final String TEXT_TRUNCATED = "\nThe original message has been truncated to the first ";
+    static final String TEXT_TRUNCATED_END = " bytes of its body.\n";
+
+    /**
+     * The longest line JavaMail writes without encoding the part.
+     */
+    private static final int MAX_LINE_LENGTH = 998;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] DASHES = {'-', '-'};
+    private static final byte[] TEXT_PART = ascii("Content-Type: text/plain; charset=us-ascii\r\n"
+            + "Content-Transfer-Encoding: 7bit\r\n\r\n");
+    private static final byte[] REPORT_PART = ascii("Content-Type: message/feedback-report\r\n"
+            + "Content-Transfer-Encoding: 7bit\r\n\r\n");
+    private static final byte[] MESSAGE_PART = ascii("Content-Type: message/rfc822\r\n");
+    private static final byte[][] ENCODINGS = {
+        new byte[0],
+        ascii("Content-Transfer-Encoding: 8bit\r\n"),
+        ascii("Content-Transfer-Encoding: binary\r\n")};
+    private static final byte[] HEADERS_PART = ascii("Content-Type: text/rfc822-headers; charset=us-ascii\r\n"
+            + "Content-Transfer-Encoding: 7bit\r\n"
+            + "Content-Description: Original message headers\r\n\r\n");
+    private static final byte[] TEXT_INTRO_BYTES = ascii(TEXT_INTRO);
+    private static final byte[] TEXT_ON_BYTES = ascii(TEXT_ON);
+    private static final byte[] TEXT_INFO_BYTES = ascii(TEXT_INFO);
+    private static final byte[] TEXT_INCIDENTS_BYTES = ascii(TEXT_INCIDENTS);
+    private static final byte[] TEXT_COPIES_BYTES = ascii(TEXT_COPIES);
+    private static final byte[] TEXT_COPIES_END_BYTES = ascii(TEXT_COPIES_END);
+    private static final byte[] TEXT_AND_BYTES = ascii(TEXT_AND);
+    private static final byte[] TEXT_END_BYTES = ascii(TEXT_END);
+    private static final byte[] TEXT_HEADERS_BYTES = ascii(TEXT_HEADERS);
+    private static final byte[] TEXT_TRUNCATED_BYTES = ascii(TEXT_TRUNCATED);
+    private static final byte[] TEXT_TRUNCATED_END_BYTES = ascii(TEXT_TRUNCATED_END);
+    private static final AtomicInteger PART = new AtomicInteger();
+
+    private ReportTemplate() {
+    }
+
+    /**
+     * The returned message, the third part of a report, including its part
+     * headers.
+     */
+    abstract static class Part {
+
+        /**
+         * Writes the part.
+         *
+         * @param os The stream to write to.
+         * @throws IOException if the part can not be written.
+         * @throws MessagingException if the original message can not be read.
+         */
+        abstract void writeTo(OutputStream os) throws IOException, MessagingException;
+    }
+
+    /**
+     * The original message returned as <code>message/rfc822</code>.
+     *
+     * @param message The original message.
+     * @param description The <code>Content-Description:</code> of the part,
+     * or {@code null}.
+     * @return the returned message part.
+     */
+    static MessagePart message(final ReturnedMessage message, final String description) {
+        return new MessagePart(message, description == null ? new byte[0]
+                : ascii("Content-Description: " + MimeUtility.fold(21, description) + "\r\n"));
+    }
+
+    /**
+     * The headers of the original message returned as
+     * <code>text/rfc822-headers</code>.
+     *
+     * @param headers The headers of the original message.
+     * @return the returned headers part, or {@code null} if the headers would
+     * be encoded by JavaMail.
+     */
+    static Part headers(final InternetHeaders headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+        out.write(HEADERS_PART, 0, HEADERS_PART.length);
+        int start = out.size();
+        Enumeration<?> lines = headers.getAllHeaderLines();
+        while (lines.hasMoreElements()) {
+            write(out, (String) lines.nextElement());
+            out.write(CRLF, 0, CRLF.length);
+        }
+        out.write(CRLF, 0, CRLF.length);
+        byte[] part = out.toByteArray();
+        if (!is7bit(part, start, part.length)) {
+            return null;
+        }
+        return new Part() {
+            @Override
+            void writeTo(final OutputStream os) throws IOException {
+                os.write(part);
+            }
+        };
+    }
+
+    /**
+     * The returned message, which is labelled with its type once it is known,
+     * and may be replaced by a copy whose parts are encoded.
+     */
+    static final class MessagePart extends Part {
+
+        private final ReturnedMessage message;
+        private final byte[] description;
+        private BodyType type = BodyType.SEVEN_BIT;
+        private MimeMessage encoded;
+
+        private MessagePart(final ReturnedMessage message, final byte[] description) {
+            this.message = message;
+            this.description = description;
+        }
+
+        /**
+         * Labels the part with the type of the message.
+         *
+         * @param type The type of the message.
+         */
+        void setBodyType(final BodyType type) {
+            this.type = type;
+        }
+
+        /**
+         * Replaces the message with a copy whose parts are encoded, which is
+         * not labelled.
+         *
+         * @param encoded The encoded message.
+         */
+        void setEncoded(final MimeMessage encoded) {
+            this.encoded = encoded;
+            this.type = BodyType.SEVEN_BIT;
+        }
+
+        @Override
+        void writeTo(final OutputStream os) throws IOException, MessagingException {
+            os.write(MESSAGE_PART);
+            os.write(ENCODINGS[type.ordinal()]);
+            os.write(description);
+            os.write(CRLF);
+            if (encoded != null) {
+                encoded.writeTo(os);
+            } else {
+                message.writeTo(os);
+            }
+        }
+    }
+
+    /**
+     * Renders the human readable text of a report.
+     *
+     * @param sourceIP The IP address the message was received from.
+     * @param arrivalDate The date the message was received, or {@code null}
+     * if it is not known.
+     * @param incidents The number of copies covered by the report.
+     * @param firstArrivalDate The date the first copy was received, or
+     * {@code null} if it is not known.
+     * @param lastArrivalDate The date the last copy was received, or
+     * {@code null} if it is not known.
+     * @param headersOnly {@code true} if only the headers of the message are
+     * returned.
+     * @param truncatedTo The number of bytes of the body returned, or -1 if
+     * the message is not truncated.
+     * @return the text, or {@code null} if it would be encoded by JavaMail.
+     */
+    static byte[] text(final String sourceIP, final String arrivalDate, final int incidents,
+            final String firstArrivalDate, final String lastArrivalDate, final boolean headersOnly,
+            final long truncatedTo) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        out.write(TEXT_INTRO_BYTES, 0, TEXT_INTRO_BYTES.length);
+        write(out, String.valueOf(sourceIP));
+        if (arrivalDate != null) {
+            out.write(TEXT_ON_BYTES, 0, TEXT_ON_BYTES.length);
+            write(out, arrivalDate);
+        }
+        out.write(TEXT_INFO_BYTES, 0, TEXT_INFO_BYTES.length);
+        if (incidents > 1) {
+            out.write(TEXT_INCIDENTS_BYTES, 0, TEXT_INCIDENTS_BYTES.length);
+            write(out, Integer.toString(incidents));
+            if (firstArrivalDate != null && lastArrivalDate != null) {
+                out.write(TEXT_COPIES_BYTES, 0, TEXT_COPIES_BYTES.length);
+                write(out, firstArrivalDate);
+                out.write(TEXT_AND_BYTES, 0, TEXT_AND_BYTES.length);
+                write(out, lastArrivalDate);
+                out.write(TEXT_END_BYTES, 0, TEXT_END_BYTES.length);
+            } else {
+                out.write(TEXT_COPIES_END_BYTES, 0, TEXT_COPIES_END_BYTES.length);
+            }
+        }
+        if (headersOnly) {
+            out.write(TEXT_HEADERS_BYTES, 0, TEXT_HEADERS_BYTES.length);
+        } else if (truncatedTo >= 0) {
+            out.write(TEXT_TRUNCATED_BYTES, 0, TEXT_TRUNCATED_BYTES.length);
+            write(out, Long.toString(truncatedTo));
+            out.write(TEXT_TRUNCATED_END_BYTES, 0, TEXT_TRUNCATED_END_BYTES.length);
+        }
+        byte[] text = out.toByteArray();
+        return is7bit(text, 0, text.length) ? text : null;
+    }
+
+    /**
+     * Renders a report.
+     *
+     * @param session The session used to create the report.
+     * @param from The sender of the report.
+     * @param to The abuse address the report is sent to.
+     * @param subject The subject of the report.
+     * @param text The human readable text.
+     * @param report The machine readable part.
+     * @param returned The returned message.
+     * @return the report, or {@code null} if the machine readable part would
+     * be encoded by JavaMail.
+     * @throws MessagingException if the headers of the report can not be set.
+     */
+    static ARFMessage.ReportMessage render(final Session session, final String from, final String to, final String subject,
+            final byte[] text, final AbuseFormatReport report, final Part returned) throws MessagingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        try {
+            report.writeTo(out);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to write the feedback report.", e);
+        }
+        byte[] fields = out.toByteArray();
+        if (!is7bit(fields, 0, fields.length)) {
+            return null;
+        }
+        String boundary = "----=_Part_" + PART.getAndIncrement() + "_"
+                + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE) + "." + System.currentTimeMillis();
+        ParameterList parameters = new ParameterList();
+        parameters.set("boundary", boundary);
+        parameters.set("report-type", "feedback-report");
+
+        TemplateMessage message = new TemplateMessage(session, ascii(boundary), text, fields, returned);
+        message.setFrom(new InternetAddress(from));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+        message.setSubject(subject);
+        message.setHeader("Content-Type", new ContentType("multipart", "report", parameters).toString());
+        return message;
+    }
+
+    /**
+     * Indicates if JavaMail would send a part as <code>7bit</code>, i.e. it
+     * only contains US-ASCII characters, and no line is longer than
+     * {@value #MAX_LINE_LENGTH} characters.
+     */
+    private static boolean is7bit(final byte[] b, final int start, final int end) {
+        int line = 0;
+        for (int i = start; i < end; i++) {
+            int c = b[i] & 0xff;
+            if (c == '\r' || c == '\n') {
+                line = 0;
+            } else if (c >= 0x7f || (c < 0x20 && c != '\t')) {
+                return false;
+            } else if (++line > MAX_LINE_LENGTH) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a string one byte per character. A character which is not
+     * US-ASCII is written as a byte which {@link #is7bit} rejects.
+     */
+    private static void write(final ByteArrayOutputStream out, final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            out.write(c < 0x80 ? c : 0xff);
+        }
+    }
+
+    private static byte[] ascii(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A report whose body is written from the template. The headers are held,
+     * and written by {@link MimeMessage}, so they may be changed as usual. If
+     * the content is replaced the report is written by JavaMail.
+     */
+    private static class TemplateMessage extends ARFMessage.ReportMessage {
+
+        private final byte[] boundary;
+        private final byte[] text;
+        private final byte[] fields;
+        private final Part returned;
+        private boolean replaced;
+
+        private TemplateMessage(final Session session, final byte[] boundary, final byte[] text,
+                final byte[] fields, final Part returned) {
+            super(session);
+            this.boundary = boundary;
+            this.text = text;
+            this.fields = fields;
+            this.returned = returned;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void setDataHandler(final DataHandler dh) throws MessagingException {
+            replaced = true;
+            super.setDataHandler(dh);
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * The <code>Content-Type:</code> is set when the report is rendered,
+         * so only the <code>MIME-Version:</code>, and
+         * <code>Message-ID:</code> are updated.
+         * </p>
+         */
+        @Override
+        protected synchronized void updateHeaders() throws MessagingException {
+            if (replaced) {
+                super.updateHeaders();
+                return;
+            }
+            setHeader("MIME-Version", "1.0");
+            updateMessageID();
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * The body is rendered into memory, so that the report may be read
+         * with {@link #getContent()}.
+         * </p>
+         */
+        @Override
+        protected synchronized InputStream getContentStream() throws MessagingException {
+            if (replaced) {
+                return super.getContentStream();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            try {
+                writeBody(out);
+            } catch (IOException e) {
+                throw new MessagingException("Unable to render the report.", e);
+            }
+            return new SharedByteArrayInputStream(out.toByteArray());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void labelReturned(final BodyType type) throws MessagingException {
+            if (replaced) {
+                super.labelReturned(type);
+            } else if (returned instanceof MessagePart) {
+                ((MessagePart) returned).setBodyType(type);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * The text, and the fields of a rendered report are US-ASCII, so only
+         * the returned message is replaced.
+         * </p>
+         */
+        @Override
+        void encodeParts(final MimeMessage encoded) throws MessagingException {
+            if (replaced) {
+                super.encodeParts(encoded);
+            } else if (encoded != null && returned instanceof MessagePart) {
+                ((MessagePart) returned).setEncoded(encoded);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void writeReport(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+            if (replaced) {
+                super.writeReport(os, ignoreList);
+                return;
+            }
+            if (!saved) {
+                saveChanges();
+            }
+            LineOutputStream los = new LineOutputStream(os);
+            Enumeration<?> lines = getNonMatchingHeaderLines(ignoreList);
+            while (lines.hasMoreElements()) {
+                los.writeln((String) lines.nextElement());
+            }
+            los.writeln();
+            writeBody(os);
+            os.flush();
+        }
+
+        private void writeBody(final OutputStream os) throws IOException, MessagingException {
+            delimiter(os);
+            os.write(TEXT_PART);
+            os.write(text);
+            os.write(CRLF);
+            delimiter(os);
+            os.write(REPORT_PART);
+            os.write(fields);
+            os.write(CRLF);
+            delimiter(os);
+            returned.writeTo(os);
+            os.write(CRLF);
+            os.write(DASHES);
+            os.write(boundary);
+            os.write(DASHES);
+            os.write(CRLF);
+        }
+
+        private void delimiter(final OutputStream os) throws IOException {
+            os.write(DASHES);
+            os.write(boundary);
+            os.write(CRLF);
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.mail.MessagingException;
+
+/**
+ * A persistent index of the messages which have already been reported, so
+ * that a message which is submitted again, e.g. when a user forwards the same
+ * spam twice, or a batch is retried, is not reported twice.
+ * <p>
+ * A message is identified by a 64 bit key, which is a digest of its
+ * <code>Message-ID:</code>, and of its body normalized as for an
+ * {@link IncidentFingerprint}. The keys are held in an open addressing hash
+ * table in a memory-mapped file, so a lookup is a single probe sequence over
+ * the mapping, and the index occupies no heap however many messages it holds.
+ * Each entry takes 8 bytes, and the table is doubled when it is 70% full, so
+ * ten million messages need a file of 128, or 256 MB. The chance that any
+ * two different messages share a key is below one in ten thousand at fifty
+ * million messages.
+ * </p>
+ * <p>
+ * The table is written through the mapping, so it survives the process being
+ * killed, although the most recent entries may be lost if the machine fails
+ * before they reach the disk. The index is flushed to disk when it is closed.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class ReportedMessageIndex implements Closeable {
+
+    /**
+     * The number of slots in a new index.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final long MAGIC = 0x4152464445445550L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int DIRTY_OFFSET = 12;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+    /**
+     * Each mapped segment holds 2^27 slots, i.e. 1 GB, so that tables larger
+     * than a single mapping may be used.
+     */
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final double MAX_LOAD = 0.7;
+    /**
+     * The key which marks an empty slot.
+     */
+    private static final long EMPTY = 0;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+    private long capacity;
+    private long size;
+    private boolean dirty;
+
+    /**
+     * Opens an index, creating it if the file does not exist.
+     *
+     * @param path The file holding the index.
+     * @throws IOException if the file can not be opened, or is not an index.
+     */
+    public ReportedMessageIndex(final Path path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens an index, creating it if the file does not exist.
+     *
+     * @param path The file holding the index.
+     * @param initialCapacity The number of slots of a new index. It is rounded
+     * up to a power of two.
+     * @throws IOException if the file can not be opened, or is not an index.
+     */
+    public ReportedMessageIndex(final Path path, final int initialCapacity) throws IOException {
+        this.path = path;
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            create(path, Math.max(16, Long.highestOneBit(Math.max(1, initialCapacity - 1)) << 1));
+        }
+        open();
+    }
+
+    /**
+     * Computes the key of a message.
+     *
+     * @param message The message.
+     * @return the key identifying the message in the index.
+     * @throws MessagingException if the message can not be parsed.
+     * @throws IOException if the body can not be read.
+     */
+    public static long key(final ParsedMessage message) throws MessagingException, IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+        String messageId = message.getMessageID();
+        if (messageId != null) {
+            digest.update(messageId.trim().getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        digest.update(message.getBodyDigest());
+        byte[] d = digest.digest();
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = key << 8 | (d[i] & 0xff);
+        }
+        return key == EMPTY ? 1 : key;
+    }
+
+    /**
+     * Determines if a message has been reported.
+     *
+     * @param key The key of the message.
+     * @return {@code true} if the key is in the index.
+     */
+    public synchronized boolean contains(final long key) {
+        checkOpen();
+        return get(find(key == EMPTY ? 1 : key)) != EMPTY;
+    }
+
+    /**
+     * Records a message as reported.
+     *
+     * @param key The key of the message.
+     * @return {@code true} if the key was added, or {@code false} if it was
+     * already in the index.
+     * @throws IOException if the index must grow, and the file can not be
+     * written.
+     */
+    public synchronized boolean add(final long key) throws IOException {
+        checkOpen();
+        long k = key == EMPTY ? 1 : key;
+        long slot = find(k);
+        if (get(slot) != EMPTY) {
+            return false;
+        }
+        if (!dirty) {
+            header.putInt(DIRTY_OFFSET, 1);
+            dirty = true;
+        }
+        put(slot, k);
+        size++;
+        header.putLong(SIZE_OFFSET, size);
+        if (size > capacity * MAX_LOAD) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * The number of messages in the index.
+     *
+     * @return the size of the index.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * The number of slots in the table.
+     *
+     * @return the capacity of the index.
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the index to disk.
+     *
+     * @throws IOException if the index can not be written.
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        if (dirty) {
+            header.putInt(DIRTY_OFFSET, 0);
+            dirty = false;
+        }
+        header.force();
+    }
+
+    /**
+     * Flushes, and closes the index.
+     *
+     * @throws IOException if the index can not be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            channel.close();
+            channel = null;
+            header = null;
+            segments = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (channel == null) {
+            throw new IllegalStateException("The index is closed.");
+        }
+    }
+
+    /**
+     * Finds the slot holding a key, or the empty slot where it would be
+     * added, by linear probing from the slot of its hash.
+     */
+    private long find(final long key) {
+        long mask = capacity - 1;
+        long slot = mix(key) & mask;
+        while (true) {
+            long k = get(slot);
+            if (k == key || k == EMPTY) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Spreads the bits of a key, so that keys which are not uniformly
+     * distributed still spread over the table.
+     */
+    private static long mix(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long get(final long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong((int) ((slot & SEGMENT_MASK) << 3));
+    }
+
+    private void put(final long slot, final long key) {
+        segments[(int) (slot >>> SEGMENT_SHIFT)].putLong((int) ((slot & SEGMENT_MASK) << 3), key);
+    }
+
+    /**
+     * Rehashes the index into a file of twice the capacity, which then
+     * replaces the index.
+     */
+    private void grow() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        create(temp, capacity * 2);
+        try (ReportedMessageIndex larger = new ReportedMessageIndex(temp)) {
+            for (long slot = 0; slot < capacity; slot++) {
+                long k = get(slot);
+                if (k != EMPTY) {
+                    larger.put(larger.find(k), k);
+                }
+            }
+            larger.size = size;
+            larger.header.putLong(SIZE_OFFSET, size);
+        }
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    /**
+     * Creates an empty index file. The file is sparse, so the empty slots
+     * take no space on disk until they are written.
+     */
+    private static void create(final Path file, final long capacity) throws IOException {
+        try (FileChannel c = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer h = c.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            h.putLong(MAGIC_OFFSET, MAGIC);
+            h.putInt(VERSION_OFFSET, VERSION);
+            h.putInt(DIRTY_OFFSET, 0);
+            h.putLong(CAPACITY_OFFSET, capacity);
+            h.putLong(SIZE_OFFSET, 0);
+            h.force();
+            // Extend the file to its full length by writing its last byte.
+            c.write(ByteBuffer.allocate(1), HEADER_SIZE + capacity * 8 - 1);
+        }
+    }
+
+    /**
+     * Maps the index file. If the index was not closed cleanly the size is
+     * recounted from the table.
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (header.getLong(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException(path + " is not a reported message index.");
+            }
+            capacity = header.getLong(CAPACITY_OFFSET);
+            if (Long.bitCount(capacity) != 1 || channel.size() < HEADER_SIZE + capacity * 8) {
+                throw new IOException(path + " is truncated, or corrupt.");
+            }
+            int count = (int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long slots = Math.min(capacity - start, 1L << SEGMENT_SHIFT);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start * 8, slots * 8);
+            }
+            dirty = header.getInt(DIRTY_OFFSET) != 0;
+            size = header.getLong(SIZE_OFFSET);
+            if (dirty) {
+                size = 0;
+                for (long slot = 0; slot < capacity; slot++) {
+                    if (get(slot) != EMPTY) {
+                        size++;
+                    }
+                }
+                header.putLong(SIZE_OFFSET, size);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+/**
+ * How much of the original message is returned in the third part of an ARF
+ * report. RFC-5965 allows the original message to be returned in full, as
+ * <code>text/rfc822-headers</code>, or truncated.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public enum ReturnedContent {
+
+    /**
+     * The complete original message as <code>message/rfc822</code>.
+     */
+    FULL,
+    /**
+     * Only the headers of the original message as
+     * <code>text/rfc822-headers</code>.
+     */
+    HEADERS,
+    /**
+     * The headers, and the first bytes of the body of the original message as
+     * <code>message/rfc822</code>.
+     */
+    TRUNCATED;
+}
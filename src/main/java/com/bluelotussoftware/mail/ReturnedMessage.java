@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The original message returned in the third part of a report as
+ * <code>message/rfc822</code>. The message is read when the report is
+ * written. Its {@link BodyType} is only determined when it is needed, i.e.
+ * when the report is sent to a server supporting <code>8BITMIME</code>, so
+ * that the message is not read an extra time for every report.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+abstract class ReturnedMessage {
+
+    /**
+     * The raw bytes of the original message read from its source.
+     *
+     * @param source The source of the original message.
+     * @return the returned message.
+     */
+    static ReturnedMessage of(final MessageSource source) {
+        return new ReturnedMessage() {
+            @Override
+            void writeTo(final OutputStream os) throws IOException {
+                try (InputStream is = source.openStream()) {
+                    copy(is, os);
+                }
+            }
+
+            @Override
+            MimeMessage encoded(final Session session) {
+                return SevenBitConverter.encoded(session, source);
+            }
+        };
+    }
+
+    /**
+     * The original message written with
+     * {@link MimeMessage#writeTo(java.io.OutputStream)}.
+     *
+     * @param message The original message.
+     * @return the returned message.
+     */
+    static ReturnedMessage of(final MimeMessage message) {
+        return new ReturnedMessage() {
+            @Override
+            void writeTo(final OutputStream os) throws IOException, MessagingException {
+                message.writeTo(os);
+            }
+
+            @Override
+            BodyTypeScanner scan() throws MessagingException {
+                if (message instanceof ParsedMessage) {
+                    return ((ParsedMessage) message).scanBody();
+                }
+                return super.scan();
+            }
+
+            @Override
+            MimeMessage encoded(final Session session) {
+                return SevenBitConverter.encoded(session, message);
+            }
+        };
+    }
+
+    /**
+     * The headers of the original message, and the first bytes of its body.
+     *
+     * @param message The original message.
+     * @param maxBodyLength The number of bytes of the body returned.
+     * @return the returned message.
+     */
+    static ReturnedMessage truncated(final MimeMessage message, final long maxBodyLength) {
+        return new ReturnedMessage() {
+            @Override
+            void writeTo(final OutputStream os) throws IOException {
+                try (InputStream is = new TruncatedMessageDataSource(message, maxBodyLength).getInputStream()) {
+                    copy(is, os);
+                }
+            }
+
+            @Override
+            MimeMessage encoded(final Session session) throws MessagingException {
+                // The truncated message is small, and is held while it is encoded.
+                ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+                try {
+                    writeTo(out);
+                } catch (IOException e) {
+                    throw new MessagingException("Unable to read the original message.", e);
+                }
+                return SevenBitConverter.encoded(session, out.toByteArray());
+            }
+        };
+    }
+
+    /**
+     * Writes the message unchanged.
+     *
+     * @param os The stream to write to.
+     * @throws IOException if the message can not be written.
+     * @throws MessagingException if the message can not be read.
+     */
+    abstract void writeTo(OutputStream os) throws IOException, MessagingException;
+
+    /**
+     * Reads the message to determine its type.
+     *
+     * @return the scan of the message.
+     * @throws MessagingException if the message can not be read.
+     */
+    BodyTypeScanner scan() throws MessagingException {
+        BodyTypeScanner scanner = new BodyTypeScanner();
+        try {
+            writeTo(scanner);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to read the original message.", e);
+        }
+        return scanner;
+    }
+
+    /**
+     * The message with its unencoded parts encoded, which is converted as it
+     * is written.
+     *
+     * @param session The session used to parse the message.
+     * @return the encoded message.
+     * @throws MessagingException if the message can not be read.
+     */
+    abstract MimeMessage encoded(Session session) throws MessagingException;
+
+    private static void copy(final InputStream is, final OutputStream os) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            os.write(buffer, 0, n);
+        }
+    }
+
+}
@@ -0,0 +1,672 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal SMTP, and LMTP server which accepts messages on a local port, and
+ * passes each one to a {@link MessageHandler} as an in-memory
+ * {@link MessageSource}. A client using <code>LHLO</code> is served as LMTP,
+ * and receives a reply for each recipient once the message is accepted.
+ * <p>
+ * Each connection is served by its own thread from {@link WorkerThreads},
+ * which are virtual threads when running on Java 21 or later, so a large
+ * number of concurrent submissions may be accepted. The server does not
+ * support TLS, or authentication, and is intended to listen on a loopback
+ * address.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class SMTPListener implements AutoCloseable {
+
+    /**
+     * The default maximum size of a message in bytes.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 25 * 1024 * 1024;
+    /**
+     * The default maximum number of concurrent connections.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    /**
+     * The default maximum number of bytes of messages being received which
+     * are held in memory across all connections.
+     */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 256L * 1024 * 1024;
+    /**
+     * The maximum length of a command line, which is larger than the 512
+     * octets required by RFC-5321.
+     */
+    private static final int MAX_COMMAND_LENGTH = 2048;
+    /**
+     * The delays in milliseconds before accepting again after a failure.
+     */
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1000;
+
+    private final ServerSocket server;
+    private final MessageHandler handler;
+    private final ThreadFactory factory = WorkerThreads.newThreadFactory("arf-smtp");
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong buffered = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private String hostname = "localhost";
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    private int timeout = 300000;
+    private volatile boolean closed;
+    private Thread acceptor;
+
+    /**
+     * Receives the messages accepted by the {@link SMTPListener}.
+     */
+    public interface MessageHandler {
+
+        /**
+         * Accepts a message. The message is acknowledged to the client when
+         * this returns, and rejected with a temporary failure if it throws,
+         * or with the reply of a {@link ReplyException}.
+         *
+         * @param mailFrom The reverse path given with <code>MAIL FROM:</code>.
+         * @param recipients The forward paths given with
+         * <code>RCPT TO:</code>.
+         * @param message The raw message.
+         * @throws Exception if the message can not be accepted.
+         */
+        void accept(String mailFrom, List<String> recipients, MessageSource message) throws Exception;
+    }
+
+    /**
+     * Thrown by a {@link MessageHandler} to reject a message with a specific
+     * reply, e.g. a permanent <code>550</code> failure.
+     */
+    public static class ReplyException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+        private final String reply;
+
+        /**
+         * Constructor.
+         *
+         * @param reply The reply sent to the client, including its reply
+         * code, e.g. <code>550 5.7.1 Message rejected</code>.
+         */
+        public ReplyException(final String reply) {
+            super(reply);
+            this.reply = reply;
+        }
+
+        /**
+         * The reply sent to the client.
+         *
+         * @return the reply line.
+         */
+        public String getReply() {
+            return reply;
+        }
+    }
+
+    /**
+     * Constructor which binds the server socket. Connections are not accepted
+     * until {@link #start()} is called.
+     *
+     * @param address The address to listen on. A port of 0 chooses a free
+     * port.
+     * @param handler The handler for the messages received.
+     * @throws IOException if the address can not be bound.
+     */
+    public SMTPListener(final InetSocketAddress address, final MessageHandler handler) throws IOException {
+        this.handler = handler;
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(address, 512);
+    }
+
+    /**
+     * Sets the host name used in the greeting, and replies.
+     *
+     * @param hostname The host name. The default is localhost.
+     */
+    public void setHostname(final String hostname) {
+        this.hostname = hostname;
+    }
+
+    /**
+     * Sets the maximum size of a message. Larger messages are rejected.
+     *
+     * @param maxMessageSize The size in bytes. The default is
+     * {@value #DEFAULT_MAX_MESSAGE_SIZE}.
+     */
+    public void setMaxMessageSize(final int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Sets the maximum number of concurrent connections. Further connections
+     * are refused with a <code>421</code> reply.
+     *
+     * @param maxConnections The number of connections. The default is
+     * {@value #DEFAULT_MAX_CONNECTIONS}.
+     */
+    public void setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of bytes of messages being received which are
+     * held in memory across all connections. A message which would exceed it
+     * is discarded, and rejected with a temporary <code>452</code> reply, so
+     * that the client retries it later.
+     *
+     * @param maxBufferedBytes The number of bytes. The default is
+     * {@value #DEFAULT_MAX_BUFFERED_BYTES}.
+     */
+    public void setMaxBufferedBytes(final long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Sets the time a client may be idle before the connection is closed.
+     *
+     * @param timeout The timeout in milliseconds. The default is 5 minutes.
+     */
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * The address the server is listening on.
+     *
+     * @return the local address of the server socket.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    /**
+     * The number of messages received.
+     *
+     * @return the number of messages received, including those which were
+     * rejected.
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Starts accepting connections.
+     */
+    public synchronized void start() {
+        if (acceptor == null) {
+            acceptor = new Thread(this::acceptLoop, "arf-smtp-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    private void acceptLoop() {
+        long backoff = 0;
+        try {
+            while (!closed) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                    backoff = 0;
+                } catch (IOException e) {
+                    if (closed) {
+                        break;
+                    }
+                    // A persistent failure, e.g. running out of file descriptors, is retried with a growing delay.
+                    System.err.println("Unable to accept a connection: " + e);
+                    backoff = Math.min(Math.max(MIN_ACCEPT_BACKOFF, backoff * 2), MAX_ACCEPT_BACKOFF);
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    continue;
+                }
+                if (active.incrementAndGet() > maxConnections) {
+                    active.decrementAndGet();
+                    refuse(socket);
+                    continue;
+                }
+                connections.add(socket);
+                factory.newThread(() -> {
+                    try {
+                        new Connection(socket).run();
+                    } finally {
+                        connections.remove(socket);
+                        active.decrementAndGet();
+                    }
+                }).start();
+            }
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void refuse(final Socket socket) {
+        try (Socket s = socket) {
+            OutputStream out = s.getOutputStream();
+            out.write(("421 4.3.2 " + hostname + " Too many connections, try again later\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException e) {
+            // The client has gone.
+        }
+    }
+
+    /**
+     * Waits until the server is closed.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Stops accepting connections, and closes the connections which are open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing.
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing.
+            }
+        }
+        synchronized (this) {
+            if (acceptor == null) {
+                stopped.countDown();
+            }
+        }
+    }
+
+    /**
+     * A single SMTP, or LMTP session.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        private final byte[] line = new byte[MAX_COMMAND_LENGTH];
+        private byte[] data = new byte[1024];
+        /**
+         * The message being received, and the number of bytes reserved for
+         * it from {@link SMTPListener#buffered}.
+         */
+        private ByteArrayOutputStream message;
+        private long reserved;
+        private InputStream in;
+        private OutputStream out;
+        private boolean lmtp;
+        private boolean greeted;
+        private String mailFrom;
+        private final List<String> recipients = new ArrayList<>();
+
+        private Connection(final Socket socket) {
+            this.socket = socket;
+        }
+
+        private void run() {
+            try (Socket s = socket) {
+                s.setSoTimeout(timeout);
+                s.setTcpNoDelay(true);
+                in = new BufferedInputStream(s.getInputStream(), 16384);
+                out = new BufferedOutputStream(s.getOutputStream(), 1024);
+                reply("220 " + hostname + " ESMTP ARF ready");
+                int length;
+                while ((length = readLine(in, line)) >= 0) {
+                    if (length > line.length) {
+                        reply("500 5.5.2 Line too long");
+                        continue;
+                    }
+                    if (!command(new String(line, 0, length, StandardCharsets.ISO_8859_1))) {
+                        break;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Idle client.
+            } catch (SocketException e) {
+                // Connection closed.
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("SMTP session failed: " + e);
+                }
+            }
+        }
+
+        /**
+         * Processes a command.
+         *
+         * @return {@code false} if the session has ended.
+         */
+        private boolean command(final String command) throws IOException {
+            int space = command.indexOf(' ');
+            String verb = (space < 0 ? command : command.substring(0, space)).toUpperCase(Locale.ROOT);
+            String argument = space < 0 ? "" : command.substring(space + 1).trim();
+            switch (verb) {
+                case "EHLO":
+                case "LHLO":
+                    lmtp = "LHLO".equals(verb);
+                    greeted = true;
+                    reset();
+                    reply("250-" + hostname + "\r\n250-PIPELINING\r\n250-8BITMIME\r\n250-SIZE " + maxMessageSize
+                            + "\r\n250 ENHANCEDSTATUSCODES");
+                    break;
+                case "HELO":
+                    lmtp = false;
+                    greeted = true;
+                    reset();
+                    reply("250 " + hostname);
+                    break;
+                case "MAIL":
+                    mail(argument);
+                    break;
+                case "RCPT":
+                    rcpt(argument);
+                    break;
+                case "DATA":
+                    data();
+                    break;
+                case "RSET":
+                    reset();
+                    reply("250 2.0.0 Ok");
+                    break;
+                case "NOOP":
+                    reply("250 2.0.0 Ok");
+                    break;
+                case "VRFY":
+                    reply("252 2.5.0 Cannot verify user");
+                    break;
+                case "QUIT":
+                    reply("221 2.0.0 " + hostname + " closing connection");
+                    return false;
+                default:
+                    reply("502 5.5.1 Command not implemented");
+            }
+            return true;
+        }
+
+        private void mail(final String argument) throws IOException {
+            if (!greeted) {
+                reply("503 5.5.1 Send " + (lmtp ? "LHLO" : "EHLO") + " first");
+            } else if (mailFrom != null) {
+                reply("503 5.5.1 Sender already specified");
+            } else if (!argument.regionMatches(true, 0, "FROM:", 0, 5)) {
+                reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+            } else {
+                String path = argument.substring(5).trim();
+                long size = parameter(path, "SIZE=");
+                if (size > maxMessageSize) {
+                    reply("552 5.3.4 Message size exceeds fixed maximum message size");
+                    return;
+                }
+                mailFrom = address(path);
+                reply("250 2.1.0 Ok");
+            }
+        }
+
+        private void rcpt(final String argument) throws IOException {
+            if (mailFrom == null) {
+                reply("503 5.5.1 Need MAIL before RCPT");
+            } else if (!argument.regionMatches(true, 0, "TO:", 0, 3)) {
+                reply("501 5.5.4 Syntax: RCPT TO:<address>");
+            } else {
+                recipients.add(address(argument.substring(3).trim()));
+                reply("250 2.1.5 Ok");
+            }
+        }
+
+        private void data() throws IOException {
+            if (recipients.isEmpty()) {
+                reply("503 5.5.1 Need RCPT before DATA");
+                return;
+            }
+            reply("354 End data with <CR><LF>.<CR><LF>");
+            message = new ByteArrayOutputStream(8192);
+            try {
+                String rejected = readData();
+                String name = "smtp#" + received.incrementAndGet();
+                if (rejected != null) {
+                    replyAll(rejected);
+                } else {
+                    try {
+                        handler.accept(mailFrom, new ArrayList<>(recipients),
+                                new ByteArrayMessageSource(name, message.toByteArray()));
+                        replyAll("250 2.0.0 Ok: queued as " + name);
+                    } catch (ReplyException e) {
+                        replyAll(e.getReply());
+                    } catch (Exception e) {
+                        if (e instanceof InterruptedException) {
+                            Thread.currentThread().interrupt();
+                        }
+                        replyAll("451 4.3.0 Message not accepted: " + e.getClass().getSimpleName());
+                    }
+                }
+            } finally {
+                discard();
+                if (data.length > MAX_COMMAND_LENGTH) {
+                    // A long line is not held for the life of the connection.
+                    data = new byte[1024];
+                }
+            }
+            reset();
+        }
+
+        /**
+         * Reads the message until the terminating <code>.</code> line,
+         * removing dot-stuffing, and normalizing line endings to CRLF. The
+         * bytes stored are reserved from the memory shared by every
+         * connection, and are released by the caller.
+         *
+         * @return the reply rejecting the message if it exceeded the maximum
+         * size, or the memory available, and was discarded, or {@code null}.
+         */
+        private String readData() throws IOException {
+            String rejected = null;
+            while (true) {
+                int length = readDataLine();
+                if (length == 1 && data[0] == '.') {
+                    return rejected;
+                }
+                if (rejected == null) {
+                    int start = length > 0 && data[0] == '.' ? 1 : 0;
+                    int size = length - start + 2;
+                    if (length > maxMessageSize || message.size() + size > maxMessageSize) {
+                        rejected = "552 5.3.4 Message size exceeds fixed maximum message size";
+                    } else if (!reserve(size)) {
+                        rejected = "452 4.3.1 Insufficient system storage";
+                    } else {
+                        message.write(data, start, length - start);
+                        message.write('\r');
+                        message.write('\n');
+                    }
+                    if (rejected != null) {
+                        discard();
+                    }
+                }
+            }
+        }
+
+        private boolean reserve(final int size) {
+            if (buffered.addAndGet(size) > maxBufferedBytes) {
+                buffered.addAndGet(-size);
+                return false;
+            }
+            reserved += size;
+            return true;
+        }
+
+        private void discard() {
+            message = null;
+            buffered.addAndGet(-reserved);
+            reserved = 0;
+        }
+
+        /**
+         * Reads a line of the message. Bytes beyond the maximum message size
+         * are counted, but not stored.
+         *
+         * @return the length of the line without the terminator.
+         */
+        private int readDataLine() throws IOException {
+            int length = 0;
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    if (length > 0 && length <= data.length && data[length - 1] == '\r') {
+                        length--;
+                    }
+                    return length;
+                }
+                if (length == data.length && length <= maxMessageSize) {
+                    data = Arrays.copyOf(data, Math.min(length * 2, maxMessageSize + 2));
+                }
+                if (length < data.length) {
+                    data[length] = (byte) c;
+                }
+                length++;
+            }
+            throw new SocketException("Connection closed during DATA");
+        }
+
+        private void reset() {
+            mailFrom = null;
+            recipients.clear();
+        }
+
+        /**
+         * Sends the reply to DATA, which is repeated for each recipient when
+         * serving LMTP.
+         */
+        private void replyAll(final String reply) throws IOException {
+            int count = lmtp ? recipients.size() : 1;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append("\r\n");
+                }
+                sb.append(reply);
+            }
+            reply(sb.toString());
+        }
+
+        private void reply(final String reply) throws IOException {
+            out.write(reply.getBytes(StandardCharsets.US_ASCII));
+            out.write('\r');
+            out.write('\n');
+            // Replies to pipelined commands are sent together.
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Reads a line terminated by LF, or CRLF into the buffer.
+     *
+     * @return the length of the line without the terminator, a length greater
+     * than the buffer if the line was too long, or -1 at the end of the
+     * stream.
+     */
+    private static int readLine(final InputStream in, final byte[] buffer) throws IOException {
+        int length = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                if (length > 0 && length <= buffer.length && buffer[length - 1] == '\r') {
+                    length--;
+                }
+                return length;
+            }
+            if (length < buffer.length) {
+                buffer[length] = (byte) c;
+            }
+            length++;
+        }
+        return length == 0 ? -1 : length;
+    }
+
+    /**
+     * Removes the angle brackets, and any parameters from a path.
+     */
+    private static String address(final String path) {
+        String p = path;
+        if (p.startsWith("<")) {
+            int end = p.indexOf('>');
+            return end < 0 ? p.substring(1) : p.substring(1, end);
+        }
+        int space = p.indexOf(' ');
+        return space < 0 ? p : p.substring(0, space);
+    }
+
+    /**
+     * Reads a numeric ESMTP parameter.
+     *
+     * @return the value, or -1 if it is not present.
+     */
+    private static long parameter(final String path, final String name) {
+        int end = path.indexOf('>');
+        for (String p : path.substring(end + 1).trim().split("\\s+")) {
+            if (p.regionMatches(true, 0, name, 0, name.length())) {
+                try {
+                    return Long.parseLong(p.substring(name.length()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+}
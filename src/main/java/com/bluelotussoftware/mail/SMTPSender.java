@@ -15,21 +15,66 @@
  */
 package com.bluelotussoftware.mail;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.mail.Authenticator;
+import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.MimeMessage;
 
 /**
  * Sends a {@link MimeMessage} using the username, password, and smtpServer
  * provided.
+ * <p>
+ * Messages are sent over a {@link TransportPool} of persistent connections
+ * which are reused across messages. The sender should be closed when it is no
+ * longer required to close the connections.
+ * </p>
+ * <p>
+ * When an {@link OutboundSpool} is set, messages are written to the spool, and
+ * delivered in the background with retries, rather than being sent by the
+ * caller.
+ * </p>
+ * <p>
+ * When destination limits are set, messages are sent through a
+ * {@link DestinationScheduler} which limits the rate, and connections used for
+ * each recipient domain, and sends messages to the same domain together.
+ * </p>
  *
  * @author John Yeary <jyeary@bluelotussoftware.com>
  * @version 1.0
  */
-public class SMTPSender {
+public class SMTPSender implements AutoCloseable {
+
+    /**
+     * The number of sessions which are kept for reuse.
+     */
+    private static final int MAX_SESSIONS = 16;
+    /**
+     * The sessions shared by senders for the same relay, and credentials. The
+     * least recently used session is dropped when there are more than
+     * {@link #MAX_SESSIONS}, and senders which already hold it keep using it.
+     */
+    private static final Map<SessionKey, Session> SESSIONS = new LinkedHashMap<SessionKey, Session>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<SessionKey, Session> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
 
     private String username;
     private String password;
@@ -39,6 +84,22 @@ public class SMTPSender {
      */
     private int port = 25;
     private boolean debug;
+    /**
+     * The number of pooled connections.
+     */
+    private int poolSize = 1;
+    /**
+     * The number of messages sent on a connection before it is reconnected.
+     */
+    private int maxMessagesPerConnection = 100;
+    /**
+     * The number of seconds a connection may be idle before it is reconnected.
+     */
+    private long idleTimeout = 60;
+    private TransportPool pool;
+    private OutboundSpool spool;
+    private DestinationScheduler scheduler;
+    private volatile Session session;
 
     /**
      * Constructor used to set up the SMTP service for sending messages.
@@ -104,49 +165,207 @@ public class SMTPSender {
     /**
      * A basic implementation of {@link Authenticator}.
      */
-    private class SMTPAuthenticator extends Authenticator {
+    private static class SMTPAuthenticator extends Authenticator {
+
+        private final PasswordAuthentication authentication;
+
+        private SMTPAuthenticator(final String username, final String password) {
+            this.authentication = new PasswordAuthentication(username, password);
+        }
 
         /**
          * {@inheritDoc}
          */
         @Override
         public PasswordAuthentication getPasswordAuthentication() {
+            return authentication;
+        }
+    }
+
+    /**
+     * Identifies the relay, and credentials a {@link Session} is configured
+     * for. The password is held as a SHA-256 digest, so that it is not kept
+     * in the key.
+     */
+    private static final class SessionKey {
+
+        private final String smtpServer;
+        private final int port;
+        private final String username;
+        private final byte[] credentials;
+        private final boolean debug;
+
+        private SessionKey(final String smtpServer, final int port, final String username, final String password,
+                final boolean debug) {
+            this.smtpServer = smtpServer;
+            this.port = port;
+            this.username = username;
+            this.credentials = password == null ? null : digest(password);
+            this.debug = debug;
+        }
+
+        private static byte[] digest(final String password) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support SHA-256.
+                throw new IllegalStateException(e);
+            }
+        }
 
-            return new PasswordAuthentication(username, password);
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) obj;
+            return port == other.port && debug == other.debug
+                    && Objects.equals(smtpServer, other.smtpServer)
+                    && Objects.equals(username, other.username)
+                    && Arrays.equals(credentials, other.credentials);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(smtpServer, port, username, Arrays.hashCode(credentials), debug);
         }
     }
 
     /**
      * A method to return the {@link Session}.
+     * <p>
+     * Each relay has its own {@link Session} created from private
+     * {@link Properties}, which is shared by every sender for the same server,
+     * port, user, password, and debug setting. The system properties are not
+     * modified, so senders for different relays, or credentials may be used
+     * concurrently.
+     * </p>
      *
-     * @return a default {@link Session}.
+     * @return the {@link Session} for the SMTP server.
      */
     public Session getSession() {
-        Session session;
-        Properties properties = System.getProperties();
+        Session s = session;
+        if (s == null) {
+            synchronized (SESSIONS) {
+                s = SESSIONS.computeIfAbsent(new SessionKey(smtpServer, port, username, password, debug),
+                        k -> createSession());
+            }
+            session = s;
+        }
+        return s;
+    }
+
+    private Session createSession() {
+        Properties properties = new Properties();
         // Setup mail server
         properties.setProperty("mail.smtp.host", smtpServer);
+        properties.setProperty("mail.smtp.port", Integer.toString(port));
 
         if (debug) {
             properties.setProperty("mail.debug", "true");
         }
 
-        //Set alternate port value if neccessary
-        if (port != 25) {
-            properties.setProperty("mail.smtp.port", Integer.toString(port));
-        }
-
         // validity check
         if (username != null && password != null) {
-            properties.put("mail.smtp.auth", "true");
-            Authenticator auth = new SMTPAuthenticator();
+            properties.setProperty("mail.smtp.auth", "true");
+            return Session.getInstance(properties, new SMTPAuthenticator(username, password));
+        }
+        return Session.getInstance(properties);
+    }
 
-            // Get the default Session object.
-            session = Session.getDefaultInstance(properties, auth);
-        } else {
-            session = Session.getDefaultInstance(properties);
+    /**
+     * Sets the maximum number of connections held open to the SMTP server.
+     *
+     * @param poolSize The number of connections. The default is 1.
+     */
+    public void setPoolSize(final int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Sets the number of messages which are sent on a connection before it is
+     * closed, and a new connection is opened.
+     *
+     * @param maxMessagesPerConnection The number of messages. The default is
+     * 100.
+     */
+    public void setMaxMessagesPerConnection(final int maxMessagesPerConnection) {
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    /**
+     * Sets the time a connection may be idle before it is closed, and a new
+     * connection is opened.
+     *
+     * @param idleTimeout The idle timeout in seconds. The default is 60.
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Writes messages to a durable spool in the directory provided, and
+     * delivers them in the background with retries. Any messages left in the
+     * spool by a previous run are delivered.
+     *
+     * @param directory The directory of the spool.
+     * @return the spool, which may be configured further.
+     * @throws IOException if the spool can not be opened.
+     */
+    public synchronized OutboundSpool setSpool(final Path directory) throws IOException {
+        spool = new OutboundSpool(directory, getSession(), this::transmit);
+        spool.start(poolSize);
+        return spool;
+    }
+
+    /**
+     * The spool messages are written to.
+     *
+     * @return the spool, or {@code null} if messages are sent directly.
+     */
+    public synchronized OutboundSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Limits the rate, and number of connections used to send messages to each
+     * recipient domain. Limits for particular domains may be set on the
+     * scheduler returned.
+     *
+     * @param rate The number of messages per second sent to each domain, or 0
+     * for no limit.
+     * @param burst The number of messages which may be sent to a domain at
+     * once after it has been idle.
+     * @param maxInFlight The number of connections which may send to a domain
+     * at once.
+     * @return the scheduler, which may be configured further.
+     */
+    public synchronized DestinationScheduler setDestinationLimit(final double rate, final int burst,
+            final int maxInFlight) {
+        if (scheduler == null) {
+            scheduler = new DestinationScheduler(messages -> getPool().send(messages),
+                    DestinationScheduler.DEFAULT_CAPACITY);
+            scheduler.start(poolSize);
         }
-        return session;
+        scheduler.setDefaultLimit(rate, burst, maxInFlight);
+        return scheduler;
+    }
+
+    /**
+     * The scheduler which limits the messages sent to each domain.
+     *
+     * @return the scheduler, or {@code null} if no limits are set.
+     */
+    public synchronized DestinationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    private synchronized TransportPool getPool() {
+        if (pool == null) {
+            pool = new TransportPool(getSession(), poolSize, maxMessagesPerConnection,
+                    idleTimeout, TimeUnit.SECONDS);
+        }
+        return pool;
     }
 
     /**
@@ -161,7 +380,7 @@ public class SMTPSender {
 
         if (message != null) {
             try {
-                Transport.send(message);
+                deliver(message);
                 success = true;
             } catch (Exception e) {
                 System.err.println(e);
@@ -170,4 +389,110 @@ public class SMTPSender {
         return success;
     }
 
+    /**
+     * Send a {@link MimeMessage} using a pooled connection, or write it to the
+     * spool if one is set.
+     *
+     * @param message The message to be sent.
+     * @throws MessagingException if the message could not be sent, or
+     * spooled.
+     */
+    public void deliver(final MimeMessage message) throws MessagingException {
+        OutboundSpool s = getSpool();
+        if (s == null) {
+            transmit(message);
+            return;
+        }
+        try {
+            s.enqueue(message);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to write the message to the spool.", e);
+        }
+    }
+
+    /**
+     * Send a {@link MimeMessage} without waiting for it to be sent, when
+     * destination limits are set. Otherwise the message is sent, or spooled
+     * before this returns, as by {@link #deliver(javax.mail.internet.MimeMessage)}.
+     *
+     * @param message The message to be sent.
+     * @return a future which completes when the message has been sent, or
+     * spooled.
+     * @throws InterruptedException if interrupted while waiting for space in
+     * the scheduler.
+     */
+    public CompletableFuture<Void> deliverAsync(final MimeMessage message) throws InterruptedException {
+        DestinationScheduler d = getScheduler();
+        if (d != null && getSpool() == null) {
+            return d.submit(message);
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            deliver(message);
+            result.complete(null);
+        } catch (MessagingException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a message on a pooled connection, through the scheduler if one is
+     * set.
+     */
+    private void transmit(final MimeMessage message) throws MessagingException {
+        DestinationScheduler d = getScheduler();
+        if (d == null) {
+            getPool().send(message);
+            return;
+        }
+        try {
+            d.submit(message).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted waiting for the message to be sent.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException(e.getCause().toString(), e);
+        }
+    }
+
+    /**
+     * Stops the spool, if one is set, waits for the messages queued by the
+     * scheduler to be sent, and closes the pooled connections to the SMTP
+     * server. Messages which remain in the spool are delivered when it is next
+     * opened.
+     */
+    @Override
+    public void close() {
+        OutboundSpool s;
+        DestinationScheduler d;
+        synchronized (this) {
+            s = spool;
+            spool = null;
+            d = scheduler;
+        }
+        // The spool, and scheduler workers use the pool, so they are stopped
+        // without holding the lock.
+        try {
+            if (s != null) {
+                s.close();
+            }
+            if (d != null) {
+                d.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            scheduler = null;
+            if (pool != null) {
+                pool.close();
+                pool = null;
+            }
+        }
+    }
+
 }
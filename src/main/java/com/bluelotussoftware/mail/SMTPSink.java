@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.bluelotussoftware.mail.arf.FeedbackReportParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.MessagingException;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * An SMTP server which accepts, and discards the reports sent to it, so that
+ * the whole generation, and sending path may be measured, or tested on a
+ * single machine without a real MTA. The sink is an {@link SMTPListener},
+ * and may be embedded in a test, or benchmark, or run on its own with
+ * {@link #main(java.lang.String[])}.
+ * <p>
+ * The sink may delay each reply to <code>DATA</code> to simulate a slow
+ * receiver, reject a fraction of the messages with transient
+ * <code>451</code>, or permanent <code>550</code> failures, and check that
+ * each message is a valid ARF report with a {@link FeedbackReportParser}.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class SMTPSink implements SMTPListener.MessageHandler, AutoCloseable {
+
+    private final SMTPListener listener;
+    private final FeedbackReportParser parser = new FeedbackReportParser();
+    private final LongAdder transientFailures = new LongAdder();
+    private final LongAdder permanentFailures = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Object lock = new Object();
+    private long accepted;
+    private volatile long latency;
+    private volatile double transientFailureRate;
+    private volatile double permanentFailureRate;
+    private volatile boolean verify;
+    private volatile String lastInvalid;
+
+    /**
+     * Constructor for a sink listening on a free port of the loopback
+     * address.
+     *
+     * @throws IOException if the port can not be bound.
+     */
+    public SMTPSink() throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param address The address to listen on.
+     * @throws IOException if the address can not be bound.
+     */
+    public SMTPSink(final InetSocketAddress address) throws IOException {
+        listener = new SMTPListener(address, this);
+        listener.setHostname("sink.localhost");
+    }
+
+    /**
+     * Starts accepting connections.
+     *
+     * @return this sink.
+     */
+    public SMTPSink start() {
+        listener.start();
+        return this;
+    }
+
+    /**
+     * The port the sink is listening on.
+     *
+     * @return the local port.
+     */
+    public int getPort() {
+        return listener.getAddress().getPort();
+    }
+
+    /**
+     * Sets a delay before each message is acknowledged, simulating the time a
+     * receiver takes to process it.
+     *
+     * @param latency The delay, or 0 for none.
+     * @param unit The unit of the delay.
+     */
+    public void setLatency(final long latency, final TimeUnit unit) {
+        this.latency = unit.toNanos(latency);
+    }
+
+    /**
+     * Sets the fraction of messages rejected with a transient
+     * <code>451</code> failure.
+     *
+     * @param rate The fraction between 0, and 1.
+     */
+    public void setTransientFailureRate(final double rate) {
+        this.transientFailureRate = rate;
+    }
+
+    /**
+     * Sets the fraction of messages rejected with a permanent
+     * <code>550</code> failure.
+     *
+     * @param rate The fraction between 0, and 1.
+     */
+    public void setPermanentFailureRate(final double rate) {
+        this.permanentFailureRate = rate;
+    }
+
+    /**
+     * Sets if each message is parsed as an ARF report. A message which is not
+     * a valid report is counted, and rejected with a <code>550</code> reply.
+     *
+     * @param verify {@code true} to verify the reports.
+     */
+    public void setVerify(final boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void accept(final String mailFrom, final List<String> recipients, final MessageSource message)
+            throws Exception {
+        if (latency > 0) {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        }
+        double r = ThreadLocalRandom.current().nextDouble();
+        if (r < permanentFailureRate) {
+            permanentFailures.increment();
+            throw new SMTPListener.ReplyException("550 5.7.1 Rejected by the sink");
+        }
+        if (r < permanentFailureRate + transientFailureRate) {
+            transientFailures.increment();
+            throw new SMTPListener.ReplyException("451 4.3.0 Deferred by the sink");
+        }
+        if (verify) {
+            try (InputStream in = message.openStream()) {
+                parser.parse(in);
+            } catch (MessagingException e) {
+                invalid.increment();
+                lastInvalid = message.getName() + ": " + e.getMessage();
+                throw new SMTPListener.ReplyException("550 5.6.0 Not a valid ARF report");
+            }
+        }
+        bytes.add(message.getSize());
+        synchronized (lock) {
+            accepted++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the sink has accepted a number of messages.
+     *
+     * @param count The number of messages.
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return {@code true} if the messages were accepted, or {@code false}
+     * if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitAccepted(final long count, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (accepted < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of messages received, whether accepted, or rejected.
+     *
+     * @return the number of messages received.
+     */
+    public long getReceived() {
+        return listener.getReceived();
+    }
+
+    /**
+     * The number of messages accepted.
+     *
+     * @return the number of messages accepted.
+     */
+    public long getAccepted() {
+        synchronized (lock) {
+            return accepted;
+        }
+    }
+
+    /**
+     * The number of messages rejected with a transient failure.
+     *
+     * @return the number of <code>451</code> replies.
+     */
+    public long getTransientFailures() {
+        return transientFailures.sum();
+    }
+
+    /**
+     * The number of messages rejected with a permanent failure.
+     *
+     * @return the number of <code>550</code> replies.
+     */
+    public long getPermanentFailures() {
+        return permanentFailures.sum();
+    }
+
+    /**
+     * The number of messages which were not valid ARF reports.
+     *
+     * @return the number of invalid reports.
+     */
+    public long getInvalid() {
+        return invalid.sum();
+    }
+
+    /**
+     * The reason the last invalid report was rejected.
+     *
+     * @return the name of the message, and the error, or {@code null}.
+     */
+    public String getLastInvalid() {
+        return lastInvalid;
+    }
+
+    /**
+     * The size of the messages accepted.
+     *
+     * @return the number of bytes accepted.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%d received, %d accepted, %d deferred, %d rejected, %d invalid, %d bytes",
+                getReceived(), getAccepted(), getTransientFailures(), getPermanentFailures(), getInvalid(),
+                getBytes());
+    }
+
+    /**
+     * Stops the sink, and closes its connections.
+     */
+    @Override
+    public void close() {
+        listener.close();
+    }
+
+    /**
+     * Runs a sink until it is stopped, printing the counts of the messages
+     * received every 10 seconds.
+     *
+     * @param args The command line arguments.
+     * @throws IOException if the port can not be bound.
+     * @throws InterruptedException if interrupted while running.
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        Options options = new Options();
+        options.addOption(Option.builder("P").longOpt("port").hasArg().argName("2525")
+                .desc("Port number to listen on. The default is 2525.").build());
+        options.addOption(Option.builder().longOpt("latency").hasArg().argName("ms")
+                .desc("Delay before each message is acknowledged.").build());
+        options.addOption(Option.builder().longOpt("transient").hasArg().argName("rate")
+                .desc("Fraction of messages rejected with a 451 reply.").build());
+        options.addOption(Option.builder().longOpt("permanent").hasArg().argName("rate")
+                .desc("Fraction of messages rejected with a 550 reply.").build());
+        options.addOption(Option.builder().longOpt("verify")
+                .desc("Reject messages which are not valid ARF reports.").build());
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("SMTPSink", options);
+            return;
+        }
+        int port = cmd.hasOption('P') ? Integer.parseInt(cmd.getOptionValue('P')) : 2525;
+        final SMTPSink sink = new SMTPSink(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        if (cmd.hasOption("latency")) {
+            sink.setLatency(Long.parseLong(cmd.getOptionValue("latency")), TimeUnit.MILLISECONDS);
+        }
+        if (cmd.hasOption("transient")) {
+            sink.setTransientFailureRate(Double.parseDouble(cmd.getOptionValue("transient")));
+        }
+        if (cmd.hasOption("permanent")) {
+            sink.setPermanentFailureRate(Double.parseDouble(cmd.getOptionValue("permanent")));
+        }
+        sink.setVerify(cmd.hasOption("verify"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            sink.close();
+            System.out.println("Sink: " + sink);
+        }));
+        sink.start();
+        System.out.println("Sink listening on " + sink.listener.getAddress());
+        while (true) {
+            TimeUnit.SECONDS.sleep(10);
+            System.out.println("Sink: " + sink);
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.ByteArrayDataSource;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Encodes the <code>8bit</code>, and <code>binary</code> parts of a message, so
+ * that it may be sent to an SMTP server which does not support
+ * <code>8BITMIME</code>, or <code>BINARYMIME</code>. Each such part, including
+ * the parts of an attached <code>message/rfc822</code>, is encoded as
+ * <code>quoted-printable</code>, or <code>base64</code>, as chosen by JavaMail.
+ * Headers which are not US-ASCII are left as they are, and the other parts
+ * are written as they were.
+ * <p>
+ * The message is parsed from a {@link SharedInputStream}, so the parts are
+ * not copied into memory, and each part is encoded as it is written.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+final class SevenBitConverter {
+
+    private SevenBitConverter() {
+    }
+
+    /**
+     * Encodes the unencoded parts of a message in place. The
+     * <code>Message-ID:</code> of the message is kept, and a message without
+     * such parts is not changed.
+     *
+     * @param session The session used to parse attached messages.
+     * @param message The message to convert, which should have been parsed
+     * from a {@link SharedInputStream}.
+     * @throws MessagingException if the message can not be converted.
+     */
+    static void encode(final Session session, final MimeMessage message) throws MessagingException {
+        String messageID = message.getHeader("Message-ID", null);
+        if (encode(session, (MimePart) message)) {
+            message.saveChanges();
+            if (messageID != null) {
+                message.setHeader("Message-ID", messageID);
+            }
+        }
+    }
+
+    /**
+     * A message read from its source, which is converted as it is written.
+     *
+     * @param session The session used to parse the message.
+     * @param source The source of the message.
+     * @return the message to be written.
+     */
+    static MimeMessage encoded(final Session session, final MessageSource source) {
+        return new EncodedMessage(session) {
+            @Override
+            ConvertedMessage open() throws IOException, MessagingException {
+                // A file is read through a shared stream, so that its parts are not copied.
+                InputStream is = source instanceof FileMessageSource
+                        ? new SharedFileInputStream(((FileMessageSource) source).getPath().toFile())
+                        : source.openStream();
+                return new ConvertedMessage(session, is);
+            }
+        };
+    }
+
+    /**
+     * A message whose body is read from its raw content, which is converted as
+     * it is written.
+     *
+     * @param session The session used to parse the message.
+     * @param message The message.
+     * @return the message to be written.
+     */
+    static MimeMessage encoded(final Session session, final MimeMessage message) {
+        return new EncodedMessage(session) {
+            @Override
+            ConvertedMessage open() throws IOException, MessagingException {
+                // The headers are copied, as they are updated when the message is converted.
+                InternetHeaders headers = new InternetHeaders();
+                Enumeration<?> lines = message.getAllHeaderLines();
+                while (lines.hasMoreElements()) {
+                    headers.addHeaderLine((String) lines.nextElement());
+                }
+                InputStream body = message instanceof ParsedMessage ? ((ParsedMessage) message).getBody()
+                        : message.getRawInputStream();
+                return new ConvertedMessage(session, headers, body);
+            }
+        };
+    }
+
+    /**
+     * A message held in memory, which is converted as it is written.
+     *
+     * @param session The session used to parse the message.
+     * @param message The raw message.
+     * @return the message to be written.
+     */
+    static MimeMessage encoded(final Session session, final byte[] message) {
+        return new EncodedMessage(session) {
+            @Override
+            ConvertedMessage open() throws MessagingException {
+                return new ConvertedMessage(session, new SharedByteArrayInputStream(message));
+            }
+        };
+    }
+
+    /**
+     * Encodes the unencoded parts of a part.
+     *
+     * @return {@code true} if any part was changed.
+     */
+    private static boolean encode(final Session session, final MimePart part) throws MessagingException {
+        try {
+            if (part.isMimeType("multipart/*")) {
+                MimeMultipart multipart = (MimeMultipart) part.getContent();
+                boolean changed = false;
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    changed |= encode(session, (MimeBodyPart) multipart.getBodyPart(i));
+                }
+                return changed;
+            }
+            String encoding = part.getEncoding();
+            if (encoding != null && !"7bit".equalsIgnoreCase(encoding) && !"8bit".equalsIgnoreCase(encoding)
+                    && !"binary".equalsIgnoreCase(encoding)) {
+                return false;
+            }
+            InputStream raw = raw(part);
+            if (part.isMimeType("message/rfc822")) {
+                ConvertedMessage nested = new ConvertedMessage(session, raw);
+                if (!encode(session, (MimePart) nested)) {
+                    return false;
+                }
+                nested.saveChanges();
+                part.setContent(nested, "message/rfc822");
+                return true;
+            }
+            DataSource content;
+            if (raw instanceof SharedInputStream) {
+                content = new SharedDataSource((SharedInputStream) raw, part.getContentType());
+            } else {
+                // The part was parsed from a stream which is not shared, so its content is already in memory.
+                try (InputStream is = raw) {
+                    content = new ByteArrayDataSource(is, part.getContentType());
+                }
+            }
+            BodyTypeScanner scanner = new BodyTypeScanner();
+            try (InputStream is = content.getInputStream()) {
+                scanner.scan(is);
+            }
+            if (scanner.getBodyType() == BodyType.SEVEN_BIT) {
+                return false;
+            }
+            // The content headers are replaced, and the encoding is chosen by JavaMail when the headers are updated.
+            part.setDataHandler(new DataHandler(content));
+            return true;
+        } catch (IOException e) {
+            throw new MessagingException("Unable to encode a part of the message.", e);
+        }
+    }
+
+    private static InputStream raw(final MimePart part) throws MessagingException {
+        return part instanceof MimeBodyPart ? ((MimeBodyPart) part).getRawInputStream()
+                : ((MimeMessage) part).getRawInputStream();
+    }
+
+    /**
+     * The raw content of a part, which is read again from the shared stream
+     * each time it is opened.
+     */
+    private static class SharedDataSource implements DataSource {
+
+        private final SharedInputStream stream;
+        private final String contentType;
+
+        private SharedDataSource(final SharedInputStream stream, final String contentType) {
+            this.stream = stream;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stream.newStream(0, -1);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("The content of the part is read-only.");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+    }
+
+    /**
+     * A message which is parsed, and converted each time it is written, so
+     * that the source is only open while the message is being written.
+     */
+    private abstract static class EncodedMessage extends MimeMessage {
+
+        private EncodedMessage(final Session session) {
+            super(session);
+        }
+
+        /**
+         * Parses the message to be converted.
+         *
+         * @return the message.
+         * @throws IOException if the message can not be read.
+         * @throws MessagingException if the message can not be parsed.
+         */
+        abstract ConvertedMessage open() throws IOException, MessagingException;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+            ConvertedMessage message = open();
+            try {
+                if (encode(session, (MimePart) message)) {
+                    message.saveChanges();
+                } else {
+                    // A message which is already 7bit is written as it was read.
+                    message.keep();
+                }
+                message.writeTo(os, ignoreList);
+            } finally {
+                message.close();
+            }
+        }
+    }
+
+    /**
+     * A message whose <code>Message-ID:</code> is kept when its changes are
+     * saved.
+     */
+    private static class ConvertedMessage extends MimeMessage {
+
+        private final InputStream stream;
+
+        private ConvertedMessage(final Session session, final InputStream is) throws MessagingException {
+            super(session, is);
+            this.stream = is;
+        }
+
+        /**
+         * Constructor for a message whose headers have already been parsed.
+         * The body is not copied if it is a {@link SharedInputStream}.
+         */
+        private ConvertedMessage(final Session session, final InternetHeaders headers, final InputStream body)
+                throws IOException {
+            super(session);
+            this.headers = headers;
+            this.stream = body;
+            if (body instanceof SharedInputStream) {
+                SharedInputStream shared = (SharedInputStream) body;
+                contentStream = shared.newStream(shared.getPosition(), -1);
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                content = out.toByteArray();
+            }
+            modified = false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void updateMessageID() {
+            // The original Message-ID is kept.
+        }
+
+        /**
+         * Marks the message as saved, so that it is written unchanged.
+         */
+        private void keep() {
+            saved = true;
+        }
+
+        /**
+         * Closes the stream the message was read from.
+         */
+        private void close() throws IOException {
+            stream.close();
+        }
+    }
+
+}
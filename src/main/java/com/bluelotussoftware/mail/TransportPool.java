@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of connected, and authenticated {@link Transport} instances which are
+ * reused to send many messages. A connection is reset with <code>RSET</code>
+ * before it is reused, and is reconnected when it has been idle longer than
+ * the idle timeout, has sent the maximum number of messages, or the server
+ * replies with a transient (4xx) failure.
+ * <p>
+ * A report which is labelled <code>8bit</code> is sent as it is, with
+ * <code>BODY=8BITMIME</code>, when the server supports the
+ * <code>8BITMIME</code> extension. Otherwise, and for reports which contain
+ * <code>binary</code> content, the unencoded parts are encoded in place as
+ * <code>quoted-printable</code>, or <code>base64</code> as they are sent. The
+ * returned message of a report whose type is not yet known is only read to
+ * determine it when the server supports <code>8BITMIME</code>. Otherwise it
+ * is encoded as it is written, and a message which is already
+ * <code>7bit</code> is written unchanged.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class TransportPool implements AutoCloseable {
+
+    private final Session session;
+    private final int maxMessagesPerConnection;
+    private final long idleTimeout;
+    private final BlockingQueue<Connection> idle;
+    private final List<Connection> connections;
+    private volatile boolean closed;
+
+    /**
+     * A pooled connection, and its usage.
+     */
+    private class Connection {
+
+        private Transport transport;
+        private int messages;
+        private long lastUsed;
+
+        private boolean isStale() {
+            return messages >= maxMessagesPerConnection
+                    || System.nanoTime() - lastUsed > idleTimeout;
+        }
+
+        /**
+         * Ensures that the transport is connected, and ready to send a new
+         * message. A reused connection is checked with <code>RSET</code> rather
+         * than {@link Transport#isConnected()} which would cost an additional
+         * <code>NOOP</code> round trip.
+         */
+        private void prepare() throws MessagingException {
+            if (transport != null) {
+                if (isStale()) {
+                    disconnect();
+                } else {
+                    try {
+                        reset();
+                        return;
+                    } catch (MessagingException e) {
+                        disconnect();
+                    }
+                }
+            }
+            transport = session.getTransport("smtp");
+            transport.connect();
+            messages = 0;
+        }
+
+        private void reset() throws MessagingException {
+            if (transport instanceof SMTPTransport) {
+                ((SMTPTransport) transport).issueCommand("RSET", 250);
+            }
+        }
+
+        private void disconnect() {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    // The connection is discarded regardless.
+                }
+                transport = null;
+            }
+        }
+
+        private boolean supportsExtension(final String extension) {
+            return transport instanceof SMTPTransport && ((SMTPTransport) transport).supportsExtension(extension);
+        }
+
+        private int getLastReturnCode() {
+            return transport instanceof SMTPTransport ? ((SMTPTransport) transport).getLastReturnCode() : -1;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param session The session used to create the transports.
+     * @param size The maximum number of connections.
+     * @param maxMessagesPerConnection The number of messages sent on a
+     * connection before it is reconnected.
+     * @param idleTimeout The time a connection may be idle before it is
+     * reconnected.
+     * @param unit The unit of the idle timeout.
+     */
+    public TransportPool(final Session session, final int size, final int maxMessagesPerConnection,
+            final long idleTimeout, final TimeUnit unit) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The pool size must be at least 1.");
+        }
+        this.session = session;
+        this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+        this.idleTimeout = unit.toNanos(idleTimeout);
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.connections = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection c = new Connection();
+            connections.add(c);
+            idle.add(c);
+        }
+    }
+
+    /**
+     * Sends a message on a pooled connection. If the server replies with a
+     * transient failure, or the connection is lost, the message is retried
+     * once on a new connection.
+     *
+     * @param message The message to send.
+     * @throws MessagingException if the message can not be sent.
+     */
+    public void send(final MimeMessage message) throws MessagingException {
+        message.saveChanges();
+        Connection c = borrow();
+        try {
+            send(c, message);
+        } finally {
+            idle.add(c);
+        }
+    }
+
+    /**
+     * Sends several messages one after another on a single pooled connection.
+     * A failure does not prevent the remaining messages from being sent.
+     *
+     * @param messages The messages to send.
+     * @return the failure of each message, which is {@code null} for those
+     * which were sent.
+     * @throws MessagingException if a connection could not be borrowed.
+     */
+    public MessagingException[] send(final List<MimeMessage> messages) throws MessagingException {
+        MessagingException[] failures = new MessagingException[messages.size()];
+        Connection c = borrow();
+        try {
+            for (int i = 0; i < failures.length; i++) {
+                MimeMessage message = messages.get(i);
+                try {
+                    message.saveChanges();
+                    send(c, message);
+                } catch (MessagingException e) {
+                    failures[i] = e;
+                }
+            }
+        } finally {
+            idle.add(c);
+        }
+        return failures;
+    }
+
+    private void send(final Connection c, final MimeMessage message) throws MessagingException {
+        try {
+            try {
+                sendMessage(c, message);
+            } catch (MessagingException e) {
+                if (!isRetryable(c, e)) {
+                    throw e;
+                }
+                c.disconnect();
+                sendMessage(c, message);
+            }
+        } catch (MessagingException | RuntimeException e) {
+            PipelineMetrics.getDefault().sendFailed(getReplyCode(c, e));
+            if (c.transport != null && !c.transport.isConnected()) {
+                c.disconnect();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The SMTP reply code of a failure, or -1 if the server did not reply.
+     */
+    private static int getReplyCode(final Connection c, final Exception e) {
+        if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        }
+        if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode();
+        }
+        if (e instanceof SendFailedException && e.getCause() instanceof Exception) {
+            return getReplyCode(c, (Exception) e.getCause());
+        }
+        return c.transport != null && c.transport.isConnected() ? c.getLastReturnCode() : -1;
+    }
+
+    private void sendMessage(final Connection c, final MimeMessage message) throws MessagingException {
+        c.prepare();
+        boolean eightBitMIME = c.supportsExtension(BodyType.EIGHT_BIT.getExtension());
+        ARFMessage.ReportMessage report = message instanceof ARFMessage.ReportMessage
+                ? (ARFMessage.ReportMessage) message : null;
+        if (report != null && eightBitMIME && !report.isResolved()) {
+            // The original message is only read to determine its type when it may be sent unencoded.
+            report.resolveBodyType();
+        }
+        BodyType body = message instanceof SMTPMessage
+                ? BodyType.forMailExtension(((SMTPMessage) message).getMailExtension()) : BodyType.SEVEN_BIT;
+        boolean unencoded = false;
+        boolean encoded = false;
+        if (body == BodyType.EIGHT_BIT && eightBitMIME) {
+            unencoded = true;
+        } else if (body != BodyType.SEVEN_BIT) {
+            // BDAT in JavaMail is written through the same dot-stuffing stream as DATA, so binary is always encoded.
+            if (report != null) {
+                report.encode();
+            } else {
+                SevenBitConverter.encode(session, message);
+                ((SMTPMessage) message).setMailExtension(null);
+            }
+            encoded = true;
+        } else if (report != null && !report.isResolved()) {
+            // The returned message has not been read, and is encoded as it is written if it is not 7bit.
+            report.encode();
+        }
+        long start = System.nanoTime();
+        c.transport.sendMessage(message, message.getAllRecipients());
+        c.messages++;
+        c.lastUsed = System.nanoTime();
+        PipelineMetrics metrics = PipelineMetrics.getDefault();
+        metrics.sent(c.lastUsed - start);
+        if (unencoded) {
+            metrics.sentUnencoded(report != null ? report.getEncodingOverhead() : 0);
+        } else if (encoded) {
+            metrics.encoded();
+        }
+    }
+
+    /**
+     * A failure is retried on a new connection if the connection was lost, or
+     * the server replied with a 4xx transient failure. Rejected recipients are
+     * not retried.
+     */
+    private boolean isRetryable(final Connection c, final MessagingException e) {
+        if (c.transport == null || !c.transport.isConnected()) {
+            return true;
+        }
+        if (e instanceof SendFailedException && ((SendFailedException) e).getInvalidAddresses() != null
+                && ((SendFailedException) e).getInvalidAddresses().length > 0) {
+            return false;
+        }
+        int code = c.getLastReturnCode();
+        return code >= 400 && code < 500;
+    }
+
+    private Connection borrow() throws MessagingException {
+        if (closed) {
+            throw new MessagingException("The transport pool is closed.");
+        }
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted waiting for a connection.", e);
+        }
+    }
+
+    /**
+     * Closes every connection in the pool. This waits for any connections
+     * which are in use to be returned to the pool.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = 0; i < connections.size(); i++) {
+            Connection c;
+            try {
+                c = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            c.disconnect();
+        }
+    }
+
+}
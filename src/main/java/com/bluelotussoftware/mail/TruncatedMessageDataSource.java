@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A read-only <code>message/rfc822</code> {@link DataSource} containing the
+ * headers of a message, and no more than the first bytes of its body.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class TruncatedMessageDataSource implements DataSource {
+
+    private final MimeMessage message;
+    private final long maxBodyLength;
+
+    /**
+     * Constructor.
+     *
+     * @param message The message to truncate.
+     * @param maxBodyLength The maximum number of bytes of the body included.
+     */
+    public TruncatedMessageDataSource(final MimeMessage message, final long maxBodyLength) {
+        this.message = message;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * A stream which ends after a fixed number of bytes.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private LimitedInputStream(final InputStream in, final long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = in.read();
+            if (c != -1) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder(2048);
+            Enumeration<?> lines = message.getAllHeaderLines();
+            while (lines.hasMoreElements()) {
+                sb.append(lines.nextElement()).append("\r\n");
+            }
+            sb.append("\r\n");
+            InputStream headers = new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            InputStream body = message instanceof ParsedMessage
+                    ? ((ParsedMessage) message).getBody()
+                    : message.getRawInputStream();
+            return new SequenceInputStream(headers, new LimitedInputStream(body, maxBodyLength));
+        } catch (MessagingException e) {
+            throw new IOException("Unable to read the original message.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This data source is read-only.
+     * </p>
+     */
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("TruncatedMessageDataSource is read-only.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getContentType() {
+        return "message/rfc822";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return null;
+    }
+
+}
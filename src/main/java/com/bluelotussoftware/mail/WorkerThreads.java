@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used by the background workers. When running on Java 21
+ * or later virtual threads are used, otherwise daemon platform threads are
+ * created. The virtual thread API is accessed reflectively so that the project
+ * continues to build, and run on Java 8.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public final class WorkerThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private WorkerThreads() {
+    }
+
+    /**
+     * Indicates if virtual threads are available.
+     *
+     * @return {@code true} if running on a JVM which supports virtual threads.
+     */
+    public static boolean isVirtualAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a {@link ThreadFactory} for worker threads. The threads are
+     * virtual if they are available, and daemon platform threads otherwise.
+     *
+     * @param prefix The prefix of the thread names.
+     * @return a new thread factory.
+     */
+    public static ThreadFactory newThreadFactory(final String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                // Fall back to platform threads.
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return (Runnable r) -> {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+}
@@ -90,6 +90,7 @@ public interface ARFConstants {
     String SOURCE_IP_HEADER = "Source-IP";
 
     // Optional Fields that may appear many times.
+    String AUTHENTICATION_RESULTS_HEADER = "Authentication-Results";
     String ORIGINAL_RECEIPT_TO_HEADER = "Original-Rcpt-To";
     String REPORTED_DOMAIN_HEADER = "Reported-Domain";
     String REPORTED_URI = "Reported-URI";
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.arf;
+
+import com.sun.mail.dsn.MultipartReport;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * A {@link MultipartReport} which allows the third part, the returned message,
+ * to be any {@link MimeBodyPart}. {@link MultipartReport} only accepts a
+ * {@link javax.mail.internet.MimeMessage} which it re-serializes; this allows
+ * the original message to be attached from its raw bytes instead.
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class ARFMultipartReport extends MultipartReport {
+
+    public ARFMultipartReport() throws MessagingException {
+        super();
+    }
+
+    /**
+     * Sets the body part containing the returned message, replacing any
+     * returned message which has already been set.
+     *
+     * @param part The part containing the original message, or headers.
+     * @throws MessagingException if the part can not be added.
+     */
+    public synchronized void setReturnedBodyPart(final MimeBodyPart part) throws MessagingException {
+        // MultipartReport does not allow parts to be removed, so the parts are updated directly.
+        if (parts.size() > 2) {
+            parts.remove(2);
+        }
+        constructed = false;
+        try {
+            super.addBodyPart(part);
+        } finally {
+            constructed = true;
+        }
+    }
+
+}
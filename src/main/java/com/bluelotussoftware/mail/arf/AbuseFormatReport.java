@@ -19,14 +19,32 @@ import com.sun.mail.dsn.Report;
 import com.sun.mail.util.LineOutputStream;
 import com.sun.mail.util.MailLogger;
 import com.sun.mail.util.PropUtil;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.List;
+import javax.mail.Address;
+import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
 import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
 
 /**
+ * The machine readable <code>message/feedback-report</code> part of an ARF
+ * report as defined by RFC-5965. A report may be created with a
+ * {@link Builder}, which is able to fill the fields from the message being
+ * reported.
+ * <p>
+ * The report is written directly to the output stream as US-ASCII. The field
+ * names, and the required fields are encoded once, and cached.
+ * </p>
  *
  * @author John Yeary <jyeary@bluelotussoftware.com>
  * @version 1.0
@@ -41,7 +59,58 @@ public class AbuseFormatReport extends Report {
 
     public static final String FEEDBACK_TYPE = "Feedback-Type";
     private static final String USER_AGENT = "User-Agent";
+    /**
+     * The <code>User-Agent:</code> used unless another is set.
+     */
+    public static final String DEFAULT_USER_AGENT = "arf-message-generator/1.0";
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] FEEDBACK_TYPE_PREFIX = ascii(FEEDBACK_TYPE + ": ");
+    private static final byte[] USER_AGENT_PREFIX = ascii(USER_AGENT + ": ");
+    private static final byte[] VERSION = ascii(ARFConstants.VERSION_HEADER + ": 1\r\n");
+    private static final byte[] ARRIVAL_DATE_PREFIX = ascii(ARFConstants.ARRIVAL_DATE_HEADER + ": ");
+    private static final byte[] INCIDENTS_PREFIX = ascii(ARFConstants.INCIDENTS_HEADER + ": ");
+    private static final byte[] ORIGINAL_ENVELOPE_ID_PREFIX
+            = ascii(ARFConstants.ORIGINAL_ENVELOPE_ID_HEADER + ": ");
+    private static final byte[] ORIGINAL_MAIL_FROM_PREFIX = ascii(ARFConstants.ORIGINAL_MAIL_FROM_HEADER + ": ");
+    private static final byte[] REPORTING_MTA_PREFIX = ascii(ARFConstants.REPORTING_MTA_HEADER + ": ");
+    private static final byte[] SOURCE_IP_PREFIX = ascii(ARFConstants.SOURCE_IP_HEADER + ": ");
+    private static final byte[] AUTHENTICATION_RESULTS_PREFIX
+            = ascii(ARFConstants.AUTHENTICATION_RESULTS_HEADER + ": ");
+    private static final byte[] ORIGINAL_RCPT_TO_PREFIX = ascii(ARFConstants.ORIGINAL_RECEIPT_TO_HEADER + ": ");
+    private static final byte[] REPORTED_DOMAIN_PREFIX = ascii(ARFConstants.REPORTED_DOMAIN_HEADER + ": ");
+    private static final byte[] REPORTED_URI_PREFIX = ascii(ARFConstants.REPORTED_URI + ": ");
+    /**
+     * The <code>Feedback-Type:</code>, default <code>User-Agent:</code>, and
+     * <code>Version:</code> lines for each {@link FeedbackType} indexed by
+     * ordinal.
+     */
+    private static final byte[][] REQUIRED_FIELDS = new byte[FeedbackType.values().length][];
+
+    static {
+        for (FeedbackType type : FeedbackType.values()) {
+            REQUIRED_FIELDS[type.ordinal()] = ascii(FEEDBACK_TYPE + ": " + type.name() + "\r\n"
+                    + USER_AGENT + ": " + DEFAULT_USER_AGENT + "\r\n"
+                    + ARFConstants.VERSION_HEADER + ": 1\r\n");
+        }
+    }
+
     protected FeedbackType feedbackType = FeedbackType.abuse;
+    protected String userAgent = DEFAULT_USER_AGENT;
+    protected String arrivalDate;
+    protected int incidents;
+    protected String originalEnvelopeId;
+    protected String originalMailFrom;
+    protected String reportingMTA;
+    protected String sourceIP;
+    protected List<String> authenticationResults = new ArrayList<>(1);
+    protected List<String> originalRcptTo = new ArrayList<>(1);
+    protected List<String> reportedDomains = new ArrayList<>(1);
+    protected List<String> reportedURIs = new ArrayList<>(1);
+    /**
+     * Extension fields which are written after the fields defined by RFC-5965.
+     * The RFC-5965 fields are no longer held here.
+     */
     protected InternetHeaders arfHeaders = new InternetHeaders();
 
     public AbuseFormatReport() {
@@ -60,15 +129,57 @@ public class AbuseFormatReport extends Report {
         logger.fine("Attempting to load InternetHeaders from InputStream.");
         InternetHeaders temp = new InternetHeaders(is);
 
-        logger.fine("Checking to see if a Feedback-Type header is set already.");
-        // Check to see if an Feedback-Type: header is already set. Odd use case.
-        String[] result = temp.getHeader(FEEDBACK_TYPE);
-        if (result.length > 0) {
-            feedbackType = FeedbackType.valueOf(result[0]);
-            arfHeaders.setHeader(FEEDBACK_TYPE, feedbackType.name());
+        Enumeration<?> e = temp.getAllHeaders();
+        while (e.hasMoreElements()) {
+            Header h = (Header) e.nextElement();
+            String name = h.getName();
+            String value = h.getValue() == null ? "" : h.getValue().trim();
+            if (FEEDBACK_TYPE.equalsIgnoreCase(name)) {
+                FeedbackType type = FeedbackType.forToken(value);
+                feedbackType = type == null ? FeedbackType.other : type;
+            } else if (USER_AGENT.equalsIgnoreCase(name)) {
+                userAgent = value;
+            } else if (ARFConstants.VERSION_HEADER.equalsIgnoreCase(name)) {
+                // Only version 1 is defined.
+            } else if (ARFConstants.ARRIVAL_DATE_HEADER.equalsIgnoreCase(name)) {
+                arrivalDate = value;
+            } else if (ARFConstants.INCIDENTS_HEADER.equalsIgnoreCase(name)) {
+                int parsed = parseIncidents(value);
+                if (parsed >= 0) {
+                    incidents = parsed;
+                }
+            } else if (ARFConstants.ORIGINAL_ENVELOPE_ID_HEADER.equalsIgnoreCase(name)) {
+                originalEnvelopeId = value;
+            } else if (ARFConstants.ORIGINAL_MAIL_FROM_HEADER.equalsIgnoreCase(name)) {
+                originalMailFrom = value;
+            } else if (ARFConstants.REPORTING_MTA_HEADER.equalsIgnoreCase(name)) {
+                reportingMTA = value;
+            } else if (ARFConstants.SOURCE_IP_HEADER.equalsIgnoreCase(name)) {
+                sourceIP = value;
+            } else if (ARFConstants.AUTHENTICATION_RESULTS_HEADER.equalsIgnoreCase(name)) {
+                authenticationResults.add(value);
+            } else if (ARFConstants.ORIGINAL_RECEIPT_TO_HEADER.equalsIgnoreCase(name)) {
+                originalRcptTo.add(value);
+            } else if (ARFConstants.REPORTED_DOMAIN_HEADER.equalsIgnoreCase(name)) {
+                reportedDomains.add(value);
+            } else if (ARFConstants.REPORTED_URI.equalsIgnoreCase(name)) {
+                reportedURIs.add(value);
+            } else {
+                arfHeaders.addHeader(name, value);
+            }
         }
     }
 
+    /**
+     * Creates a new {@link Builder}.
+     *
+     * @return a builder for a report with a <code>Feedback-Type:</code> of
+     * abuse.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
     /**
      * Indicates the type of feedback which is set.
      *
@@ -87,25 +198,233 @@ public class AbuseFormatReport extends Report {
         this.feedbackType = feedbackType;
     }
 
-    public void writeTo(OutputStream os) throws IOException {
-        LineOutputStream lineOutputStream;
+    /**
+     * The product which generated the report.
+     *
+     * @return the value of the <code>User-Agent:</code> field.
+     */
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * Sets the product which generated the report.
+     *
+     * @param userAgent The value of the <code>User-Agent:</code> field. The
+     * default is {@value #DEFAULT_USER_AGENT}.
+     */
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    /**
+     * The date, and time the original message was received.
+     *
+     * @return the value of the <code>Arrival-Date:</code> field, or
+     * {@code null} if it is not set.
+     */
+    public String getArrivalDate() {
+        return arrivalDate;
+    }
+
+    /**
+     * Sets the date, and time the original message was received. When the
+     * report covers several incidents this is the first arrival.
+     *
+     * @param arrivalDate A date formatted as per section 3.3 of RFC-5322, or
+     * {@code null} to omit the field.
+     */
+    public void setArrivalDate(String arrivalDate) {
+        this.arrivalDate = arrivalDate;
+    }
+
+    /**
+     * The number of times the original message was received.
+     *
+     * @return the value of the <code>Incidents:</code> field, or 0 if it is not
+     * set.
+     */
+    public int getIncidents() {
+        return incidents;
+    }
+
+    /**
+     * Sets the number of times the original message was received.
+     *
+     * @param incidents The number of incidents, or 0 to omit the field.
+     */
+    public void setIncidents(int incidents) {
+        this.incidents = incidents;
+    }
+
+    /**
+     * The envelope ID of the original message.
+     *
+     * @return the value of the <code>Original-Envelope-Id:</code> field, or
+     * {@code null} if it is not set.
+     */
+    public String getOriginalEnvelopeId() {
+        return originalEnvelopeId;
+    }
+
+    /**
+     * Sets the envelope ID of the original message.
+     *
+     * @param originalEnvelopeId The envelope ID, or {@code null} to omit the
+     * field.
+     */
+    public void setOriginalEnvelopeId(String originalEnvelopeId) {
+        this.originalEnvelopeId = originalEnvelopeId;
+    }
+
+    /**
+     * The envelope sender of the original message.
+     *
+     * @return the value of the <code>Original-Mail-From:</code> field, or
+     * {@code null} if it is not set.
+     */
+    public String getOriginalMailFrom() {
+        return originalMailFrom;
+    }
+
+    /**
+     * Sets the envelope sender of the original message.
+     *
+     * @param originalMailFrom A reverse path such as
+     * <code>&lt;spam@example.com&gt;</code>, or {@code null} to omit the field.
+     */
+    public void setOriginalMailFrom(String originalMailFrom) {
+        this.originalMailFrom = originalMailFrom;
+    }
+
+    /**
+     * The MTA which generated the report.
+     *
+     * @return the value of the <code>Reporting-MTA:</code> field, or
+     * {@code null} if it is not set.
+     */
+    public String getReportingMTA() {
+        return reportingMTA;
+    }
+
+    /**
+     * Sets the MTA which generated the report.
+     *
+     * @param reportingMTA An MTA name such as
+     * <code>dns; mail.example.org</code>, or {@code null} to omit the field.
+     */
+    public void setReportingMTA(String reportingMTA) {
+        this.reportingMTA = reportingMTA;
+    }
 
-        if (os instanceof LineOutputStream) {
-            lineOutputStream = (LineOutputStream) os;
+    /**
+     * The IP address of the MTA from which the original message was received.
+     *
+     * @return the value of the <code>Source-IP:</code> field, or {@code null}
+     * if it is not set.
+     */
+    public String getSourceIP() {
+        return sourceIP;
+    }
+
+    /**
+     * Sets the IP address of the MTA from which the original message was
+     * received.
+     *
+     * @param sourceIP An IPv4, or IPv6 address literal, or {@code null} to omit
+     * the field.
+     */
+    public void setSourceIP(String sourceIP) {
+        this.sourceIP = sourceIP;
+    }
+
+    /**
+     * The <code>Authentication-Results:</code> fields of the original message.
+     *
+     * @return a modifiable list of the authentication results.
+     */
+    public List<String> getAuthenticationResults() {
+        return authenticationResults;
+    }
+
+    /**
+     * The envelope recipients of the original message.
+     *
+     * @return a modifiable list of the <code>Original-Rcpt-To:</code> fields.
+     */
+    public List<String> getOriginalRcptTo() {
+        return originalRcptTo;
+    }
+
+    /**
+     * The domains which are the subject of the report.
+     *
+     * @return a modifiable list of the <code>Reported-Domain:</code> fields.
+     */
+    public List<String> getReportedDomains() {
+        return reportedDomains;
+    }
+
+    /**
+     * The URIs which are the subject of the report.
+     *
+     * @return a modifiable list of the <code>Reported-URI:</code> fields.
+     */
+    public List<String> getReportedURIs() {
+        return reportedURIs;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each field is written as a single line of US-ASCII. Any character which
+     * is not US-ASCII is written as <code>?</code>, and a folded value is
+     * unfolded.
+     * </p>
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        if (DEFAULT_USER_AGENT.equals(userAgent)) {
+            os.write(REQUIRED_FIELDS[feedbackType.ordinal()]);
         } else {
-            lineOutputStream = new LineOutputStream(os);
+            os.write(FEEDBACK_TYPE_PREFIX);
+            writeValue(os, feedbackType.name());
+            os.write(USER_AGENT_PREFIX);
+            writeValue(os, userAgent);
+            os.write(VERSION);
+        }
+        writeField(os, ARRIVAL_DATE_PREFIX, arrivalDate);
+        if (incidents > 0) {
+            os.write(INCIDENTS_PREFIX);
+            writeValue(os, Integer.toString(incidents));
+        }
+        writeField(os, ORIGINAL_ENVELOPE_ID_PREFIX, originalEnvelopeId);
+        writeField(os, ORIGINAL_MAIL_FROM_PREFIX, originalMailFrom);
+        writeField(os, REPORTING_MTA_PREFIX, reportingMTA);
+        writeField(os, SOURCE_IP_PREFIX, sourceIP);
+        writeFields(os, AUTHENTICATION_RESULTS_PREFIX, authenticationResults);
+        writeFields(os, ORIGINAL_RCPT_TO_PREFIX, originalRcptTo);
+        writeFields(os, REPORTED_DOMAIN_PREFIX, reportedDomains);
+        writeFields(os, REPORTED_URI_PREFIX, reportedURIs);
+        Enumeration<?> e = arfHeaders.getAllHeaders();
+        while (e.hasMoreElements()) {
+            Header h = (Header) e.nextElement();
+            writeValue(os, h.getName() + ": " + h.getValue());
         }
-
-        arfHeaders.setHeader(FEEDBACK_TYPE, feedbackType.name());
-        arfHeaders.setHeader(USER_AGENT, "arf-message-generator/1.0");
-        arfHeaders.setHeader("Version", "1");
-        writeHeaders(arfHeaders, lineOutputStream);
-        lineOutputStream.writeln();
     }
 
+    /**
+     * Writes headers with CRLF between them, but not after the last.
+     *
+     * @param headers The headers to write.
+     * @param lineOutputStream The stream to write to.
+     * @throws IOException if the headers can not be written.
+     * @deprecated The fields are no longer held in {@link InternetHeaders}, and
+     * are written by {@link #writeTo(java.io.OutputStream)}.
+     */
+    @Deprecated
     protected static void writeHeaders(InternetHeaders headers, LineOutputStream lineOutputStream)
             throws IOException {
-        Enumeration e = headers.getAllHeaderLines();
+        Enumeration<?> e = headers.getAllHeaderLines();
         while (e.hasMoreElements()) {
             String element = (String) e.nextElement();
             if (e.hasMoreElements()) {
@@ -116,23 +435,307 @@ public class AbuseFormatReport extends Report {
         }
     }
 
+    private static void writeField(OutputStream os, byte[] prefix, String value) throws IOException {
+        if (value != null) {
+            os.write(prefix);
+            writeValue(os, value);
+        }
+    }
+
+    private static void writeFields(OutputStream os, byte[] prefix, List<String> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            os.write(prefix);
+            writeValue(os, values.get(i));
+        }
+    }
+
+    /**
+     * Writes a value as US-ASCII followed by CRLF. Line breaks are removed to
+     * unfold the value.
+     */
+    private static void writeValue(OutputStream os, String value) throws IOException {
+        int length = value.length();
+        byte[] b = new byte[length + CRLF.length];
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n') {
+                continue;
+            }
+            b[n++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        b[n++] = '\r';
+        b[n++] = '\n';
+        os.write(b, 0, n);
+    }
+
+    /**
+     * Parses the <code>Incidents:</code> field, which is a 32 bit unsigned
+     * integer. Counts which do not fit in an <code>int</code> are limited to
+     * {@link Integer#MAX_VALUE}.
+     *
+     * @return the number of incidents, or -1 if the field is malformed.
+     */
+    private static int parseIncidents(final String value) {
+        if (value.isEmpty() || value.length() > 10) {
+            return -1;
+        }
+        long incidents = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            incidents = incidents * 10 + c - '0';
+        }
+        return incidents > 0xFFFFFFFFL ? -1 : (int) Math.min(incidents, Integer.MAX_VALUE);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
     /**
      * {@inheritDoc}
      * <p>
-     * This will return a result similar to the example below with only one
-     * changing variable: Feedback-Type:.
+     * This will return a result similar to the example below. The optional
+     * fields are only present when set.
      * </p>
      * <pre>
      * Feedback-Type: abuse
      * User-Agent: arf-message-generator/1.0
      * Version: 1
+     * Arrival-Date: Thu, 8 Mar 2005 14:00:00 EDT
+     * Incidents: 12
+     * Original-Mail-From: &lt;spam@example.com&gt;
+     * Source-IP: 192.0.2.1
+     * Original-Rcpt-To: &lt;victim@example.org&gt;
+     * Reported-Domain: example.com
      * </pre>
      */
     @Override
     public String toString() {
-        return "Feedback-Type: " + feedbackType.name() + "\n"
-                + "User-Agent: arf-message-generator/1.0\n"
-                + "Version: 1\n";
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        try {
+            writeTo(bos);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new String(bos.toByteArray(), StandardCharsets.US_ASCII).replace("\r\n", "\n");
+    }
+
+    /**
+     * Builds an {@link AbuseFormatReport}. The fields may be set individually,
+     * or filled from the message being reported with
+     * {@link #message(javax.mail.internet.MimeMessage)}.
+     */
+    public static class Builder {
+
+        private final AbuseFormatReport report = new AbuseFormatReport();
+
+        private Builder() {
+        }
+
+        public Builder feedbackType(final FeedbackType feedbackType) {
+            report.setFeedbackType(feedbackType);
+            return this;
+        }
+
+        public Builder userAgent(final String userAgent) {
+            report.setUserAgent(userAgent);
+            return this;
+        }
+
+        public Builder arrivalDate(final String arrivalDate) {
+            report.setArrivalDate(arrivalDate);
+            return this;
+        }
+
+        public Builder incidents(final int incidents) {
+            report.setIncidents(incidents);
+            return this;
+        }
+
+        public Builder originalEnvelopeId(final String originalEnvelopeId) {
+            report.setOriginalEnvelopeId(originalEnvelopeId);
+            return this;
+        }
+
+        /**
+         * Sets the envelope sender of the original message.
+         *
+         * @param address The address of the sender. It is enclosed in angle
+         * brackets if it is not already.
+         * @return this builder.
+         */
+        public Builder originalMailFrom(final String address) {
+            report.setOriginalMailFrom(path(address));
+            return this;
+        }
+
+        public Builder reportingMTA(final String reportingMTA) {
+            report.setReportingMTA(reportingMTA);
+            return this;
+        }
+
+        /**
+         * Sets the IP address of the MTA from which the original message was
+         * received. An IPv6 address is written as an address literal with an
+         * <code>IPv6:</code> tag.
+         *
+         * @param sourceIP The IPv4, or IPv6 address.
+         * @return this builder.
+         */
+        public Builder sourceIP(final String sourceIP) {
+            if (sourceIP != null && sourceIP.indexOf(':') >= 0 && !sourceIP.regionMatches(true, 0, "IPv6:", 0, 5)) {
+                report.setSourceIP("IPv6:" + sourceIP);
+            } else {
+                report.setSourceIP(sourceIP);
+            }
+            return this;
+        }
+
+        public Builder authenticationResults(final String authenticationResults) {
+            report.getAuthenticationResults().add(authenticationResults);
+            return this;
+        }
+
+        /**
+         * Adds an envelope recipient of the original message.
+         *
+         * @param address The address of the recipient. It is enclosed in angle
+         * brackets if it is not already.
+         * @return this builder.
+         */
+        public Builder originalRcptTo(final String address) {
+            report.getOriginalRcptTo().add(path(address));
+            return this;
+        }
+
+        public Builder reportedDomain(final String domain) {
+            report.getReportedDomains().add(domain);
+            return this;
+        }
+
+        public Builder reportedURI(final String uri) {
+            report.getReportedURIs().add(uri);
+            return this;
+        }
+
+        /**
+         * Adds an extension field which is written after the RFC-5965 fields.
+         *
+         * @param name The name of the field.
+         * @param value The value of the field.
+         * @return this builder.
+         */
+        public Builder extension(final String name, final String value) {
+            report.arfHeaders.addHeader(name, value);
+            return this;
+        }
+
+        /**
+         * Fills the fields which can be determined from the headers of the
+         * message being reported. Fields which are already set are not
+         * replaced.
+         * <ul>
+         * <li><code>Arrival-Date:</code> from the first <code>Received:</code>
+         * header, or the <code>Date:</code> header if it has no date,</li>
+         * <li><code>Source-IP:</code> from the <code>Received:</code>
+         * headers,</li>
+         * <li><code>Original-Mail-From:</code> from the
+         * <code>Return-Path:</code> header,</li>
+         * <li><code>Original-Rcpt-To:</code> from the <code>Delivered-To:</code>,
+         * or <code>X-Original-To:</code> headers,</li>
+         * <li><code>Reported-Domain:</code> from the domain of the
+         * <code>Return-Path:</code>, or <code>From:</code> header, and</li>
+         * <li><code>Authentication-Results:</code> copied from the
+         * message.</li>
+         * </ul>
+         * The envelope fields are left out when the message has no trace
+         * headers, since the header recipients are not the envelope
+         * recipients, and would disclose the other recipients of the message.
+         *
+         * @param message The message being reported.
+         * @return this builder.
+         * @throws MessagingException if the headers can not be parsed.
+         */
+        public Builder message(final MimeMessage message) throws MessagingException {
+            if (report.getArrivalDate() == null) {
+                Date received = Utils.getReceivedDate(message.getHeader("Received", null));
+                report.setArrivalDate(received != null ? Utils.formatDate(received) : message.getHeader("Date", null));
+            }
+            if (report.getSourceIP() == null) {
+                sourceIP(Utils.getSourceIPAddress(message.getHeader("Received")));
+            }
+            String returnPath = getReturnPath(message);
+            if (report.getOriginalMailFrom() == null && returnPath != null) {
+                originalMailFrom(returnPath);
+            }
+            if (report.getOriginalRcptTo().isEmpty()) {
+                String[] delivered = message.getHeader("Delivered-To");
+                if (delivered == null) {
+                    delivered = message.getHeader("X-Original-To");
+                }
+                if (delivered != null) {
+                    for (String d : delivered) {
+                        originalRcptTo(d.trim());
+                    }
+                }
+            }
+            String sender = returnPath != null ? returnPath : getFrom(message);
+            if (report.getReportedDomains().isEmpty() && sender != null) {
+                int at = sender.lastIndexOf('@');
+                if (at >= 0 && at < sender.length() - 1) {
+                    reportedDomain(sender.substring(at + 1));
+                }
+            }
+            if (report.getAuthenticationResults().isEmpty()) {
+                String[] results = message.getHeader(ARFConstants.AUTHENTICATION_RESULTS_HEADER);
+                if (results != null) {
+                    Collections.addAll(report.getAuthenticationResults(), results);
+                }
+            }
+            return this;
+        }
+
+        private static String getReturnPath(final MimeMessage message) throws MessagingException {
+            String returnPath = message.getHeader("Return-Path", null);
+            if (returnPath != null) {
+                String sender = returnPath.trim();
+                if (sender.startsWith("<") && sender.endsWith(">")) {
+                    sender = sender.substring(1, sender.length() - 1).trim();
+                }
+                if (!sender.isEmpty()) {
+                    return sender;
+                }
+            }
+            return null;
+        }
+
+        private static String getFrom(final MimeMessage message) throws MessagingException {
+            Address[] from = message.getFrom();
+            if (from != null && from.length > 0 && from[0] instanceof InternetAddress) {
+                return ((InternetAddress) from[0]).getAddress();
+            }
+            return null;
+        }
+
+        private static String path(final String address) {
+            if (address == null || address.startsWith("<")) {
+                return address;
+            }
+            return "<" + address + ">";
+        }
+
+        /**
+         * Returns the report which has been built.
+         *
+         * @return the report.
+         */
+        public AbuseFormatReport build() {
+            return report;
+        }
     }
 
 }
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.arf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.mail.Header;
+
+/**
+ * An inbound ARF report, e.g. from a feedback loop, read by a
+ * {@link FeedbackReportParser}. It holds the fields of the
+ * <code>message/feedback-report</code> part as defined by RFC-5965, and the
+ * headers of the original message. The report is immutable, and may be shared
+ * between threads.
+ * <p>
+ * The values of the fields, and headers are unfolded, and trimmed, but are
+ * otherwise as they appear in the report, e.g. encoded words are not decoded.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public final class FeedbackReport {
+
+    private final FeedbackType feedbackType;
+    private final String feedbackTypeToken;
+    private final String userAgent;
+    private final String version;
+    private final String arrivalDate;
+    private final long incidents;
+    private final String originalEnvelopeId;
+    private final String originalMailFrom;
+    private final String reportingMTA;
+    private final String sourceIP;
+    private final List<String> authenticationResults;
+    private final List<String> originalRcptTo;
+    private final List<String> reportedDomains;
+    private final List<String> reportedURIs;
+    private final List<Header> extensionFields;
+    private final List<Header> originalHeaders;
+    private final String originalMessageId;
+
+    private FeedbackReport(final Builder builder) {
+        feedbackType = builder.feedbackType;
+        feedbackTypeToken = builder.feedbackTypeToken;
+        userAgent = builder.userAgent;
+        version = builder.version;
+        arrivalDate = builder.arrivalDate;
+        incidents = builder.incidents;
+        originalEnvelopeId = builder.originalEnvelopeId;
+        originalMailFrom = builder.originalMailFrom;
+        reportingMTA = builder.reportingMTA;
+        sourceIP = builder.sourceIP;
+        authenticationResults = freeze(builder.authenticationResults);
+        originalRcptTo = freeze(builder.originalRcptTo);
+        reportedDomains = freeze(builder.reportedDomains);
+        reportedURIs = freeze(builder.reportedURIs);
+        extensionFields = freeze(builder.extensionFields);
+        originalHeaders = freeze(builder.originalHeaders);
+        originalMessageId = builder.originalMessageId;
+    }
+
+    private static <T> List<T> freeze(final List<T> list) {
+        return list.isEmpty() ? Collections.<T>emptyList() : Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    /**
+     * The type of feedback. A report read leniently with a type which is not
+     * defined by {@link FeedbackType} has the type {@link FeedbackType#other}.
+     *
+     * @return the <code>Feedback-Type:</code>.
+     * @see #getFeedbackTypeToken()
+     */
+    public FeedbackType getFeedbackType() {
+        return feedbackType;
+    }
+
+    /**
+     * The <code>Feedback-Type:</code> as it appears in the report, e.g.
+     * <code>Abuse</code>, or <code>not-spam</code>.
+     *
+     * @return the feedback type token.
+     */
+    public String getFeedbackTypeToken() {
+        return feedbackTypeToken;
+    }
+
+    /**
+     * The product which generated the report.
+     *
+     * @return the <code>User-Agent:</code>, or {@code null} if it is missing
+     * from a report read leniently.
+     */
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * The version of the report format.
+     *
+     * @return the <code>Version:</code>, or {@code null} if it is missing
+     * from a report read leniently.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The date the original message was received.
+     *
+     * @return the <code>Arrival-Date:</code>, or {@code null}.
+     */
+    public String getArrivalDate() {
+        return arrivalDate;
+    }
+
+    /**
+     * The number of incidents the report represents.
+     *
+     * @return the <code>Incidents:</code>, or 0 if there is none.
+     */
+    public long getIncidents() {
+        return incidents;
+    }
+
+    /**
+     * The envelope ID of the original message.
+     *
+     * @return the <code>Original-Envelope-Id:</code>, or {@code null}.
+     */
+    public String getOriginalEnvelopeId() {
+        return originalEnvelopeId;
+    }
+
+    /**
+     * The envelope sender of the original message.
+     *
+     * @return the <code>Original-Mail-From:</code>, or {@code null}.
+     */
+    public String getOriginalMailFrom() {
+        return originalMailFrom;
+    }
+
+    /**
+     * The MTA which received the original message.
+     *
+     * @return the <code>Reporting-MTA:</code>, or {@code null}.
+     */
+    public String getReportingMTA() {
+        return reportingMTA;
+    }
+
+    /**
+     * The IP address the original message was received from.
+     *
+     * @return the <code>Source-IP:</code>, or {@code null}.
+     */
+    public String getSourceIP() {
+        return sourceIP;
+    }
+
+    /**
+     * The results of authenticating the original message.
+     *
+     * @return the <code>Authentication-Results:</code> fields.
+     */
+    public List<String> getAuthenticationResults() {
+        return authenticationResults;
+    }
+
+    /**
+     * The envelope recipients of the original message.
+     *
+     * @return the <code>Original-Rcpt-To:</code> fields.
+     */
+    public List<String> getOriginalRcptTo() {
+        return originalRcptTo;
+    }
+
+    /**
+     * The domains the report concerns.
+     *
+     * @return the <code>Reported-Domain:</code> fields.
+     */
+    public List<String> getReportedDomains() {
+        return reportedDomains;
+    }
+
+    /**
+     * The URIs the report concerns.
+     *
+     * @return the <code>Reported-URI:</code> fields.
+     */
+    public List<String> getReportedURIs() {
+        return reportedURIs;
+    }
+
+    /**
+     * The fields of the <code>message/feedback-report</code> part which are
+     * not defined by RFC-5965, in the order they appear.
+     *
+     * @return the extension fields.
+     */
+    public List<Header> getExtensionFields() {
+        return extensionFields;
+    }
+
+    /**
+     * The headers of the original message, in the order they appear.
+     *
+     * @return the original headers, which is empty if the report does not
+     * include the original message.
+     */
+    public List<Header> getOriginalHeaders() {
+        return originalHeaders;
+    }
+
+    /**
+     * The values of an original header.
+     *
+     * @param name The name of the header, which is matched ignoring case.
+     * @return the values of the header, in the order they appear.
+     */
+    public List<String> getOriginalHeader(final String name) {
+        List<String> values = new ArrayList<>(1);
+        for (Header h : originalHeaders) {
+            if (h.getName().equalsIgnoreCase(name)) {
+                values.add(h.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The <code>Message-ID:</code> of the original message.
+     *
+     * @return the message ID, or {@code null} if it is not known.
+     */
+    public String getOriginalMessageId() {
+        return originalMessageId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "FeedbackReport{" + "feedbackType=" + feedbackTypeToken + ", userAgent=" + userAgent
+                + ", sourceIP=" + sourceIP + ", originalMessageId=" + originalMessageId + '}';
+    }
+
+    /**
+     * Collects the fields of a report as it is read.
+     */
+    static final class Builder {
+
+        private FeedbackType feedbackType;
+        private String feedbackTypeToken;
+        private String userAgent;
+        private String version;
+        private String arrivalDate;
+        private long incidents;
+        private String originalEnvelopeId;
+        private String originalMailFrom;
+        private String reportingMTA;
+        private String sourceIP;
+        private final List<String> authenticationResults = new ArrayList<>(1);
+        private final List<String> originalRcptTo = new ArrayList<>(1);
+        private final List<String> reportedDomains = new ArrayList<>(1);
+        private final List<String> reportedURIs = new ArrayList<>(1);
+        private final List<Header> extensionFields = new ArrayList<>(2);
+        private final List<Header> originalHeaders = new ArrayList<>(32);
+        private String originalMessageId;
+        private int seen;
+
+        Builder feedbackType(final FeedbackType type, final String token) {
+            feedbackType = type;
+            feedbackTypeToken = token;
+            return this;
+        }
+
+        Builder userAgent(final String userAgent) {
+            this.userAgent = userAgent;
+            return this;
+        }
+
+        Builder version(final String version) {
+            this.version = version;
+            return this;
+        }
+
+        Builder arrivalDate(final String arrivalDate) {
+            this.arrivalDate = arrivalDate;
+            return this;
+        }
+
+        Builder incidents(final long incidents) {
+            this.incidents = incidents;
+            return this;
+        }
+
+        Builder originalEnvelopeId(final String originalEnvelopeId) {
+            this.originalEnvelopeId = originalEnvelopeId;
+            return this;
+        }
+
+        Builder originalMailFrom(final String originalMailFrom) {
+            this.originalMailFrom = originalMailFrom;
+            return this;
+        }
+
+        Builder reportingMTA(final String reportingMTA) {
+            this.reportingMTA = reportingMTA;
+            return this;
+        }
+
+        Builder sourceIP(final String sourceIP) {
+            this.sourceIP = sourceIP;
+            return this;
+        }
+
+        Builder authenticationResults(final String value) {
+            authenticationResults.add(value);
+            return this;
+        }
+
+        Builder originalRcptTo(final String value) {
+            originalRcptTo.add(value);
+            return this;
+        }
+
+        Builder reportedDomain(final String value) {
+            reportedDomains.add(value);
+            return this;
+        }
+
+        Builder reportedURI(final String value) {
+            reportedURIs.add(value);
+            return this;
+        }
+
+        Builder extension(final String name, final String value) {
+            extensionFields.add(new Header(name, value));
+            return this;
+        }
+
+        Builder originalHeader(final String name, final String value) {
+            originalHeaders.add(new Header(name, value));
+            if (originalMessageId == null && "Message-ID".equalsIgnoreCase(name)) {
+                originalMessageId = value;
+            }
+            return this;
+        }
+
+        /**
+         * Marks a field which may only appear once as read.
+         *
+         * @param field The number of the field, from 0 to 31.
+         * @return {@code true} if the field had not already been read.
+         */
+        boolean first(final int field) {
+            int bit = 1 << field;
+            boolean first = (seen & bit) == 0;
+            seen |= bit;
+            return first;
+        }
+
+        boolean hasFeedbackType() {
+            return feedbackTypeToken != null;
+        }
+
+        FeedbackReport build() {
+            return new FeedbackReport(this);
+        }
+    }
+
+}
@@ -0,0 +1,633 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.arf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/**
+ * Reads inbound ARF reports, e.g. from the feedback loops of mailbox
+ * providers, into {@link FeedbackReport} objects. A complete
+ * <code>multipart/report; report-type=feedback-report</code> message is read
+ * in a single pass over the stream, without building a {@link
+ * javax.mail.internet.MimeMessage}. Only the header fields of the report, of
+ * the <code>message/feedback-report</code> part, and of the original message
+ * are decoded; the human readable part, and the body of the original message
+ * are skipped as they are read. The stream is not read past the closing
+ * boundary of the report.
+ * <p>
+ * By default the report must conform to RFC-5965. A lenient parser accepts
+ * the reports seen in practice from feedback loops:
+ * </p>
+ * <ul>
+ * <li>the <code>Feedback-Type:</code> is matched ignoring case, and a type
+ * which is not a {@link FeedbackType} is read as
+ * {@link FeedbackType#other},</li>
+ * <li>a missing <code>Feedback-Type:</code>, <code>User-Agent:</code>, or
+ * <code>Version:</code>, a version other than 1, and malformed, or repeated
+ * fields are ignored,</li>
+ * <li>any <code>multipart</code> message containing a
+ * <code>message/feedback-report</code> part is accepted, and</li>
+ * <li>a report which ends without its closing boundary is accepted.</li>
+ * </ul>
+ * <p>
+ * A parser holds no state between reports, and may be shared between threads.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class FeedbackReportParser {
+
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * The longest line which is held in the buffer. Longer lines are read in
+     * pieces.
+     */
+    private static final int MAX_LINE_LENGTH = 1 << 16;
+    private static final int NO_BOUNDARY = 0;
+    private static final int DELIMITER = 1;
+    private static final int CLOSE_DELIMITER = 2;
+    // The fields which may only appear once.
+    private static final int USER_AGENT = 0;
+    private static final int VERSION = 1;
+    private static final int ARRIVAL_DATE = 2;
+    private static final int INCIDENTS = 3;
+    private static final int ORIGINAL_ENVELOPE_ID = 4;
+    private static final int ORIGINAL_MAIL_FROM = 5;
+    private static final int REPORTING_MTA = 6;
+    private static final int SOURCE_IP = 7;
+
+    private boolean lenient;
+
+    /**
+     * Constructor for a parser which only accepts reports which conform to
+     * RFC-5965.
+     */
+    public FeedbackReportParser() {
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param lenient {@code true} if non-conforming reports are accepted.
+     */
+    public FeedbackReportParser(final boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * Indicates if reports which do not conform to RFC-5965 are accepted.
+     *
+     * @return {@code true} if the parser is lenient.
+     */
+    public boolean isLenient() {
+        return lenient;
+    }
+
+    /**
+     * Sets if reports which do not conform to RFC-5965 are accepted.
+     *
+     * @param lenient {@code true} if non-conforming reports are accepted.
+     */
+    public void setLenient(final boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * Reads a report.
+     *
+     * @param in The stream of the raw report message, which is not closed.
+     * @return the report.
+     * @throws ParseException if the message is not an ARF report, or the
+     * report does not conform to RFC-5965, and the parser is not lenient.
+     * @throws MessagingException if an encoded part can not be decoded.
+     * @throws IOException if the stream can not be read.
+     */
+    public FeedbackReport parse(final InputStream in) throws MessagingException, IOException {
+        return new Reader(in).readReport();
+    }
+
+    /**
+     * Reads a report from an array, which is read in place rather than
+     * copied.
+     *
+     * @param message The raw report message.
+     * @return the report.
+     * @throws ParseException if the message is not an ARF report, or the
+     * report does not conform to RFC-5965, and the parser is not lenient.
+     * @throws MessagingException if an encoded part can not be decoded.
+     */
+    public FeedbackReport parse(final byte[] message) throws MessagingException {
+        try {
+            return new Reader(message).readReport();
+        } catch (IOException e) {
+            throw new MessagingException("Unable to read the report.", e);
+        }
+    }
+
+    /**
+     * Receives the unfolded header fields read by a {@link Reader}.
+     */
+    private interface FieldHandler {
+
+        void field(String name, String value) throws ParseException;
+    }
+
+    /**
+     * Reads the lines of a stream from a buffer which is refilled, and grown
+     * as required. A line is a view of the buffer from {@code lineStart} to
+     * {@code lineEnd}, excluding its line terminator.
+     */
+    private final class Reader {
+
+        private final InputStream in;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+        private boolean eof;
+        private int lineStart;
+        private int lineEnd;
+        /**
+         * Set if the line is the remainder of a line longer than
+         * {@link #MAX_LINE_LENGTH}.
+         */
+        private boolean continued;
+        private boolean split;
+        private byte[] boundary;
+        private String contentType;
+        private String transferEncoding;
+
+        Reader(final InputStream in) {
+            this.in = in;
+            this.buffer = new byte[BUFFER_SIZE];
+        }
+
+        /**
+         * Constructor for a reader of an array, which becomes the buffer.
+         */
+        Reader(final byte[] data) {
+            this.in = null;
+            this.buffer = data;
+            this.limit = data.length;
+            this.eof = true;
+        }
+
+        FeedbackReport readReport() throws MessagingException, IOException {
+            FeedbackReport.Builder report = new FeedbackReport.Builder();
+            readHeaders(this::partField, false);
+            if (contentType == null) {
+                throw new ParseException("The message is not a multipart/report.");
+            }
+            ContentType type = new ContentType(contentType);
+            if (!type.match("multipart/report")
+                    || !"feedback-report".equalsIgnoreCase(type.getParameter("report-type"))) {
+                if (!lenient || !"multipart".equalsIgnoreCase(type.getPrimaryType())) {
+                    throw new ParseException("The message is not a multipart/report; "
+                            + "report-type=feedback-report: " + contentType);
+                }
+            }
+            String b = type.getParameter("boundary");
+            if (b == null) {
+                throw new ParseException("The multipart/report has no boundary.");
+            }
+            boundary = ("--" + b).getBytes(StandardCharsets.ISO_8859_1);
+
+            int delimiter = skipToBoundary();
+            boolean feedback = false;
+            boolean original = false;
+            while (delimiter == DELIMITER) {
+                contentType = null;
+                transferEncoding = null;
+                delimiter = readHeaders(this::partField, true);
+                if (delimiter != NO_BOUNDARY) {
+                    continue;
+                }
+                String mimeType = mimeType(contentType);
+                if (!feedback && "message/feedback-report".equals(mimeType)) {
+                    feedback = true;
+                    delimiter = readBody((n, v) -> feedbackField(report, n, v));
+                } else if (!original && ("message/rfc822".equals(mimeType)
+                        || "text/rfc822-headers".equals(mimeType))) {
+                    original = true;
+                    delimiter = readBody(report::originalHeader);
+                } else {
+                    delimiter = skipToBoundary();
+                }
+            }
+            if (delimiter != CLOSE_DELIMITER && !lenient) {
+                throw new ParseException("The report ends before its closing boundary.");
+            }
+            if (!feedback) {
+                throw new ParseException("The report has no message/feedback-report part.");
+            }
+            if (!report.hasFeedbackType()) {
+                if (!lenient) {
+                    throw new ParseException("The report has no Feedback-Type field.");
+                }
+                report.feedbackType(FeedbackType.other, null);
+            }
+            FeedbackReport result = report.build();
+            if (!lenient) {
+                if (result.getUserAgent() == null) {
+                    throw new ParseException("The report has no User-Agent field.");
+                }
+                if (!"1".equals(result.getVersion())) {
+                    throw new ParseException("The report has an unsupported Version: " + result.getVersion());
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Records the <code>Content-Type:</code>, and
+         * <code>Content-Transfer-Encoding:</code> of the message, or part.
+         */
+        private void partField(final String name, final String value) {
+            if (contentType == null && "Content-Type".equalsIgnoreCase(name)) {
+                contentType = value;
+            } else if (transferEncoding == null && "Content-Transfer-Encoding".equalsIgnoreCase(name)) {
+                transferEncoding = value.toLowerCase(Locale.ROOT);
+            }
+        }
+
+        /**
+         * Reads the header fields at the start of a part body, decoding the
+         * body first if it has a transfer encoding, and skips the rest of the
+         * part.
+         */
+        private int readBody(final FieldHandler handler) throws MessagingException, IOException {
+            if (transferEncoding == null || "7bit".equals(transferEncoding) || "8bit".equals(transferEncoding)
+                    || "binary".equals(transferEncoding)) {
+                int delimiter = readHeaders(handler, true);
+                return delimiter == NO_BOUNDARY ? skipToBoundary() : delimiter;
+            }
+            // An encoded part is small, e.g. text/rfc822-headers, so it is copied, and decoded.
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            int delimiter = NO_BOUNDARY;
+            while (readLine()) {
+                if (!continued && (delimiter = delimiter()) != NO_BOUNDARY) {
+                    break;
+                }
+                if (encoded.size() > 0 && !continued) {
+                    encoded.write('\r');
+                    encoded.write('\n');
+                }
+                encoded.write(buffer, lineStart, lineEnd - lineStart);
+            }
+            InputStream decoded = MimeUtility.decode(new ByteArrayInputStream(encoded.toByteArray()),
+                    transferEncoding);
+            new Reader(decoded).readHeaders(handler, false);
+            return delimiter;
+        }
+
+        /**
+         * Reads a block of header fields up to the empty line which ends it,
+         * and passes each unfolded field to the handler.
+         *
+         * @param handler The handler of the fields.
+         * @param boundaries {@code true} if the block may end at a boundary.
+         * @return the boundary the block ended at, or {@link #NO_BOUNDARY}.
+         */
+        private int readHeaders(final FieldHandler handler, final boolean boundaries)
+                throws ParseException, IOException {
+            String name = null;
+            String value = null;
+            StringBuilder folded = null;
+            int delimiter = NO_BOUNDARY;
+            while (readLine()) {
+                if (continued || (lineEnd > lineStart && isWhitespace(buffer[lineStart]))) {
+                    if (name != null) {
+                        if (folded == null) {
+                            folded = new StringBuilder(value);
+                        }
+                        folded.append(string(lineStart, lineEnd));
+                    }
+                    continue;
+                }
+                if (name != null) {
+                    handler.field(name, folded == null ? value.trim() : folded.toString().trim());
+                    name = null;
+                    folded = null;
+                }
+                if (lineEnd == lineStart) {
+                    break;
+                }
+                if (boundaries && (delimiter = delimiter()) != NO_BOUNDARY) {
+                    break;
+                }
+                int colon = lineStart;
+                while (colon < lineEnd && buffer[colon] != ':') {
+                    colon++;
+                }
+                if (colon == lineEnd || colon == lineStart) {
+                    // A line which is not a field is skipped, as it is by JavaMail.
+                    continue;
+                }
+                name = string(lineStart, colon).trim();
+                value = string(colon + 1, lineEnd);
+            }
+            if (name != null) {
+                handler.field(name, folded == null ? value.trim() : folded.toString().trim());
+            }
+            return delimiter;
+        }
+
+        /**
+         * Skips lines up to the next boundary.
+         *
+         * @return the boundary, or {@link #NO_BOUNDARY} at the end of the
+         * stream.
+         */
+        private int skipToBoundary() throws IOException {
+            while (readLine()) {
+                int delimiter;
+                if (!continued && (delimiter = delimiter()) != NO_BOUNDARY) {
+                    return delimiter;
+                }
+            }
+            return NO_BOUNDARY;
+        }
+
+        /**
+         * Determines if the line is a boundary. A boundary may be followed by
+         * transport padding.
+         */
+        private int delimiter() {
+            int length = boundary.length;
+            if (lineEnd - lineStart < length) {
+                return NO_BOUNDARY;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer[lineStart + i] != boundary[i]) {
+                    return NO_BOUNDARY;
+                }
+            }
+            int i = lineStart + length;
+            int result = DELIMITER;
+            if (lineEnd - i >= 2 && buffer[i] == '-' && buffer[i + 1] == '-') {
+                result = CLOSE_DELIMITER;
+                i += 2;
+            }
+            while (i < lineEnd) {
+                if (!isWhitespace(buffer[i++])) {
+                    return NO_BOUNDARY;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Reads the next line, which ends with CRLF, LF, or CR.
+         *
+         * @return {@code false} at the end of the stream.
+         */
+        private boolean readLine() throws IOException {
+            continued = split;
+            split = false;
+            int scan = position;
+            while (true) {
+                int i = scan;
+                while (i < limit) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        return line(i, i + 1);
+                    }
+                    if (b == '\r') {
+                        if (i + 1 < limit) {
+                            return line(i, buffer[i + 1] == '\n' ? i + 2 : i + 1);
+                        }
+                        if (eof) {
+                            return line(i, i + 1);
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                if (i - position >= MAX_LINE_LENGTH) {
+                    split = true;
+                    return line(i, i);
+                }
+                int scanned = i - position;
+                boolean more = fill();
+                scan = position + scanned;
+                if (!more) {
+                    if (position == limit) {
+                        return false;
+                    }
+                    if (scan == limit) {
+                        return line(limit, limit);
+                    }
+                    // The line ends with a CR at the end of the stream.
+                }
+            }
+        }
+
+        private boolean line(final int end, final int next) {
+            lineStart = position;
+            lineEnd = end;
+            position = next;
+            return true;
+        }
+
+        /**
+         * Reads more of the stream into the buffer, moving the unread bytes
+         * to its start, and growing it if it is full.
+         *
+         * @return {@code false} if there is no more to read.
+         */
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            if (limit == buffer.length) {
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, limit);
+                buffer = larger;
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            limit += n;
+            return true;
+        }
+
+        /**
+         * Decodes a region of the buffer, as UTF-8 if it is not US-ASCII.
+         */
+        private String string(final int start, final int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer[i] < 0) {
+                    return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+                }
+            }
+            return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Adds a field of the <code>message/feedback-report</code> part to the
+     * report.
+     */
+    private void feedbackField(final FeedbackReport.Builder report, final String name, final String value)
+            throws ParseException {
+        if (AbuseFormatReport.FEEDBACK_TYPE.equalsIgnoreCase(name)) {
+            if (report.hasFeedbackType()) {
+                repeated(name);
+                return;
+            }
+            FeedbackType type = lenient ? FeedbackType.forToken(value) : exactType(value);
+            if (type == null) {
+                if (!lenient) {
+                    throw new ParseException("Unknown Feedback-Type: " + value);
+                }
+                type = FeedbackType.other;
+            }
+            report.feedbackType(type, value);
+        } else if (ARFConstants.USER_AGENT_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, USER_AGENT, name)) {
+                report.userAgent(value);
+            }
+        } else if (ARFConstants.VERSION_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, VERSION, name)) {
+                report.version(value);
+            }
+        } else if (ARFConstants.ARRIVAL_DATE_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, ARRIVAL_DATE, name)) {
+                report.arrivalDate(value);
+            }
+        } else if (ARFConstants.INCIDENTS_HEADER.equalsIgnoreCase(name)) {
+            long incidents = parseIncidents(value);
+            if (once(report, INCIDENTS, name) && incidents >= 0) {
+                report.incidents(incidents);
+            }
+        } else if (ARFConstants.ORIGINAL_ENVELOPE_ID_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, ORIGINAL_ENVELOPE_ID, name)) {
+                report.originalEnvelopeId(value);
+            }
+        } else if (ARFConstants.ORIGINAL_MAIL_FROM_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, ORIGINAL_MAIL_FROM, name)) {
+                report.originalMailFrom(value);
+            }
+        } else if (ARFConstants.REPORTING_MTA_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, REPORTING_MTA, name)) {
+                report.reportingMTA(value);
+            }
+        } else if (ARFConstants.SOURCE_IP_HEADER.equalsIgnoreCase(name)) {
+            if (once(report, SOURCE_IP, name)) {
+                report.sourceIP(value);
+            }
+        } else if (ARFConstants.AUTHENTICATION_RESULTS_HEADER.equalsIgnoreCase(name)) {
+            report.authenticationResults(value);
+        } else if (ARFConstants.ORIGINAL_RECEIPT_TO_HEADER.equalsIgnoreCase(name)) {
+            report.originalRcptTo(value);
+        } else if (ARFConstants.REPORTED_DOMAIN_HEADER.equalsIgnoreCase(name)) {
+            report.reportedDomain(value);
+        } else if (ARFConstants.REPORTED_URI.equalsIgnoreCase(name)) {
+            report.reportedURI(value);
+        } else {
+            report.extension(name, value);
+        }
+    }
+
+    private static FeedbackType exactType(final String token) {
+        for (FeedbackType type : FeedbackType.values()) {
+            if (type.name().equals(token)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a field which may only appear once has not already been
+     * read.
+     *
+     * @return {@code true} if the field should be recorded.
+     */
+    private boolean once(final FeedbackReport.Builder report, final int field, final String name)
+            throws ParseException {
+        if (!report.first(field)) {
+            repeated(name);
+            return false;
+        }
+        return true;
+    }
+
+    private void repeated(final String name) throws ParseException {
+        if (!lenient) {
+            throw new ParseException("The report has more than one " + name + " field.");
+        }
+    }
+
+    /**
+     * Parses the <code>Incidents:</code> field, which is a 32 bit unsigned
+     * integer.
+     *
+     * @return the number of incidents, or -1 if the field is malformed, and
+     * the parser is lenient.
+     */
+    private long parseIncidents(final String value) throws ParseException {
+        long incidents = -1;
+        if (!value.isEmpty() && value.length() <= 10) {
+            incidents = 0;
+            for (int i = 0; i < value.length() && incidents >= 0; i++) {
+                char c = value.charAt(i);
+                incidents = c >= '0' && c <= '9' ? incidents * 10 + c - '0' : -1;
+            }
+        }
+        if (incidents < 0 || incidents > 0xFFFFFFFFL) {
+            if (!lenient) {
+                throw new ParseException("The report has a malformed Incidents field: " + value);
+            }
+            return -1;
+        }
+        return incidents;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * The lower case type, and subtype of a <code>Content-Type:</code>, which
+     * is <code>text/plain</code> if there is none.
+     */
+    private static String mimeType(final String contentType) {
+        if (contentType == null) {
+            return "text/plain";
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon < 0 ? contentType : contentType.substring(0, semicolon);
+        return type.trim().toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -22,4 +22,26 @@ package com.bluelotussoftware.mail.arf;
  */
 public enum FeedbackType {
     abuse, fraud, other, virus;
+
+    /**
+     * Finds the feedback type of a <code>Feedback-Type:</code> token. Unlike
+     * {@link #valueOf(java.lang.String)} the token is matched ignoring case,
+     * as it is by RFC-5965 receivers, and an unknown token does not throw.
+     *
+     * @param token The token, which may be surrounded by whitespace.
+     * @return the feedback type, or {@code null} if the token is not one of
+     * the defined types.
+     */
+    public static FeedbackType forToken(final String token) {
+        if (token == null) {
+            return null;
+        }
+        String t = token.trim();
+        for (FeedbackType type : values()) {
+            if (type.name().equalsIgnoreCase(t)) {
+                return type;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016 John Yeary <jyeary@bluelotussoftware.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bluelotussoftware.mail.arf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.mail.internet.InternetHeaders;
+
+/**
+ * Determines the source IP address of a message from its <code>Received:</code>
+ * headers without the use of regular expressions.
+ * <p>
+ * Each <code>Received:</code> header is scanned from the right for a bracketed
+ * address literal, e.g. <code>[192.0.2.1]</code> or
+ * <code>[IPv6:2001:db8::1]</code>. Only literals which are valid IPv4 or IPv6
+ * addresses are considered, and no intermediate strings are created; the only
+ * allocation is the address returned.
+ * </p>
+ * <p>
+ * Without trusted relays the address from the last (oldest) header containing
+ * a literal is returned. When trusted relays are configured the headers are
+ * evaluated from the first (most recent) header, and the first address which
+ * is not a trusted relay is returned, which is the hop that handed the message
+ * to the trusted infrastructure. If every hop is trusted the oldest address is
+ * returned.
+ * </p>
+ * <p>
+ * Instances are immutable, and may be shared between threads.
+ * </p>
+ *
+ * @author John Yeary <jyeary@bluelotussoftware.com>
+ * @version 1.0
+ */
+public class SourceIPExtractor {
+
+    private static final String RECEIVED = "Received";
+    private static final String IPV6_TAG = "IPv6:";
+
+    private final int[] trustedIPv4Networks;
+    private final int[] trustedIPv4Masks;
+    private final long[] trustedIPv6Networks;
+    private final int[] trustedIPv6Prefixes;
+
+    /**
+     * Constructor which does not trust any relays.
+     */
+    public SourceIPExtractor() {
+        this(new ArrayList<String>());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param trustedRelays The addresses of relays which are trusted. Each
+     * entry is an IPv4 or IPv6 address, optionally followed by a CIDR prefix
+     * length, e.g. <code>192.0.2.0/24</code>.
+     * @throws IllegalArgumentException if an entry is not a valid address or
+     * network.
+     */
+    public SourceIPExtractor(final Collection<String> trustedRelays) {
+        List<int[]> ipv4 = new ArrayList<>();
+        List<long[]> ipv6 = new ArrayList<>();
+        long[] address = new long[2];
+        for (String relay : trustedRelays) {
+            String s = relay.trim();
+            int slash = s.indexOf('/');
+            String ip = slash < 0 ? s : s.substring(0, slash);
+            if (isIPv4(ip, 0, ip.length())) {
+                int prefix = slash < 0 ? 32 : parsePrefix(relay, s.substring(slash + 1), 32);
+                int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+                ipv4.add(new int[]{parseIPv4(ip, 0, ip.length()) & mask, mask});
+            } else if (parseIPv6(ip, 0, ip.length(), address)) {
+                int prefix = slash < 0 ? 128 : parsePrefix(relay, s.substring(slash + 1), 128);
+                ipv6.add(new long[]{address[0], address[1], prefix});
+            } else {
+                throw new IllegalArgumentException("Invalid trusted relay: " + relay);
+            }
+        }
+        trustedIPv4Networks = new int[ipv4.size()];
+        trustedIPv4Masks = new int[ipv4.size()];
+        for (int i = 0; i < ipv4.size(); i++) {
+            trustedIPv4Networks[i] = ipv4.get(i)[0];
+            trustedIPv4Masks[i] = ipv4.get(i)[1];
+        }
+        trustedIPv6Networks = new long[ipv6.size() * 2];
+        trustedIPv6Prefixes = new int[ipv6.size()];
+        for (int i = 0; i < ipv6.size(); i++) {
+            trustedIPv6Networks[i * 2] = ipv6.get(i)[0];
+            trustedIPv6Networks[i * 2 + 1] = ipv6.get(i)[1];
+            trustedIPv6Prefixes[i] = (int) ipv6.get(i)[2];
+        }
+    }
+
+    private static int parsePrefix(final String relay, final String prefix, final int max) {
+        try {
+            int value = Integer.parseInt(prefix);
+            if (value >= 0 && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Invalid prefix length in trusted relay: " + relay);
+    }
+
+    /**
+     * Determines the source IP address from the <code>Received:</code>
+     * headers provided.
+     *
+     * @param internetHeaders The headers to examine.
+     * @return the source IP address, or {@code null} if it can not be
+     * determined.
+     */
+    public String extract(final InternetHeaders internetHeaders) {
+        return extract(internetHeaders.getHeader(RECEIVED));
+    }
+
+    /**
+     * Determines the source IP address from the values of the
+     * <code>Received:</code> headers provided in the order they appear in the
+     * message.
+     *
+     * @param received The values of the <code>Received:</code> headers, which
+     * may be {@code null}.
+     * @return the source IP address, or {@code null} if it can not be
+     * determined.
+     */
+    public String extract(final String[] received) {
+        if (received == null || received.length == 0) {
+            return null;
+        }
+        if (trustedIPv4Networks.length > 0 || trustedIPv6Prefixes.length > 0) {
+            long[] address = new long[2];
+            for (String value : received) {
+                int end = findLiteral(value);
+                if (end >= 0 && !isTrusted(value, literalStart(value, end), end, address)) {
+                    return value.substring(literalStart(value, end), end);
+                }
+            }
+        }
+        for (int i = received.length - 1; i >= 0; i--) {
+            String value = received[i];
+            int end = findLiteral(value);
+            if (end >= 0) {
+                return value.substring(literalStart(value, end), end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scans the header from the right for the last bracketed literal which is
+     * a valid IP address.
+     *
+     * @return the index of the closing bracket of the literal, or -1.
+     */
+    private static int findLiteral(final String value) {
+        int close = value.lastIndexOf(']');
+        while (close > 0) {
+            int open = value.lastIndexOf('[', close - 1);
+            if (open < 0) {
+                return -1;
+            }
+            int start = open + 1;
+            if (isIPv4(value, start, close)) {
+                return close;
+            }
+            if (value.regionMatches(true, start, IPV6_TAG, 0, IPV6_TAG.length())) {
+                start += IPV6_TAG.length();
+            }
+            if (parseIPv6(value, start, close, null)) {
+                return close;
+            }
+            close = value.lastIndexOf(']', open - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * The index of the first character of the address in a literal found by
+     * {@link #findLiteral(java.lang.String)}, excluding any <code>IPv6:</code>
+     * tag.
+     */
+    private static int literalStart(final String value, final int close) {
+        int start = value.lastIndexOf('[', close) + 1;
+        if (value.regionMatches(true, start, IPV6_TAG, 0, IPV6_TAG.length())) {
+            start += IPV6_TAG.length();
+        }
+        return start;
+    }
+
+    private boolean isTrusted(final String value, final int start, final int end, final long[] address) {
+        if (isIPv4(value, start, end)) {
+            int ip = parseIPv4(value, start, end);
+            for (int i = 0; i < trustedIPv4Networks.length; i++) {
+                if ((ip & trustedIPv4Masks[i]) == trustedIPv4Networks[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (!parseIPv6(value, start, end, address)) {
+            return false;
+        }
+        for (int i = 0; i < trustedIPv6Prefixes.length; i++) {
+            int prefix = trustedIPv6Prefixes[i];
+            long highMask = prefix >= 64 ? -1L : prefix == 0 ? 0L : -1L << (64 - prefix);
+            long lowMask = prefix <= 64 ? 0L : prefix == 128 ? -1L : -1L << (128 - prefix);
+            if ((address[0] & highMask) == (trustedIPv6Networks[i * 2] & highMask)
+                    && (address[1] & lowMask) == (trustedIPv6Networks[i * 2 + 1] & lowMask)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Validates a dotted quad IPv4 address.
+     */
+    static boolean isIPv4(final CharSequence s, final int start, final int end) {
+        int octets = 0;
+        int digits = 0;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return false;
+                }
+            } else if (c == '.' && digits > 0 && octets < 3) {
+                octets++;
+                digits = 0;
+                value = 0;
+            } else {
+                return false;
+            }
+        }
+        return octets == 3 && digits > 0;
+    }
+
+    /**
+     * Converts a dotted quad which has been validated by
+     * {@link #isIPv4(java.lang.CharSequence, int, int)} to an integer.
+     */
+    static int parseIPv4(final CharSequence s, final int start, final int end) {
+        int result = 0;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                result = (result << 8) | value;
+                value = 0;
+            } else {
+                value = value * 10 + (c - '0');
+            }
+        }
+        return (result << 8) | value;
+    }
+
+    /**
+     * Validates, and optionally converts an IPv6 address including the
+     * compressed (<code>::</code>), and embedded IPv4 forms.
+     *
+     * @param address If not {@code null}, receives the high, and low 64 bits
+     * of the address.
+     * @return {@code true} if the address is valid.
+     */
+    static boolean parseIPv6(final CharSequence s, final int start, final int end, final long[] address) {
+        if (end - start < 2) {
+            return false;
+        }
+        long high = 0;
+        long low = 0;
+        int groups = 0;
+        int compressedAt = -1;
+        int i = start;
+        if (s.charAt(i) == ':') {
+            if (s.charAt(i + 1) != ':') {
+                return false;
+            }
+            compressedAt = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            while (i < end && i - groupStart < 5) {
+                int digit = Character.digit(s.charAt(i), 16);
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (i < end && s.charAt(i) == '.') {
+                // Embedded IPv4 address in the last 32 bits.
+                if (groups > 6 || !isIPv4(s, groupStart, end)) {
+                    return false;
+                }
+                int ipv4 = parseIPv4(s, groupStart, end);
+                high = (high << 32) | (low >>> 32);
+                low = (low << 32) | (ipv4 & 0xFFFFFFFFL);
+                groups += 2;
+                i = end;
+                break;
+            }
+            int length = i - groupStart;
+            if (length == 0 || length > 4 || groups == 8) {
+                return false;
+            }
+            high = (high << 16) | (low >>> 48);
+            low = (low << 16) | value;
+            groups++;
+            if (i == end) {
+                break;
+            }
+            if (s.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+            if (i < end && s.charAt(i) == ':') {
+                if (compressedAt >= 0) {
+                    return false;
+                }
+                compressedAt = groups;
+                i++;
+            } else if (i == end) {
+                return false;
+            }
+        }
+        if (compressedAt < 0 ? groups != 8 : groups > 7) {
+            return false;
+        }
+        if (address != null) {
+            if (compressedAt >= 0) {
+                // The groups are right aligned; move those before the "::" to the top.
+                int tailBits = (groups - compressedAt) * 16;
+                long tailHigh = tailBits > 64 ? high & lowBits(tailBits - 64) : 0;
+                long tailLow = tailBits >= 64 ? low : low & lowBits(tailBits);
+                int shift = 128 - groups * 16;
+                long topHigh = shift >= 64 ? low << (shift - 64) : (high << shift) | (low >>> (64 - shift));
+                long topLow = shift >= 64 ? 0 : low << shift;
+                int headBits = compressedAt * 16;
+                high = (topHigh & ~lowBits(Math.max(0, 64 - headBits))) | tailHigh;
+                low = (topLow & ~lowBits(Math.min(64, 128 - headBits))) | tailLow;
+            }
+            address[0] = high;
+            address[1] = low;
+        }
+        return true;
+    }
+
+    /**
+     * A mask of the lowest bits of a long.
+     */
+    private static long lowBits(final int bits) {
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+}
@@ -15,11 +15,11 @@
  */
 package com.bluelotussoftware.mail.arf;
 
-import java.util.Enumeration;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.mail.Header;
+import java.text.ParseException;
+import java.util.Date;
 import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeUtility;
 
 /**
  * Mail Utilities
@@ -29,29 +29,81 @@ import javax.mail.internet.InternetHeaders;
  */
 public class Utils {
 
+    private static final MailDateFormat MAIL_DATE_FORMAT = new MailDateFormat();
+    private static volatile SourceIPExtractor sourceIPExtractor = new SourceIPExtractor();
+
     /**
      * Reads {@link InternetHeaders} evaluating <code>Received:</code> lines to
-     * determine the source IP address.
+     * determine the source IP address using the configured
+     * {@link SourceIPExtractor}.
      *
      * @param internetHeaders The headers to examine.
      * @return the IP address of the last {@code Received:} header, or
      * {@code null} if it can not be determined.
+     * @see #setSourceIPExtractor(com.bluelotussoftware.mail.arf.SourceIPExtractor)
      */
     public static String getSourceIPAddress(final InternetHeaders internetHeaders) {
-        Enumeration<Header> headers = (Enumeration<Header>) internetHeaders.getAllHeaders();
-        Pattern IP_ADDRESS_PATTERN = Pattern.compile("\\[(.*?)\\]");
-        String sourceIP = null;
-        while (headers.hasMoreElements()) {
-            Header h = (Header) headers.nextElement();
-            if ("Received".equals(h.getName())) {
-                Matcher m = IP_ADDRESS_PATTERN.matcher(h.getValue());
-                while (m.find()) {
-                    sourceIP = m.group(1);
-                }
+        return sourceIPExtractor.extract(internetHeaders);
+    }
+
+    /**
+     * Evaluates the values of <code>Received:</code> headers to determine the
+     * source IP address using the configured {@link SourceIPExtractor}.
+     *
+     * @param received The values of the <code>Received:</code> headers in the
+     * order they appear in the message, which may be {@code null}.
+     * @return the source IP address, or {@code null} if it can not be
+     * determined.
+     */
+    public static String getSourceIPAddress(final String[] received) {
+        return sourceIPExtractor.extract(received);
+    }
+
+    /**
+     * Sets the {@link SourceIPExtractor} used by
+     * {@link #getSourceIPAddress(javax.mail.internet.InternetHeaders)}, e.g.
+     * to skip trusted relays. The default does not trust any relays.
+     *
+     * @param extractor The extractor to use.
+     */
+    public static void setSourceIPExtractor(final SourceIPExtractor extractor) {
+        sourceIPExtractor = extractor;
+    }
+
+    /**
+     * Parses the date of a <code>Received:</code> header, which follows the
+     * last semicolon.
+     *
+     * @param received The value of the header, which may be {@code null}.
+     * @return the date the message was received, or {@code null} if it can
+     * not be parsed.
+     */
+    public static Date getReceivedDate(final String received) {
+        int semicolon = received == null ? -1 : received.lastIndexOf(';');
+        if (semicolon < 0) {
+            return null;
+        }
+        String date = MimeUtility.unfold(received.substring(semicolon + 1)).trim();
+        try {
+            synchronized (MAIL_DATE_FORMAT) {
+                return MAIL_DATE_FORMAT.parse(date);
             }
+        } catch (ParseException e) {
+            return null;
         }
+    }
 
-        return sourceIP;
+    /**
+     * Formats a date as it is written in a header, e.g.
+     * <code>Arrival-Date:</code>.
+     *
+     * @param date The date to format.
+     * @return the formatted date.
+     */
+    public static String formatDate(final Date date) {
+        synchronized (MAIL_DATE_FORMAT) {
+            return MAIL_DATE_FORMAT.format(date);
+        }
     }
 
     /**
@@ -66,8 +118,10 @@ public class Utils {
         StringBuilder sb = new StringBuilder();
         sb.append("FW: ");
 
-        for (String s : subjects) {
-            sb.append(s);
+        if (subjects != null) {
+            for (String s : subjects) {
+                sb.append(s);
+            }
         }
 
         return sb.toString();